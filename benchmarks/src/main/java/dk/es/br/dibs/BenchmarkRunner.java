@@ -0,0 +1,26 @@
+package dk.es.br.dibs;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks given on the command line, or all of them, with the
+ * GC profiler added so every result comes with its allocation rate.
+ */
+public class BenchmarkRunner
+{
+  public static void main(String[] args)
+      throws RunnerException, CommandLineOptionException
+  {
+    Options opts = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(opts).run();
+  }
+}
@@ -0,0 +1,82 @@
+package dk.es.br.dibs;
+
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of the form requests sent to DIBS.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark
+{
+  private final Currency dkk = Currency.getInstance("DKK");
+  private final Map<String, Object> withdraw = withdrawParams();
+  private final RequestTemplates templates = new RequestTemplates(new DibsConfig()
+  {
+    public String getMerchantId() { return "4259425"; }
+    public String getDibsUser() { return "user"; }
+    public String getDibsPassword() { return "secret"; }
+    public String getMd5K1() { return "K+NBa~?KS6~x4cAx3oJ_3!c#M.c9f8)k"; }
+    public String getMd5K2() { return "wBz{8igqJGzi@?*16bIx!t5_.d$n#A{k"; }
+    public boolean isTesting() { return false; }
+  });
+
+  private static Map<String, Object> withdrawParams()
+  {
+    Map<String, Object> msg = new HashMap<>();
+    msg.put("merchant", "4259425");
+    msg.put("ticket", "2718314359");
+    msg.put("orderid", "F2487845");
+    msg.put("amount", 30000L);
+    msg.put("currency", "208");
+    msg.put("capturenow", "yes");
+    msg.put("uniqueoid", "yes");
+    msg.put("fullreply", "yes");
+    msg.put("mitType", "UCOF");
+    msg.put("md5key", "d7d0716f705d66b7f333f61e2b705f9c");
+    return msg;
+  }
+
+  @Benchmark
+  public String formatQuery()
+  {
+    return DibsClient.formatQuery(withdraw);
+  }
+
+  @Benchmark
+  public String formatFreshQuery()
+  {
+    // A fresh map each time, as the client used to build one per call
+    return DibsClient.formatQuery(withdrawParams());
+  }
+
+  @Benchmark
+  public byte[] withdrawTemplate()
+  {
+    return templates.withdraw("/cgi-ssl/ticket_auth.cgi", "2718314359", "F2487845", 30000L, "208",
+                              "d7d0716f705d66b7f333f61e2b705f9c", false).toByteArray();
+  }
+
+  @Benchmark
+  public String codeOf()
+  {
+    return DibsClient.codeOf(dkk);
+  }
+}
@@ -0,0 +1,61 @@
+package dk.es.br.dibs;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the form and JSON replies of DIBS.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingBenchmark
+{
+  private static final String WITHDRAW_REPLY =
+      "status=ACCEPTED&transact=2718314359&cardtype=V-DK&acquirer=TEST&capturenow=yes&currency=208"
+      + "&fullreply=yes&amount=30000&orderid=F2487845&fee=250&suspect=false&severity=0"
+      + "&privatebusiness=PRIVATE&surchargeregion=EU&approvalcode=123456&textreply=yes";
+
+  private static final String FEE_REPLY =
+      "{\"agreement\":123456,\"fee\":5250.0,\"amount\":250000.0,\"currency\":\"208\",\"details\":{\"fee\":1.0,\"fixed\":100}}";
+
+  private static final String TICKET_REPLY =
+      "{\"ticket\":\"2718314359\",\"card\":{\"brand\":\"VISA\",\"region\":\"EU\"},\"allowSurcharge\":true,\"reason\":\"BUSINESS_OR_NON_EU\"}";
+
+  @Benchmark
+  public Map parseResponse()
+  {
+    return DibsClient.parseResponse(WITHDRAW_REPLY);
+  }
+
+  @Benchmark
+  public String parseReply()
+  {
+    return ResponseParser.Reply.parse(WITHDRAW_REPLY).transact;
+  }
+
+  @Benchmark
+  public int parseFeeResponse()
+  {
+    return DibsClient.parseFeeResponse(FEE_REPLY);
+  }
+
+  @Benchmark
+  public String parseSurchargeabilityResponse()
+  {
+    return DibsClient.parseSurchargeabilityResponse(TICKET_REPLY);
+  }
+}
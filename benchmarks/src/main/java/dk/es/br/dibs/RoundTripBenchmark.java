@@ -0,0 +1,84 @@
+package dk.es.br.dibs;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end withdrawals and card type lookups against a {@link DibsSimulator}
+ * without latency, covering encoding, signing, the pooled transport and parsing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark
+{
+  private static final DibsConfig CONFIG = new DibsConfig()
+  {
+    public String getMerchantId() { return "4259425"; }
+    public String getDibsUser() { return "user"; }
+    public String getDibsPassword() { return "secret"; }
+    public String getMd5K1() { return "K+NBa~?KS6~x4cAx3oJ_3!c#M.c9f8)k"; }
+    public String getMd5K2() { return "wBz{8igqJGzi@?*16bIx!t5_.d$n#A{k"; }
+    public boolean isTesting() { return true; }
+  };
+
+  private final Currency dkk = Currency.getInstance("DKK");
+  private final BigDecimal amount = new BigDecimal("300.00");
+  private final AtomicLong orders = new AtomicLong();
+
+  private DibsSimulator simulator;
+  private PooledDibsTransport transport;
+  private DibsClient client;
+
+  @Setup(Level.Trial)
+  public void start()
+    throws IOException
+  {
+    simulator = new DibsSimulator().start();
+    transport = new PooledDibsTransport(null);
+    client = new DibsClient(simulator.config(CONFIG), transport);
+  }
+
+  @TearDown(Level.Trial)
+  public void stop()
+  {
+    transport.close();
+    simulator.close();
+  }
+
+  @Benchmark
+  public Long withdraw()
+    throws DibsException
+  {
+    String orderId = "F" + orders.incrementAndGet();
+    return client.withdraw("2718314359", orderId, amount, dkk, true).transactionId();
+  }
+
+  @Benchmark
+  public String getCardType()
+    throws DibsException
+  {
+    return client.getCardType(2718314359L);
+  }
+}
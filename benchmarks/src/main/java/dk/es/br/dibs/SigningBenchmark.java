@@ -0,0 +1,44 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The keyed MD5 checksum of a withdrawal, computed from scratch and with a
+ * {@link DibsSigner}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SigningBenchmark
+{
+  private static final String K1 = "K+NBa~?KS6~x4cAx3oJ_3!c#M.c9f8)k";
+  private static final String K2 = "wBz{8igqJGzi@?*16bIx!t5_.d$n#A{k";
+  private static final String SRC = "merchant=4259425&orderid=F2487845&ticket=2718314359&currency=208&amount=30000";
+
+  private final DibsSigner signer = new DibsSigner(K1, K2);
+
+  @Benchmark
+  public String md5()
+  {
+    return DibsClient.MD5(K1, K2, SRC);
+  }
+
+  @Benchmark
+  public String signer()
+  {
+    return signer.sign(SRC);
+  }
+}
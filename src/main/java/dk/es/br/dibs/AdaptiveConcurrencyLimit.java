@@ -0,0 +1,293 @@
+package dk.es.br.dibs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the requests in flight to DIBS, finding the limit by itself
+ * (additive increase, multiplicative decrease). While round trips stay
+ * within a tolerance of the no-load round trip, the limit grows by about
+ * one per limit's worth of calls. When they grow beyond it, or a request
+ * fails or is answered with reason 1 (communication problems), the limit
+ * shrinks by the backoff factor, at most once per limit's worth of calls.
+ *
+ * The no-load round trip is kept per endpoint, as the shortest seen in the
+ * latest window of calls to it, so that a slow endpoint is not held to the
+ * round trip of a fast one. Calls over the limit wait for a slot, within the call's deadline
+ * and the maximum wait; a call still waiting then fails with the error key
+ * {@link DibsException#CONCURRENCY_LIMITED}.
+ */
+public class AdaptiveConcurrencyLimit
+{
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+
+  private volatile int minLimit = 1;
+  private volatile int maxLimit = 200;
+  private volatile double tolerance = 2.0;
+  private volatile double backoff = 0.9;
+  private volatile int window = 250;
+  private volatile long maxWaitMillis = 30000;
+
+  private double limit;
+  private int inFlight;
+  private final Map<String, NoLoad> noLoad = new HashMap<>();
+  private int sinceDecrease;
+
+  /**
+   * The no-load round trip of an endpoint.
+   */
+  private static final class NoLoad
+  {
+    private long nanos = -1;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowCount;
+
+    void sample(long rttNanos, int window)
+    {
+      if (rttNanos < windowMinNanos)
+        windowMinNanos = rttNanos;
+      if (nanos < 0 || rttNanos < nanos)
+        nanos = rttNanos;
+      if (++windowCount >= window) {
+        nanos = windowMinNanos;
+        windowMinNanos = Long.MAX_VALUE;
+        windowCount = 0;
+      }
+    }
+  }
+
+  public AdaptiveConcurrencyLimit()
+  {
+    this(10);
+  }
+
+  public AdaptiveConcurrencyLimit(int initialLimit)
+  {
+    if (initialLimit < 1)
+      throw new IllegalArgumentException("limit: " + initialLimit);
+    this.limit = initialLimit;
+  }
+
+  /**
+   * @param min the limit never goes below this (default 1)
+   * @param max the limit never goes above this (default 200)
+   */
+  public AdaptiveConcurrencyLimit bounds(int min, int max)
+  {
+    if (min < 1 || max < min)
+      throw new IllegalArgumentException(min + ".." + max);
+    lock.lock();
+    try {
+      this.minLimit = min;
+      this.maxLimit = max;
+      limit = Math.max(min, Math.min(max, limit));
+    }
+    finally {
+      lock.unlock();
+    }
+    return this;
+  }
+
+  /**
+   * @param factor how many times the no-load round trip a round trip may
+   *        take before the limit shrinks (default 2)
+   */
+  public AdaptiveConcurrencyLimit tolerance(double factor)
+  {
+    if (factor < 1)
+      throw new IllegalArgumentException("tolerance: " + factor);
+    this.tolerance = factor;
+    return this;
+  }
+
+  /**
+   * @param factor what the limit is multiplied by when shrinking
+   *        (default 0.9)
+   */
+  public AdaptiveConcurrencyLimit backoff(double factor)
+  {
+    if (factor <= 0 || factor >= 1)
+      throw new IllegalArgumentException("backoff: " + factor);
+    this.backoff = factor;
+    return this;
+  }
+
+  /**
+   * @param calls the number of calls the no-load round trip is taken over
+   *        (default 250)
+   */
+  public AdaptiveConcurrencyLimit window(int calls)
+  {
+    if (calls < 1)
+      throw new IllegalArgumentException("window: " + calls);
+    this.window = calls;
+    return this;
+  }
+
+  /**
+   * @param millis how long a call may wait for a slot (default 30000)
+   */
+  public AdaptiveConcurrencyLimit maxWaitMillis(long millis)
+  {
+    this.maxWaitMillis = millis;
+    return this;
+  }
+
+  public int getLimit()
+  {
+    lock.lock();
+    try {
+      return (int)limit;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public int getInFlight()
+  {
+    lock.lock();
+    try {
+      return inFlight;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the shortest no-load round trip of any endpoint, or -1 before
+   *         any call has completed
+   */
+  public double getNoLoadMillis()
+  {
+    lock.lock();
+    try {
+      long min = -1;
+      for (NoLoad n : noLoad.values()) {
+        if (n.nanos >= 0 && (min < 0 || n.nanos < min))
+          min = n.nanos;
+      }
+      return min < 0 ? -1 : min / 1e6;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the shortest round trip of the latest window of calls to the
+   *         endpoint, or -1 before any such call has completed
+   */
+  public double getNoLoadMillis(String endpoint)
+  {
+    lock.lock();
+    try {
+      NoLoad n = noLoad.get(endpoint);
+      return n == null || n.nanos < 0 ? -1 : n.nanos / 1e6;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a slot, waiting for one if all are taken. Every slot taken must
+   * be given back by {@link #release} or {@link #cancel}.
+   *
+   * @param deadline the deadline of the call, or null
+   */
+  void acquire(Deadline deadline)
+    throws DibsException
+  {
+    long waitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    if (deadline != null)
+      waitNanos = Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(deadline.remainingMillis()));
+
+    lock.lock();
+    try {
+      while (inFlight >= (int)limit) {
+        if (waitNanos <= 0) {
+          if (deadline != null && deadline.expired())
+            throw new DibsException("deadline exceeded waiting for a slot", DibsException.DEADLINE_EXCEEDED, (String)null);
+          throw new DibsException(inFlight + " requests in flight", DibsException.CONCURRENCY_LIMITED, (String)null);
+        }
+        waitNanos = released.awaitNanos(waitNanos);
+      }
+      inFlight++;
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new DibsException("interrupted waiting for a slot", DibsException.CONCURRENCY_LIMITED, ex);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gives back the slot of a call which was never made.
+   */
+  void cancel()
+  {
+    lock.lock();
+    try {
+      inFlight--;
+      released.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gives back a slot and adapts the limit to the outcome of the call.
+   *
+   * @param endpoint the endpoint called, whose no-load round trip the
+   *        call is held to
+   * @param dropped whether the call failed in a way suggesting overload
+   * @param rttNanos the round trip of the call
+   */
+  void release(String endpoint, boolean dropped, long rttNanos)
+  {
+    lock.lock();
+    try {
+      int busy = inFlight--;
+      sinceDecrease++;
+
+      NoLoad n = noLoad.get(endpoint);
+      if (n == null) {
+        n = new NoLoad();
+        noLoad.put(endpoint, n);
+      }
+      if (!dropped)
+        n.sample(rttNanos, window);
+
+      if (dropped || rttNanos > tolerance * n.nanos) {
+        if (sinceDecrease >= limit) {
+          limit = Math.max(minLimit, limit * backoff);
+          sinceDecrease = 0;
+        }
+      }
+      else if (busy * 2 >= limit) {
+        // Only grow while the current limit is being used
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+
+      released.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "limit " + getLimit() + ", in flight " + getInFlight() + ", no-load " + getNoLoadMillis() + "ms";
+  }
+}
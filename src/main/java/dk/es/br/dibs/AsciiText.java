@@ -0,0 +1,65 @@
+package dk.es.br.dibs;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only view of ASCII bytes as characters, so that a reply can be
+ * parsed straight from the bytes received. Only the parts picked out by the
+ * parsers are ever turned into strings.
+ */
+final class AsciiText
+     implements CharSequence
+{
+  private final byte[] bytes;
+  private final int offset;
+  private final int length;
+
+  AsciiText(byte[] bytes, int offset, int length)
+  {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * @return whether the bytes are all ASCII, with no line breaks
+   */
+  static boolean isPlain(byte[] bytes)
+  {
+    for (byte b : bytes)
+      if (b < 0 || b == '\r' || b == '\n')
+        return false;
+    return true;
+  }
+
+  @Override
+  public int length()
+  {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index)
+  {
+    if (index < 0 || index >= length)
+      throw new IndexOutOfBoundsException("index " + index + " of " + length);
+    return (char)bytes[offset + index];
+  }
+
+  /**
+   * @return the range as a string, being what callers want of it
+   */
+  @Override
+  public CharSequence subSequence(int start, int end)
+  {
+    if (start < 0 || end > length || start > end)
+      throw new IndexOutOfBoundsException(start + ".." + end + " of " + length);
+    return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,182 @@
+package dk.es.br.dibs;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import dk.es.br.dibs.DibsClient.Payment;
+
+/**
+ * Non-blocking front of a {@link DibsClient}. Every operation is run on an
+ * executor and returns at once with a future of the result the blocking
+ * method would have returned.
+ *
+ * A failing call completes its future exceptionally with the very
+ * {@link DibsException} (or runtime exception) the blocking call would have
+ * thrown. Note that {@link CompletableFuture#join()} and
+ * {@link CompletableFuture#get()} wrap it, in a
+ * {@link java.util.concurrent.CompletionException} and an
+ * {@link java.util.concurrent.ExecutionException} respectively.
+ */
+public class AsyncDibsClient
+     implements Closeable
+{
+  private final static int DEFAULT_THREADS = 16;
+
+  private final DibsClient client;
+  private final Executor executor;
+  private final ExecutorService ownExecutor;
+
+  /**
+   * Creates an async client running calls on an internal pool of
+   * {@value #DEFAULT_THREADS} threads.
+   */
+  public AsyncDibsClient(DibsClient client)
+  {
+    this(client, DEFAULT_THREADS);
+  }
+
+  /**
+   * Creates an async client running calls on an internal pool of the given
+   * number of threads. Calls beyond that wait in line.
+   */
+  public AsyncDibsClient(DibsClient client, int threads)
+  {
+    this.client = client;
+    this.ownExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(),
+                                              new DaemonThreadFactory("dibs-async"));
+    ((ThreadPoolExecutor)ownExecutor).allowCoreThreadTimeOut(true);
+    this.executor = ownExecutor;
+  }
+
+  /**
+   * Creates an async client running calls on the caller's executor, which is
+   * left running on {@link #close()}.
+   */
+  public AsyncDibsClient(DibsClient client, Executor executor)
+  {
+    this.client = client;
+    this.executor = executor;
+    this.ownExecutor = null;
+  }
+
+  public DibsClient client()
+  {
+    return client;
+  }
+
+  /**
+   * @see DibsClient#withdraw(String, String, BigDecimal, Currency, boolean)
+   */
+  public CompletableFuture<DibsResponse<Payment>> withdraw(final String accountId, final String orderId, final BigDecimal amount, final Currency currency, final boolean chargeCardFee)
+  {
+    return submit(() -> client.withdraw(accountId, orderId, amount, currency, chargeCardFee));
+  }
+
+  /**
+   * @see DibsClient#withdraw(String, String, BigDecimal, Currency, boolean, String)
+   */
+  public CompletableFuture<DibsResponse<Payment>> withdraw(final String accountId, final String orderId, final BigDecimal amount, final Currency currency, final boolean chargeCardFee, final String endpoint)
+  {
+    return submit(() -> client.withdraw(accountId, orderId, amount, currency, chargeCardFee, endpoint));
+  }
+
+  /**
+   * @see DibsClient#validateCardSubscription(String, int, Currency)
+   */
+  public CompletableFuture<DibsResponse<?>> validateCardSubscription(final String accountId, final int cents, final Currency currency)
+  {
+    return submit(() -> client.validateCardSubscription(accountId, cents, currency));
+  }
+
+  /**
+   * @see DibsClient#validateSubscription(String, String, Map)
+   */
+  public CompletableFuture<DibsResponse<?>> validateSubscription(final String ticket, final String orderid, final Map<String, String> additionalParams)
+  {
+    return submit(() -> client.validateSubscription(ticket, orderid, additionalParams));
+  }
+
+  /**
+   * @see DibsClient#getCardType(Long)
+   */
+  public CompletableFuture<String> getCardType(final Long transactionId)
+  {
+    return submit(() -> client.getCardType(transactionId));
+  }
+
+  /**
+   * @see DibsClient#deleteAccount(String)
+   */
+  public CompletableFuture<Void> deleteAccount(final String accountId)
+  {
+    return submit(() -> {
+      client.deleteAccount(accountId);
+      return null;
+    });
+  }
+
+  /**
+   * @see DibsClient#expectedFeeCents(String, int, Currency)
+   */
+  public CompletableFuture<Integer> expectedFeeCents(final String ticket, final int amountCents, final Currency currency)
+  {
+    return submit(() -> client.expectedFeeCents(ticket, amountCents, currency));
+  }
+
+  /**
+   * @see DibsClient#surchargeabilityReason(String)
+   */
+  public CompletableFuture<String> surchargeabilityReason(final String ticket)
+  {
+    return submit(() -> client.surchargeabilityReason(ticket));
+  }
+
+  /**
+   * Stops the internal executor, if any, letting queued calls finish.
+   */
+  @Override
+  public void close()
+  {
+    if (ownExecutor != null)
+      ownExecutor.shutdown();
+  }
+
+  private <T> CompletableFuture<T> submit(final Call<T> call)
+  {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        // Cancelled while waiting for a thread
+        if (future.isDone())
+          return;
+        try {
+          future.complete(call.call());
+        }
+        catch (Throwable t) {
+          future.completeExceptionally(t);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      future.completeExceptionally(ex);
+    }
+    return future;
+  }
+
+  @FunctionalInterface
+  interface Call<T>
+  {
+    T call()
+      throws DibsException;
+  }
+}
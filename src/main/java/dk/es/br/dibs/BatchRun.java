@@ -0,0 +1,222 @@
+package dk.es.br.dibs;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A running batch of DIBS calls: items are pulled from a source one at a
+ * time and run with bounded concurrency, optionally under a rate cap. The
+ * counters may be read at any time while the batch progresses.
+ */
+public class BatchRun
+{
+  private final static Logger LOG = LoggerFactory.getLogger(BatchRun.class);
+
+  private final String name;
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong succeeded = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final long startedMillis = System.currentTimeMillis();
+
+  private volatile boolean cancelled;
+  private volatile boolean fed;
+  private volatile boolean done;
+  private volatile RuntimeException sourceFailure;
+  private Runnable finisher;
+
+  interface Task<T>
+  {
+    void run(T item)
+      throws Exception;
+  }
+
+  private BatchRun(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Starts feeding the items to the task on a background thread.
+   */
+  static <T> BatchRun start(String name, Iterator<? extends T> items, int concurrency, double maxPerSecond, Task<T> task)
+  {
+    return start(name, items, concurrency, maxPerSecond, task, null);
+  }
+
+  /**
+   * @param finisher run once the last item is done, before waiters are
+   *        released; may be null
+   */
+  static <T> BatchRun start(String name, final Iterator<? extends T> items, final int concurrency, double maxPerSecond, final Task<T> task, Runnable finisher)
+  {
+    if (concurrency < 1)
+      throw new IllegalArgumentException("concurrency: " + concurrency);
+
+    final BatchRun run = new BatchRun(name);
+    run.finisher = finisher;
+    final RateLimiter rate = new RateLimiter(maxPerSecond);
+    final Semaphore slots = new Semaphore(concurrency);
+    final ExecutorService workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue<Runnable>(),
+                                                           new DaemonThreadFactory(name));
+
+    Thread feeder = new DaemonThreadFactory(name + "-feeder").newThread(() -> {
+      try {
+        while (!run.cancelled && items.hasNext()) {
+          final T item = items.next();
+          slots.acquire();
+          rate.acquire();
+          run.submitted.incrementAndGet();
+          workers.execute(() -> {
+            try {
+              task.run(item);
+              run.succeeded.incrementAndGet();
+            }
+            catch (Exception | Error ex) {
+              run.failed.incrementAndGet();
+              LOG.debug("{}: item failed", run.name, ex);
+            }
+            finally {
+              slots.release();
+              run.checkDone();
+            }
+          });
+        }
+      }
+      catch (InterruptedException ex) {
+        run.cancelled = true;
+      }
+      catch (RuntimeException ex) {
+        LOG.error(run.name + ": reading batch items failed", ex);
+        run.sourceFailure = ex;
+      }
+      finally {
+        workers.shutdown();
+        run.fed = true;
+        run.checkDone();
+      }
+    });
+    feeder.start();
+    return run;
+  }
+
+  private void checkDone()
+  {
+    if (!fed || inFlight() > 0)
+      return;
+    synchronized (this) {
+      if (!done) {
+        if (finisher != null) {
+          try {
+            finisher.run();
+          }
+          catch (RuntimeException ex) {
+            LOG.error(name + ": finishing failed", ex);
+          }
+        }
+        done = true;
+        LOG.info("{}: {} succeeded, {} failed in {}ms", name, succeeded.get(), failed.get(), System.currentTimeMillis() - startedMillis);
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return the number of items handed to a worker so far
+   */
+  public long submitted()
+  {
+    return submitted.get();
+  }
+
+  public long succeeded()
+  {
+    return succeeded.get();
+  }
+
+  public long failed()
+  {
+    return failed.get();
+  }
+
+  public long completed()
+  {
+    return succeeded.get() + failed.get();
+  }
+
+  /**
+   * @return the number of items currently being processed
+   */
+  public long inFlight()
+  {
+    return submitted.get() - completed();
+  }
+
+  public long elapsedMillis()
+  {
+    return System.currentTimeMillis() - startedMillis;
+  }
+
+  public boolean isDone()
+  {
+    return done;
+  }
+
+  /**
+   * @return the exception which stopped the item source, if any
+   */
+  public RuntimeException sourceFailure()
+  {
+    return sourceFailure;
+  }
+
+  /**
+   * Stops taking further items. Items already in flight run to completion.
+   */
+  public void cancel()
+  {
+    cancelled = true;
+  }
+
+  public boolean isCancelled()
+  {
+    return cancelled;
+  }
+
+  public synchronized void await()
+    throws InterruptedException
+  {
+    while (!done)
+      wait();
+  }
+
+  /**
+   * @return whether the batch finished within the given time
+   */
+  public synchronized boolean await(long timeout, TimeUnit unit)
+    throws InterruptedException
+  {
+    long end = System.nanoTime() + unit.toNanos(timeout);
+    while (!done) {
+      long left = end - System.nanoTime();
+      if (left <= 0)
+        return false;
+      TimeUnit.NANOSECONDS.timedWait(this, left);
+    }
+    return true;
+  }
+
+  @Override
+  public String toString()
+  {
+    return name + "[submitted=" + submitted() + ", succeeded=" + succeeded() + ", failed=" + failed() + ", inFlight=" + inFlight() + "]";
+  }
+}
@@ -0,0 +1,389 @@
+package dk.es.br.dibs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes a large number of stored card tickets, e.g. those of accounts
+ * closed long ago, with a number of deletions in flight at a time.
+ *
+ * <pre>
+ *   BatchRun run = new BatchTicketDeletion(client)
+ *       .concurrency(8)
+ *       .maxRequestsPerSecond(20)
+ *       .checkpoint(Paths.get("delete.checkpoint"))
+ *       .report(Paths.get("delete.report"))
+ *       .start(Paths.get("tickets.txt"));
+ *   run.await();
+ * </pre>
+ *
+ * The report gets one line per ticket: the ticket, {@code OK} or
+ * {@code FAILED}, and for failures the error key (the DIBS reason),
+ * separated by tabs. It holds the ticket ids in full, so that failed
+ * tickets can be retried; keep it accordingly.
+ *
+ * The checkpoint holds the number of tickets from the start of the source
+ * which are done. Deletions complete out of order, so on a resume a few
+ * tickets after that point may be tried again; DIBS then refuses them as
+ * unknown, which shows as a failure in the report. The report is flushed,
+ * and a report file forced to disk, before each checkpoint write, so that
+ * no ticket past the checkpoint is missing from it after a crash.
+ */
+public class BatchTicketDeletion
+{
+  private final static Logger LOG = LoggerFactory.getLogger(BatchTicketDeletion.class);
+
+  private final DibsClient client;
+  private int concurrency = 8;
+  private double maxRequestsPerSecond;
+  private Path checkpoint;
+  private int checkpointEvery = 100;
+  private Path reportFile;
+  private Writer report;
+
+  public BatchTicketDeletion(DibsClient client)
+  {
+    this.client = client;
+  }
+
+  /**
+   * @param concurrency the number of deletions in flight at a time
+   */
+  public BatchTicketDeletion concurrency(int concurrency)
+  {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  /**
+   * @param max the cap on deletions started per second; 0 for no cap
+   */
+  public BatchTicketDeletion maxRequestsPerSecond(double max)
+  {
+    this.maxRequestsPerSecond = max;
+    return this;
+  }
+
+  /**
+   * @param file where progress is kept; if it exists when the batch starts,
+   *        the tickets it records as done are skipped
+   */
+  public BatchTicketDeletion checkpoint(Path file)
+  {
+    this.checkpoint = file;
+    return this;
+  }
+
+  /**
+   * @param tickets how many deletions complete between checkpoint writes
+   *        (default 100)
+   */
+  public BatchTicketDeletion checkpointEvery(int tickets)
+  {
+    if (tickets < 1)
+      throw new IllegalArgumentException("checkpointEvery: " + tickets);
+    this.checkpointEvery = tickets;
+    return this;
+  }
+
+  /**
+   * @param file the report, appended to so that resumed runs add to it
+   */
+  public BatchTicketDeletion report(Path file)
+  {
+    this.reportFile = file;
+    this.report = null;
+    return this;
+  }
+
+  /**
+   * @param out the report; flushed, but not closed, when the batch is done
+   */
+  public BatchTicketDeletion report(Writer out)
+  {
+    this.report = out;
+    this.reportFile = null;
+    return this;
+  }
+
+  public BatchRun start(Iterable<String> tickets)
+    throws IOException
+  {
+    return start(tickets.iterator());
+  }
+
+  /**
+   * @param ticketFile one ticket per line; blank lines and lines starting
+   *        with {@code #} are skipped
+   */
+  public BatchRun start(Path ticketFile)
+    throws IOException
+  {
+    final BufferedReader in = Files.newBufferedReader(ticketFile, StandardCharsets.UTF_8);
+    try {
+      return start(new TicketReader(in), in);
+    }
+    catch (IOException | RuntimeException ex) {
+      in.close();
+      throw ex;
+    }
+  }
+
+  public BatchRun start(Iterator<String> tickets)
+    throws IOException
+  {
+    return start(tickets, null);
+  }
+
+  private BatchRun start(Iterator<String> tickets, final AutoCloseable source)
+    throws IOException
+  {
+    long skip = readCheckpoint();
+    for (long i = 0; i < skip; i++) {
+      if (!tickets.hasNext())
+        break;
+      tickets.next();
+    }
+    if (skip > 0)
+      LOG.info("Resuming ticket deletion after {} tickets", skip);
+
+    final FileChannel channel = reportFile != null
+                              ? FileChannel.open(reportFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                              : null;
+    final Writer out = channel != null
+                     ? new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))
+                     : report;
+    final Progress progress = new Progress(skip, out, channel);
+    final Iterator<Numbered> items = numbered(tickets, skip);
+
+    return BatchRun.start("dibs-delete", items, concurrency, maxRequestsPerSecond, (Numbered item) -> {
+      try {
+        client.deleteAccount(item.ticket);
+        record(out, item.ticket, null);
+      }
+      catch (DibsException | RuntimeException ex) {
+        record(out, item.ticket, ex);
+        throw ex;
+      }
+      finally {
+        progress.done(item.seq);
+      }
+    }, () -> {
+      try {
+        progress.save();
+        if (out != null) {
+          if (reportFile != null)
+            out.close();
+          else
+            out.flush();
+        }
+        if (source != null)
+          source.close();
+      }
+      catch (Exception ex) {
+        throw new IllegalStateException("finishing ticket deletion", ex);
+      }
+    });
+  }
+
+  private static void record(Writer out, String ticket, Exception failure)
+  {
+    if (out == null)
+      return;
+    String line;
+    if (failure == null)
+      line = ticket + "\tOK\n";
+    else {
+      String key = failure instanceof DibsException ? ((DibsException)failure).getErrorKey() : null;
+      line = ticket + "\tFAILED\t" + (key != null ? key : failure.getClass().getSimpleName()) + "\n";
+    }
+    try {
+      synchronized (out) {
+        out.write(line);
+      }
+    }
+    catch (IOException ex) {
+      LOG.error("Writing the deletion report failed: {}", line.trim(), ex);
+    }
+  }
+
+  private long readCheckpoint()
+    throws IOException
+  {
+    if (checkpoint == null || !Files.exists(checkpoint))
+      return 0;
+    String s = new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim();
+    try {
+      return s.isEmpty() ? 0 : Long.parseLong(s);
+    }
+    catch (NumberFormatException ex) {
+      throw new IOException(checkpoint + ": not a checkpoint: " + s);
+    }
+  }
+
+  private void writeCheckpoint(long done)
+  {
+    Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+    try {
+      Files.write(tmp, (done + "\n").getBytes(StandardCharsets.US_ASCII));
+      try {
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    catch (IOException ex) {
+      // The next write may succeed; at worst a resume repeats some tickets
+      LOG.error("Writing the deletion checkpoint {} failed", checkpoint, ex);
+    }
+  }
+
+  /**
+   * Tracks the number of tickets from the start of the source which are
+   * all done, while later ones may complete first.
+   */
+  private final class Progress
+  {
+    private final TreeSet<Long> ahead = new TreeSet<>();
+    private final Writer report;
+    private final FileChannel reportChannel;
+    private long next;
+    private long saved;
+
+    Progress(long start, Writer report, FileChannel reportChannel)
+    {
+      this.next = start;
+      this.saved = start;
+      this.report = report;
+      this.reportChannel = reportChannel;
+    }
+
+    synchronized void done(long seq)
+    {
+      if (seq != next) {
+        ahead.add(seq);
+        return;
+      }
+      next++;
+      while (!ahead.isEmpty() && ahead.first() == next) {
+        ahead.pollFirst();
+        next++;
+      }
+      if (next - saved >= checkpointEvery)
+        save();
+    }
+
+    synchronized void save()
+    {
+      if (checkpoint != null && next != saved) {
+        try {
+          if (report != null)
+            report.flush();
+          if (reportChannel != null)
+            reportChannel.force(false);
+        }
+        catch (IOException ex) {
+          // Left for the next write; the checkpoint must not pass the report
+          LOG.error("Flushing the deletion report failed", ex);
+          return;
+        }
+        writeCheckpoint(next);
+      }
+      saved = next;
+    }
+  }
+
+  private static final class Numbered
+  {
+    final long seq;
+    final String ticket;
+
+    Numbered(long seq, String ticket)
+    {
+      this.seq = seq;
+      this.ticket = ticket;
+    }
+  }
+
+  private static Iterator<Numbered> numbered(final Iterator<String> tickets, final long first)
+  {
+    return new Iterator<Numbered>() {
+      private long seq = first;
+
+      @Override
+      public boolean hasNext()
+      {
+        return tickets.hasNext();
+      }
+
+      @Override
+      public Numbered next()
+      {
+        return new Numbered(seq++, tickets.next());
+      }
+    };
+  }
+
+  /**
+   * The tickets of a file, read as the batch goes.
+   */
+  private static final class TicketReader
+       implements Iterator<String>
+  {
+    private final BufferedReader in;
+    private String line;
+
+    TicketReader(BufferedReader in)
+    {
+      this.in = in;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      try {
+        while (line == null) {
+          String s = in.readLine();
+          if (s == null)
+            return false;
+          s = s.trim();
+          if (!s.isEmpty() && !s.startsWith("#"))
+            line = s;
+        }
+        return true;
+      }
+      catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+
+    @Override
+    public String next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      String s = line;
+      line = null;
+      return s;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package dk.es.br.dibs;
+
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import dk.es.br.dibs.DibsClient.Payment;
+
+/**
+ * Charges a batch of stored card tickets, e.g. all lots of a closed sale,
+ * running a number of withdrawals at a time instead of one after the other.
+ *
+ * <pre>
+ *   BatchRun run = new BatchWithdrawal(client)
+ *       .concurrency(16)
+ *       .maxRequestsPerSecond(40)
+ *       .start(instructions, listener);
+ *   ...
+ *   run.await();
+ * </pre>
+ */
+public class BatchWithdrawal
+{
+  private final DibsClient client;
+  private int concurrency = 8;
+  private double maxRequestsPerSecond;
+
+  /**
+   * Receives the outcome of each withdrawal as it completes. Called from the
+   * worker threads, so implementations must be thread safe.
+   */
+  public interface Listener
+  {
+    void succeeded(WithdrawInstruction instruction, DibsResponse<Payment> response);
+
+    /**
+     * @param failure typically a {@link DibsException}, holding the DIBS
+     *        reason and action code of a declined withdrawal
+     */
+    void failed(WithdrawInstruction instruction, Exception failure);
+  }
+
+  public BatchWithdrawal(DibsClient client)
+  {
+    this.client = client;
+  }
+
+  /**
+   * @param concurrency the number of withdrawals in flight at a time
+   */
+  public BatchWithdrawal concurrency(int concurrency)
+  {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  /**
+   * @param max the cap on withdrawals started per second; 0 for no cap
+   */
+  public BatchWithdrawal maxRequestsPerSecond(double max)
+  {
+    this.maxRequestsPerSecond = max;
+    return this;
+  }
+
+  public BatchRun start(Iterable<WithdrawInstruction> instructions, Listener listener)
+  {
+    return start(instructions.iterator(), listener);
+  }
+
+  public BatchRun start(Stream<WithdrawInstruction> instructions, Listener listener)
+  {
+    return start(instructions.iterator(), listener);
+  }
+
+  public BatchRun start(Iterator<WithdrawInstruction> instructions, final Listener listener)
+  {
+    return BatchRun.start("dibs-withdraw", instructions, concurrency, maxRequestsPerSecond, (WithdrawInstruction wi) -> {
+      DibsResponse<Payment> response;
+      try {
+        response = client.withdraw(wi.accountId(), wi.orderId(), wi.amount(), wi.currency(), wi.chargeCardFee());
+      }
+      catch (DibsException | RuntimeException ex) {
+        listener.failed(wi, ex);
+        throw ex;
+      }
+      listener.succeeded(wi, response);
+    });
+  }
+
+  /**
+   * Runs the batch to completion on the calling thread.
+   */
+  public BatchRun run(Iterable<WithdrawInstruction> instructions, Listener listener)
+    throws InterruptedException
+  {
+    BatchRun run = start(instructions, listener);
+    run.await();
+    return run;
+  }
+}
@@ -0,0 +1,163 @@
+package dk.es.br.dibs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A bounded pool of equally sized scratch buffers, so that reading and
+ * writing messages does not allocate a buffer per call. At most the given
+ * number of buffers is kept; any more given back are left to the garbage
+ * collector, as are buffers grown beyond the pooled size.
+ */
+final class BufferPool
+{
+  private final int bufferSize;
+  private final int maxPooled;
+  private final Deque<byte[]> free = new ArrayDeque<>();
+
+  BufferPool(int bufferSize, int maxPooled)
+  {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  byte[] acquire()
+  {
+    byte[] buf;
+    synchronized (free) {
+      buf = free.pollFirst();
+    }
+    return buf != null ? buf : new byte[bufferSize];
+  }
+
+  void release(byte[] buf)
+  {
+    if (buf == null || buf.length != bufferSize)
+      return;
+    synchronized (free) {
+      if (free.size() < maxPooled)
+        free.offerFirst(buf);
+    }
+  }
+
+  int pooled()
+  {
+    synchronized (free) {
+      return free.size();
+    }
+  }
+
+  /**
+   * Collects bytes in a pooled buffer, growing beyond it as needed up to a
+   * limit. {@link #close()} gives the pooled buffer back.
+   */
+  final class Bytes
+       implements AutoCloseable
+  {
+    private final int limit;
+    private byte[] buf = acquire();
+    private int len;
+
+    /**
+     * @param limit the most bytes which may be collected
+     */
+    Bytes(int limit)
+    {
+      this.limit = limit;
+    }
+
+    byte[] array()
+    {
+      return buf;
+    }
+
+    int length()
+    {
+      return len;
+    }
+
+    int limit()
+    {
+      return limit;
+    }
+
+    void reset()
+    {
+      len = 0;
+    }
+
+    /**
+     * Makes room for at least the given number of bytes after the end.
+     *
+     * @return the buffer to write into, from {@link #length()} on
+     * @throws BodyTooLargeException if the limit would be exceeded
+     */
+    byte[] reserve(int n)
+      throws BodyTooLargeException
+    {
+      if ((long)len + n > limit)
+        throw new BodyTooLargeException(limit);
+      if (len + n > buf.length) {
+        byte[] grown = Arrays.copyOf(buf, (int)Math.min(limit, Math.max((long)buf.length * 2, len + n)));
+        release(buf);
+        buf = grown;
+      }
+      return buf;
+    }
+
+    void advance(int n)
+    {
+      len += n;
+    }
+
+    void write(int b)
+      throws BodyTooLargeException
+    {
+      reserve(1)[len++] = (byte)b;
+    }
+
+    void write(byte[] b, int off, int n)
+      throws BodyTooLargeException
+    {
+      System.arraycopy(b, off, reserve(n), len, n);
+      len += n;
+    }
+
+    void writeAscii(CharSequence s)
+      throws BodyTooLargeException
+    {
+      int n = s.length();
+      byte[] b = reserve(n);
+      for (int i = 0; i < n; i++)
+        b[len++] = (byte)s.charAt(i);
+    }
+
+    byte[] toByteArray()
+    {
+      return Arrays.copyOf(buf, len);
+    }
+
+    @Override
+    public void close()
+    {
+      release(buf);
+      buf = null;
+    }
+  }
+
+  /**
+   * A message larger than the transport accepts.
+   */
+  static final class BodyTooLargeException
+       extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    BodyTooLargeException(long limit)
+    {
+      super("message exceeds " + limit + " bytes");
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package dk.es.br.dibs;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.es.br.dibs.ResponseParser.Reply;
+
+/**
+ * Cancels authorizations in the background, so that
+ * {@link DibsClient#validateCardSubscription} can return as soon as the
+ * card has been authorized. A failed cancel is retried with growing
+ * delays; one still failing after the last attempt is logged and kept as
+ * abandoned, to be cancelled by hand.
+ *
+ * Call {@link #flush} or {@link #close()} on shutdown, or
+ * {@link #addShutdownHook()}, so that no authorization is left dangling.
+ * Settings should be made before the queue is first used.
+ */
+public class CancelQueue
+     implements Closeable
+{
+  private final static Logger LOG = LoggerFactory.getLogger(CancelQueue.class);
+
+  /**
+   * An authorization waiting to be cancelled.
+   */
+  public static final class Pending
+  {
+    private final String transactionId;
+    private final long queuedAt = System.currentTimeMillis();
+    private volatile int attempts;
+    private volatile String lastFailure;
+    // Guarded by the Pending itself, so that the next attempt and its claim
+    // are replaced together
+    private ScheduledFuture<?> task;
+    private AtomicBoolean claimed;
+    private final DibsClient client;
+
+    Pending(DibsClient client, String transactionId)
+    {
+      this.client = client;
+      this.transactionId = transactionId;
+    }
+
+    public String transactionId()
+    {
+      return transactionId;
+    }
+
+    /**
+     * @return the time the cancel was queued, in epoch milliseconds
+     */
+    public long queuedAt()
+    {
+      return queuedAt;
+    }
+
+    public int attempts()
+    {
+      return attempts;
+    }
+
+    /**
+     * @return why the latest attempt failed, or null
+     */
+    public String lastFailure()
+    {
+      return lastFailure;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "cancel " + transactionId + " (" + attempts + " attempts" + (lastFailure != null ? ", " + lastFailure : "") + ")";
+    }
+  }
+
+  private final Map<String, Pending> outstanding = new ConcurrentHashMap<>();
+  private final Map<String, Pending> abandoned = new ConcurrentHashMap<>();
+  private final LongAdder completed = new LongAdder();
+
+  private volatile int concurrency = 2;
+  private volatile int maxAttempts = 6;
+  private volatile long retryDelayMillis = 1000;
+  private volatile long maxRetryDelayMillis = 60000;
+  private volatile long closeTimeoutMillis = 30000;
+
+  private ScheduledThreadPoolExecutor executor;
+  private volatile boolean flushing;
+  private volatile boolean closed;
+
+  /**
+   * @param threads the cancels sent at a time (default 2)
+   */
+  public CancelQueue concurrency(int threads)
+  {
+    if (threads < 1)
+      throw new IllegalArgumentException("concurrency: " + threads);
+    this.concurrency = threads;
+    return this;
+  }
+
+  /**
+   * @param attempts the attempts made at a cancel before giving up
+   *        (default 6)
+   */
+  public CancelQueue maxAttempts(int attempts)
+  {
+    if (attempts < 1)
+      throw new IllegalArgumentException("attempts: " + attempts);
+    this.maxAttempts = attempts;
+    return this;
+  }
+
+  /**
+   * @param millis the wait before the first retry, doubled for every
+   *        following one (default 1000)
+   * @param maxMillis the longest wait between retries (default 60000)
+   */
+  public CancelQueue retryDelay(long millis, long maxMillis)
+  {
+    this.retryDelayMillis = millis;
+    this.maxRetryDelayMillis = maxMillis;
+    return this;
+  }
+
+  /**
+   * @param millis how long {@link #close()} waits for outstanding cancels
+   *        (default 30000)
+   */
+  public CancelQueue closeTimeoutMillis(long millis)
+  {
+    this.closeTimeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * @return the cancels not yet done, oldest first
+   */
+  public List<Pending> getOutstanding()
+  {
+    return sorted(outstanding);
+  }
+
+  public int getOutstandingCount()
+  {
+    return outstanding.size();
+  }
+
+  /**
+   * @return the cancels given up on, which must be done by hand
+   */
+  public List<Pending> getAbandoned()
+  {
+    return sorted(abandoned);
+  }
+
+  public long getCompletedCount()
+  {
+    return completed.sum();
+  }
+
+  /**
+   * Queues the cancel of an authorization, to be sent through the client.
+   */
+  void submit(DibsClient client, String transactionId)
+  {
+    Pending p = new Pending(client, transactionId);
+    if (closed) {
+      // Too late for the background; try once right away
+      LOG.warn("Cancel queue closed; cancelling {} on the caller's thread", transactionId);
+      if (!attempt(p))
+        abandon(p);
+      return;
+    }
+    outstanding.put(transactionId, p);
+    schedule(p, 0);
+  }
+
+  /**
+   * Sends the outstanding cancels now, without waiting out retry delays,
+   * and waits for them to be done.
+   *
+   * @return whether none are outstanding
+   */
+  public boolean flush(long timeout, TimeUnit unit)
+    throws InterruptedException
+  {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    flushing = true;
+    try {
+      // Only an attempt not yet started is moved up; a running one
+      // reschedules itself, without delay while flushing
+      for (Pending p : outstanding.values())
+        hurry(p);
+      synchronized (outstanding) {
+        while (!outstanding.isEmpty()) {
+          long left = deadline - System.nanoTime();
+          if (left <= 0)
+            return false;
+          TimeUnit.NANOSECONDS.timedWait(outstanding, left);
+        }
+      }
+      return true;
+    }
+    finally {
+      flushing = false;
+    }
+  }
+
+  /**
+   * Flushes the queue, within the close timeout, and stops it. Cancels
+   * still outstanding are logged and kept as abandoned.
+   */
+  @Override
+  public void close()
+  {
+    if (closed)
+      return;
+    try {
+      if (!flush(closeTimeoutMillis, TimeUnit.MILLISECONDS))
+        LOG.error("{} authorization cancels still outstanding at close", outstanding.size());
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    closed = true;
+    synchronized (this) {
+      if (executor != null)
+        executor.shutdownNow();
+    }
+    for (Pending p : new ArrayList<>(outstanding.values()))
+      abandon(p);
+  }
+
+  /**
+   * Has the queue closed, and so flushed, when the JVM shuts down.
+   */
+  public void addShutdownHook()
+  {
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        close();
+      }
+    }, "dibs-cancel-flush"));
+  }
+
+  private void schedule(final Pending p, long delayMillis)
+  {
+    try {
+      // An attempt failing at once reschedules itself, which must not be
+      // overwritten here by the attempt it replaces
+      synchronized (p) {
+        AtomicBoolean claimed = new AtomicBoolean();
+        p.task = executor().schedule(task(p, claimed), delayMillis, TimeUnit.MILLISECONDS);
+        p.claimed = claimed;
+      }
+    }
+    catch (RejectedExecutionException ex) {
+      // Closed meanwhile
+      abandon(p);
+    }
+  }
+
+  private Runnable task(final Pending p, final AtomicBoolean claimed)
+  {
+    return new Runnable() {
+      @Override
+      public void run()
+      {
+        if (!claimed.compareAndSet(false, true))
+          return;
+        if (attempt(p))
+          done(p);
+        else if (p.attempts >= maxAttempts)
+          abandon(p);
+        else if (!closed) {
+          schedule(p, flushing ? 0 : retryDelay(p.attempts));
+          // A flush begun meanwhile may have missed the new attempt
+          if (flushing)
+            hurry(p);
+        }
+      }
+    };
+  }
+
+  /**
+   * Moves the next attempt up to now, unless it has started.
+   */
+  private void hurry(Pending p)
+  {
+    synchronized (p) {
+      AtomicBoolean claimed = p.claimed;
+      if (claimed != null && claimed.compareAndSet(false, true)) {
+        p.task.cancel(false);
+        schedule(p, 0);
+      }
+    }
+  }
+
+  /**
+   * @return whether the authorization is no longer outstanding
+   */
+  private boolean attempt(Pending p)
+  {
+    p.attempts++;
+    try {
+      Reply reply = p.client.cancelAuthorization(p.transactionId);
+      if (reply.accepted())
+        return true;
+      if ("1".equals(reply.reason)) {
+        // Communication problems at DIBS; worth another go
+        p.lastFailure = "reason 1: " + reply.message;
+        return false;
+      }
+      // Nothing more we can do, e.g. it is already cancelled or captured
+      LOG.warn("DIBS refused to cancel authorization {}: {} ({})", p.transactionId, reply.message, reply.reason);
+      return true;
+    }
+    catch (DibsException | RuntimeException ex) {
+      p.lastFailure = ex.getMessage();
+      LOG.debug("Cancelling authorization {} failed (attempt {})", p.transactionId, p.attempts, ex);
+      return false;
+    }
+  }
+
+  private long retryDelay(int attempts)
+  {
+    long delay = retryDelayMillis << Math.min(attempts - 1, 20);
+    return Math.min(delay, maxRetryDelayMillis);
+  }
+
+  private void done(Pending p)
+  {
+    completed.increment();
+    remove(p);
+  }
+
+  private void abandon(Pending p)
+  {
+    LOG.error("Gave up cancelling authorization {} after {} attempts: {}", p.transactionId, p.attempts, p.lastFailure);
+    abandoned.put(p.transactionId, p);
+    remove(p);
+  }
+
+  private void remove(Pending p)
+  {
+    synchronized (outstanding) {
+      outstanding.remove(p.transactionId);
+      outstanding.notifyAll();
+    }
+  }
+
+  private synchronized ScheduledThreadPoolExecutor executor()
+  {
+    if (executor == null) {
+      executor = new ScheduledThreadPoolExecutor(concurrency, new DaemonThreadFactory("dibs-cancel"));
+      executor.setRemoveOnCancelPolicy(true);
+    }
+    return executor;
+  }
+
+  private static List<Pending> sorted(Map<String, Pending> pending)
+  {
+    List<Pending> res = new ArrayList<>(pending.values());
+    Collections.sort(res, (a, b) -> Long.compare(a.queuedAt, b.queuedAt));
+    return Collections.unmodifiableList(res);
+  }
+}
@@ -0,0 +1,189 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the outcomes of the last calls to one endpoint and stops calls
+ * while too many of them fail or are slow. After a while open, a few
+ * probe calls are let through; if they all succeed the breaker closes,
+ * otherwise it opens again. A call only counts in the state it was
+ * admitted under: one admitted while closed which ends after the breaker
+ * opened, or went half open, is ignored.
+ *
+ * Thresholds are taken from the owning {@link EndpointIsolation}.
+ */
+public final class CircuitBreaker
+{
+  public enum State
+  {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String endpoint;
+  private final EndpointIsolation settings;
+
+  // Outcomes of the last calls while closed: bit 0 failed, bit 1 slow
+  private byte[] window;
+  private int next;
+  private int recorded;
+  private int failures;
+  private int slow;
+
+  private State state = State.CLOSED;
+  // Bumped by every change of state
+  private long generation;
+  private long openedAt;
+  private int probesStarted;
+  private int probesSucceeded;
+
+  CircuitBreaker(String endpoint, EndpointIsolation settings)
+  {
+    this.endpoint = endpoint;
+    this.settings = settings;
+    this.window = new byte[settings.getWindow()];
+  }
+
+  public String getEndpoint()
+  {
+    return endpoint;
+  }
+
+  public synchronized State getState()
+  {
+    if (state == State.OPEN && openElapsed())
+      return State.HALF_OPEN;
+    return state;
+  }
+
+  /**
+   * @return the share of failed calls in the current window, 0 to 1
+   */
+  public synchronized double getFailureRate()
+  {
+    return recorded == 0 ? 0 : (double)failures / recorded;
+  }
+
+  /**
+   * @return the share of slow calls in the current window, 0 to 1
+   */
+  public synchronized double getSlowCallRate()
+  {
+    return recorded == 0 ? 0 : (double)slow / recorded;
+  }
+
+  /**
+   * Closes the breaker and forgets all outcomes.
+   */
+  public synchronized void reset()
+  {
+    close();
+  }
+
+  /**
+   * @return the generation the call is admitted under, or -1 if it may not
+   *         go ahead; every admitted call must be followed by
+   *         {@link #record} or {@link #cancel}
+   */
+  synchronized long tryAcquire()
+  {
+    if (state == State.CLOSED)
+      return generation;
+    if (state == State.OPEN) {
+      if (!openElapsed())
+        return -1;
+      state = State.HALF_OPEN;
+      generation++;
+      probesStarted = 0;
+      probesSucceeded = 0;
+    }
+    // Half open: let a limited number of probes through
+    if (probesStarted >= settings.getHalfOpenProbes())
+      return -1;
+    probesStarted++;
+    return generation;
+  }
+
+  /**
+   * @param admitted the generation the call was admitted under
+   */
+  synchronized void record(long admitted, boolean failed, long nanos)
+  {
+    if (admitted != generation)
+      return;
+    boolean isSlow = nanos >= TimeUnit.MILLISECONDS.toNanos(settings.getSlowCallMillis());
+    switch (state) {
+      case CLOSED:
+        add(failed, isSlow);
+        if (recorded >= settings.getMinimumCalls()
+            && (getFailureRate() >= settings.getFailureRateThreshold()
+                || getSlowCallRate() >= settings.getSlowCallRateThreshold()))
+          open();
+        break;
+      case HALF_OPEN:
+        if (failed || isSlow)
+          open();
+        else if (++probesSucceeded >= settings.getHalfOpenProbes())
+          close();
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Forgets a call which was never made, freeing its probe if half open.
+   *
+   * @param admitted the generation the call was admitted under
+   */
+  synchronized void cancel(long admitted)
+  {
+    if (admitted == generation && state == State.HALF_OPEN)
+      probesStarted--;
+  }
+
+  private void add(boolean failed, boolean isSlow)
+  {
+    if (recorded == window.length) {
+      byte old = window[next];
+      failures -= old & 1;
+      slow -= (old >> 1) & 1;
+    }
+    else
+      recorded++;
+    window[next] = (byte)((failed ? 1 : 0) | (isSlow ? 2 : 0));
+    next = (next + 1) % window.length;
+    if (failed)
+      failures++;
+    if (isSlow)
+      slow++;
+  }
+
+  private void open()
+  {
+    state = State.OPEN;
+    generation++;
+    openedAt = System.nanoTime();
+  }
+
+  private void close()
+  {
+    state = State.CLOSED;
+    generation++;
+    window = new byte[settings.getWindow()];
+    next = 0;
+    recorded = 0;
+    failures = 0;
+    slow = 0;
+  }
+
+  private boolean openElapsed()
+  {
+    return System.nanoTime() - openedAt >= TimeUnit.MILLISECONDS.toNanos(settings.getOpenMillis());
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return endpoint + ": " + getState() + String.format(" (failures %.0f%%, slow %.0f%%)", getFailureRate() * 100, getSlowCallRate() * 100);
+  }
+}
@@ -0,0 +1,28 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the background threads of the client and keeps them from holding
+ * the JVM alive.
+ */
+class DaemonThreadFactory
+     implements ThreadFactory
+{
+  private final String prefix;
+  private final AtomicInteger count = new AtomicInteger();
+
+  DaemonThreadFactory(String prefix)
+  {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public Thread newThread(Runnable r)
+  {
+    Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+}
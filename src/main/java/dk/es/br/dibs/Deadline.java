@@ -0,0 +1,36 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an operation must be done, on the
+ * {@link System#nanoTime()} clock.
+ */
+final class Deadline
+{
+  private final long nanos;
+
+  private Deadline(long nanos)
+  {
+    this.nanos = nanos;
+  }
+
+  static Deadline after(long timeout, TimeUnit unit)
+  {
+    return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  boolean expired()
+  {
+    return nanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * @return the time left, rounded up to a whole millisecond; 0 once expired
+   */
+  long remainingMillis()
+  {
+    long left = nanos - System.nanoTime();
+    return left <= 0 ? 0 : (left + 999999) / 1000000;
+  }
+}
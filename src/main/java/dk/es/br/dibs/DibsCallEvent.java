@@ -0,0 +1,144 @@
+package dk.es.br.dibs;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes one completed request to the DIBS server. Card tickets and
+ * checksums are masked in everything an event exposes. The text forms of
+ * the parameters and the reply are only built when asked for.
+ */
+public final class DibsCallEvent
+{
+  private final long timestamp;
+  private final String endpoint;
+  private final String method;
+  private final Map<String, ?> params;
+  private final CharSequence reply;
+  private final String status;
+  private final String reason;
+  private final String actionCode;
+  private final Exception failure;
+  private final long durationNanos;
+
+  private Map<String, String> redactedParams;
+
+  DibsCallEvent(String endpoint, String method, Map<String, ?> params, CharSequence reply,
+                String status, String reason, String actionCode,
+                Exception failure, long durationNanos)
+  {
+    this.timestamp = System.currentTimeMillis();
+    this.endpoint = endpoint;
+    this.method = method;
+    this.params = params;
+    this.reply = reply;
+    this.status = status;
+    this.reason = reason;
+    this.actionCode = actionCode;
+    this.failure = failure;
+    this.durationNanos = durationNanos;
+  }
+
+  /**
+   * @return when the call completed, in milliseconds since the epoch
+   */
+  public long timestamp()
+  {
+    return timestamp;
+  }
+
+  /**
+   * @return the path called, with any ticket or merchant in it replaced by a
+   *         placeholder, e.g. <code>/api/card/v1/tickets/{ticket}</code>
+   */
+  public String endpoint()
+  {
+    return endpoint;
+  }
+
+  public String method()
+  {
+    return method;
+  }
+
+  /**
+   * @return the request parameters, tickets and checksums masked
+   */
+  public synchronized Map<String, String> params()
+  {
+    if (redactedParams == null)
+      redactedParams = Collections.unmodifiableMap(Redaction.params(params));
+    return redactedParams;
+  }
+
+  /**
+   * @return the reply body, tickets masked, or null if there was none
+   */
+  public String reply()
+  {
+    if (reply == null)
+      return null;
+    return reply.length() > 0 && reply.charAt(0) == '{' ? Redaction.json(reply) : Redaction.reply(reply);
+  }
+
+  /**
+   * @return the DIBS "status" of a form reply, e.g. ACCEPTED or DECLINED
+   */
+  public String status()
+  {
+    return status;
+  }
+
+  /**
+   * @return the DIBS "reason" of a form reply
+   */
+  public String reason()
+  {
+    return reason;
+  }
+
+  /**
+   * @return the DIBS "actioncode" of a form reply
+   */
+  public String actionCode()
+  {
+    return actionCode;
+  }
+
+  /**
+   * @return the exception which failed the call, or null if a reply was
+   *         received
+   */
+  public Exception failure()
+  {
+    return failure;
+  }
+
+  public boolean failed()
+  {
+    return failure != null;
+  }
+
+  public long durationNanos()
+  {
+    return durationNanos;
+  }
+
+  public long durationMillis()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder(256);
+    sb.append("DIBS call: ").append(method).append(' ').append(endpoint).append(' ').append(params());
+    if (failure != null)
+      sb.append(" failed: ").append(Redaction.text(failure.toString()));
+    else
+      sb.append(": ").append(reply());
+    return sb.append(" (").append(durationMillis()).append("ms)").toString();
+  }
+}
@@ -2,30 +2,28 @@ package dk.es.br.dibs;
 
 import java.io.*;
 import java.net.*;
-import java.security.KeyManagementException;
-import java.security.SecureRandom;
-import java.security.Security;
-
-import com.sun.net.ssl.internal.ssl.Provider;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
+import dk.es.br.dibs.ResponseParser.Reply;
 
 /**
  * This class serves as a payment service interface to the DIBS server. It has
@@ -43,30 +41,402 @@ import javax.net.ssl.SSLContext;
 public class DibsClient
 {
   private final static Logger LOG = LoggerFactory.getLogger(DibsClient.class);
-  private final static SSLContext sslContext = initSSL();
-  private final static Pattern EXPECTED_FEE_PATTERN = Pattern.compile(".*\"fee\"\\s*:\\s*(\\d+)\\.?\\d*.*");
-  private final static Pattern SURCHARGEABILITY_REASON_PATTERN = Pattern.compile(".*\"reason\"\\s*:\\s*\"(\\w+)\".*");
 
-  static
+  private static DibsTransport defaultTransport;
+
+  private volatile Configured configured;
+  private final DibsTransport transport;
+  private volatile FeeQuoteCache feeQuoteCache;
+  private volatile TicketMetadataCache ticketMetadataCache;
+  private final List<DibsEventListener> listeners = new CopyOnWriteArrayList<>();
+  private volatile double logSampleRate = 1.0;
+  private volatile long operationTimeoutNanos;
+  private volatile HedgePolicy hedgePolicy;
+  private volatile EndpointIsolation isolation;
+  private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+  private volatile WithdrawJournal withdrawJournal;
+  private CancelQueue cancelQueue;
+  private final ThreadLocal<Deadline> deadline = new ThreadLocal<>();
+
+  /**
+   * Creates a client on the transport shared by all clients created this way.
+   */
+  public DibsClient(DibsConfig cfg)
   {
-    try
+      this(cfg, defaultTransport());
+  }
+
+  public DibsClient(DibsConfig cfg, DibsTransport transport)
+  {
+      this.configured = new Configured(cfg);
+      this.transport = transport;
+  }
+
+  /**
+   * What is worked out from a configuration, replaced as a whole when the
+   * configuration is.
+   */
+  private static final class Configured
+  {
+    private final DibsConfig cfg;
+    private final String authorization;
+    private volatile DibsSigner signer;
+    private volatile RequestTemplates templates;
+
+    Configured(DibsConfig cfg)
     {
-      System.setProperty("java.protocol.handler.pkgs", "com.sun.net.ssl.internal.www.protocol");
-      Provider provider = new Provider();
-      Security.addProvider(provider);
-      LOG.info("Added com.sun.net.ssl.internal.www.protocol security provider");
+      this.cfg = cfg;
+      String userpass = cfg.getDibsUser() + ":" + cfg.getDibsPassword();
+      this.authorization = "Basic " + new String(Base64.encodeBase64(userpass.getBytes()));
     }
-    catch (Exception e)
+
+    /**
+     * The templates of the configuration, made on first use.
+     */
+    RequestTemplates templates()
     {
-      LOG.error("Error setting protocol handlers needed by DIBS: " + e);
+      RequestTemplates t = templates;
+      if (t == null)
+        templates = t = new RequestTemplates(cfg);
+      return t;
     }
+
+    String sign(String src)
+    {
+      DibsSigner s = signer;
+      if (s == null)
+        signer = s = DibsSigner.of(cfg);
+      return s.sign(src);
+    }
+  }
+
+  /**
+   * Has the following requests made with the given configuration, e.g.
+   * when the credentials or keys are rotated. Requests already under way
+   * may still be made with the old one.
+   */
+  public void setConfig(DibsConfig cfg)
+  {
+    this.configured = new Configured(cfg);
   }
 
-  private final DibsConfig cfg;
+  public DibsConfig getConfig()
+  {
+    return configured.cfg;
+  }
 
-  public DibsClient(DibsConfig cfg)
+  /**
+   * Gets ready for the first payment ahead of time: works out what is
+   * derived from the configuration, and has the transport resolve the DIBS
+   * host and open the given number of connections, TLS handshakes
+   * included. Nothing is set up before this or the first request.
+   *
+   * @return the number of connections opened
+   */
+  public int warmUp(int connections)
+    throws DibsException
   {
-      this.cfg = cfg;
+    Configured c = configured;
+    c.templates();
+    if (c.signer == null)
+      c.signer = DibsSigner.of(c.cfg);
+    URL url = dibsUrl("/");
+    try {
+      return transport.warmUp(url, connections);
+    }
+    catch (IOException ex) {
+      throw new DibsException("Warming up connections to " + url.getHost() + " failed", ex);
+    }
+  }
+
+  static synchronized DibsTransport defaultTransport()
+  {
+    if (defaultTransport == null)
+      defaultTransport = new PooledDibsTransport();
+    return defaultTransport;
+  }
+
+  /**
+   * Has fee quotes served from the given cache; null to always ask DIBS.
+   */
+  public void setFeeQuoteCache(FeeQuoteCache feeQuoteCache)
+  {
+    this.feeQuoteCache = feeQuoteCache;
+  }
+
+  public FeeQuoteCache getFeeQuoteCache()
+  {
+    return feeQuoteCache;
+  }
+
+  /**
+   * Has card types and surchargeability reasons served from the given
+   * cache; null to always ask DIBS.
+   */
+  public void setTicketMetadataCache(TicketMetadataCache ticketMetadataCache)
+  {
+    this.ticketMetadataCache = ticketMetadataCache;
+  }
+
+  public TicketMetadataCache getTicketMetadataCache()
+  {
+    return ticketMetadataCache;
+  }
+
+  /**
+   * Has the listener told about every request made by this client.
+   */
+  public void addEventListener(DibsEventListener listener)
+  {
+    listeners.add(listener);
+  }
+
+  public void removeEventListener(DibsEventListener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Sets the fraction of successful requests written to the INFO log, for
+   * high volume runs. Failed requests are always logged. Listeners are not
+   * affected; see {@link DibsEventListener#sampled(DibsEventListener, double)}.
+   *
+   * @param rate 0 to 1, 1 being the default
+   */
+  public void setLogSampleRate(double rate)
+  {
+    this.logSampleRate = rate;
+  }
+
+  /**
+   * Has the read-only lookups of card types, fees and surchargeability
+   * hedged as given; null (the default) to send every request once.
+   */
+  public void setHedgePolicy(HedgePolicy hedgePolicy)
+  {
+    this.hedgePolicy = hedgePolicy;
+  }
+
+  public HedgePolicy getHedgePolicy()
+  {
+    return hedgePolicy;
+  }
+
+  /**
+   * Gives every endpoint a bulkhead and a circuit breaker as given; null
+   * (the default) for none.
+   */
+  public void setEndpointIsolation(EndpointIsolation isolation)
+  {
+    this.isolation = isolation;
+  }
+
+  public EndpointIsolation getEndpointIsolation()
+  {
+    return isolation;
+  }
+
+  /**
+   * Has the authorizations made by {@link #validateCardSubscription}
+   * cancelled by the given queue, which may be shared between clients.
+   */
+  public synchronized void setCancelQueue(CancelQueue cancelQueue)
+  {
+    this.cancelQueue = cancelQueue;
+  }
+
+  /**
+   * @return the queue cancelling the authorizations of card validations,
+   *         created with default settings on first use
+   */
+  public synchronized CancelQueue getCancelQueue()
+  {
+    if (cancelQueue == null)
+      cancelQueue = new CancelQueue();
+    return cancelQueue;
+  }
+
+  /**
+   * Limits the requests in flight to DIBS as given; null (the default)
+   * for no limit.
+   */
+  public void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit)
+  {
+    this.concurrencyLimit = concurrencyLimit;
+  }
+
+  public AdaptiveConcurrencyLimit getConcurrencyLimit()
+  {
+    return concurrencyLimit;
+  }
+
+  /**
+   * Has every withdrawal journalled before it is sent, and its outcome
+   * after, so that those cut short by a crash are known; null (the
+   * default) for no journal. A withdrawal which cannot be journalled is
+   * not sent.
+   */
+  public void setWithdrawJournal(WithdrawJournal journal)
+  {
+    this.withdrawJournal = journal;
+  }
+
+  public WithdrawJournal getWithdrawJournal()
+  {
+    return withdrawJournal;
+  }
+
+  /**
+   * The slots a request holds under the concurrency limit and in its
+   * endpoint's bulkhead, and the deadline bounding both the waits for them
+   * and the request.
+   */
+  private static final class Admission
+  {
+    private final String endpoint;
+    private final AdaptiveConcurrencyLimit limit;
+    private final EndpointIsolation.Compartment compartment;
+    private final long generation;
+    private final Deadline deadline;
+    private final long admitted = System.nanoTime();
+
+    Admission(String endpoint, AdaptiveConcurrencyLimit limit, EndpointIsolation.Compartment compartment, long generation, Deadline deadline)
+    {
+      this.endpoint = endpoint;
+      this.limit = limit;
+      this.compartment = compartment;
+      this.generation = generation;
+      this.deadline = deadline;
+    }
+
+    /**
+     * @param failed whether no answer was had, or DIBS reported
+     *        communication problems
+     */
+    void done(boolean failed)
+    {
+      long nanos = System.nanoTime() - admitted;
+      if (compartment != null)
+        compartment.exit(generation, failed, nanos);
+      if (limit != null)
+        limit.release(endpoint, failed, nanos);
+    }
+
+    /**
+     * @return whether a hedge of the call would find room under the limit
+     *         and in the bulkhead, with the breaker closed
+     */
+    boolean hasSpare()
+    {
+      if (limit != null && limit.getInFlight() >= limit.getLimit())
+        return false;
+      return compartment == null || compartment.hasSpare();
+    }
+
+    /**
+     * Gives back the slots of a call which was never sent, its outcome
+     * saying nothing of DIBS.
+     */
+    void cancel()
+    {
+      if (compartment != null)
+        compartment.cancel(generation);
+      if (limit != null)
+        limit.cancel();
+    }
+  }
+
+  private static final Admission UNLIMITED = new Admission(null, null, null, 0, null);
+
+  /**
+   * Waits for a slot under the concurrency limit and admits the call to
+   * the endpoint, or fails fast. The deadline of the call is taken here,
+   * so the waits and the request share one budget.
+   */
+  private Admission admit(String endpoint)
+    throws DibsException
+  {
+    AdaptiveConcurrencyLimit limit = concurrencyLimit;
+    EndpointIsolation iso = isolation;
+    Deadline d = deadline();
+    if (limit == null && iso == null && d == null)
+      return UNLIMITED;
+
+    if (limit != null)
+      limit.acquire(d);
+    EndpointIsolation.Compartment compartment = null;
+    long generation = 0;
+    if (iso != null) {
+      try {
+        compartment = iso.compartment(endpoint);
+        generation = compartment.enter(d);
+      }
+      catch (DibsException | RuntimeException ex) {
+        if (limit != null)
+          limit.cancel();
+        throw ex;
+      }
+    }
+    return new Admission(endpoint, limit, compartment, generation, d);
+  }
+
+  /**
+   * Bounds the time of every operation, covering all the requests it makes
+   * and any wait for a connection. An operation out of time fails with the
+   * error key {@link DibsException#DEADLINE_EXCEEDED}.
+   *
+   * @param timeout the budget, 0 for none (the default)
+   */
+  public void setOperationTimeout(long timeout, TimeUnit unit)
+  {
+    this.operationTimeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Runs a call making several requests under one deadline.
+   */
+  private <T> T withinDeadline(AsyncDibsClient.Call<T> call)
+    throws DibsException
+  {
+    long timeout = operationTimeoutNanos;
+    if (timeout <= 0 || deadline.get() != null)
+      return call.call();
+
+    deadline.set(Deadline.after(timeout, TimeUnit.NANOSECONDS));
+    try {
+      return call.call();
+    }
+    finally {
+      deadline.remove();
+    }
+  }
+
+  /**
+   * @return the deadline of the current operation, or of a lone request
+   *         if none is running; null if operations have no budget
+   */
+  private Deadline deadline()
+  {
+    Deadline d = deadline.get();
+    if (d != null)
+      return d;
+    long timeout = operationTimeoutNanos;
+    return timeout > 0 ? Deadline.after(timeout, TimeUnit.NANOSECONDS) : null;
+  }
+
+  private DibsRequest request(String method, URL url, byte[] body, boolean auth, Deadline d)
+    throws DibsException
+  {
+    if (d != null && d.expired())
+      throw new DibsException(url.getPath() + ": deadline exceeded before sending", DibsException.DEADLINE_EXCEEDED, (String)null);
+    return new DibsRequest(method, url, body, auth ? basicAuth() : null, d);
+  }
+
+  private static DibsException failure(String message, DibsRequest request, IOException ex)
+  {
+    if (request.hasDeadline() && request.remainingMillis() == 0)
+      return new DibsException(message + ": deadline exceeded", DibsException.DEADLINE_EXCEEDED, ex);
+    return new DibsException(message, ex);
   }
 
   /**
@@ -79,16 +449,13 @@ public class DibsClient
   public void deleteAccount(String accountId)
     throws DibsException
   {
-    // First fill out the message to dibs
-    Map msg = new HashMap();
-    msg.put("merchant", getMerchantId());
-    msg.put("ticket", accountId);
+    Reply result = post(templates().deleteTicket(accountId));
+    if (!result.accepted())
+      throw new DibsException("'" + accountId + "': failed to delete account: " + result.message + " (" + result.reason + ")", result.reason, (String)null);
 
-    // Query the DIBS server
-    Map result = post("/cgi-adm/delticket.cgi", msg, true);
-    String status = (String) result.get("status");
-    if (status == null || !status.equalsIgnoreCase("ACCEPTED"))
-      throw new DibsException("'" + accountId + "': failed to delete account: " + result.get("message") + " (" + result.get("reason") + ")");
+    TicketMetadataCache cache = ticketMetadataCache;
+    if (cache != null)
+      cache.invalidateTicket(accountId);
   }
 
   private enum Iso4217 {
@@ -110,96 +477,81 @@ public class DibsClient
     return dc.code;
   }
 
-  // Experimental. To work on solving card validation issues
+  /**
+   * Experimental. To work on solving card validation issues; see also
+   * {@link ValidationSweep} for validating many tickets.
+   *
+   * @throws DibsException with the DIBS reason as error key if the
+   *         validation failed on DIBS' or the acquirer's side (reasons 1-3),
+   *         so the card could not be judged
+   */
   public DibsResponse validateSubscription(String ticket, String orderid, Map additionalParams)
         throws DibsException
   {
-      Map params = new HashMap();
-      params.put("merchant", getMerchantId());
-      params.put("ticket", ticket);
-      params.put("orderid", orderid);
-      params.put("amount", "100");
-      params.put("currency", "DKK");
-
-      params.put("zero_preauth", "1");
-
-      params.putAll(additionalParams);
+      Reply response = post(templates().zeroPreauth(ticket, orderid, additionalParams != null ? additionalParams : Collections.emptyMap()));
+      if (LOG.isInfoEnabled())
+        LOG.info("Response from card validation using zero_preauth for ticket {}: {}", Redaction.ticket(ticket), Redaction.reply(response.raw()));
 
-      Map response = post("/cgi-ssl/ticket_auth.cgi", params, false);
-      LOG.info("Response from card validation using zero_preauth for ticket {}: {}", ticket, response);
-
-      String status = (String)response.get("status");
-      if("ACCEPTED".equalsIgnoreCase(status))
+      if (response.accepted())
         return new CheckAccountResponse(true, response);
 
-      String reason = (String)response.get("reason");
-      String message = (String)response.get("message");
+      String reason = response.reason;
+      String message = response.message;
 
       switch (new Integer(reason))
       {
         case 1: // Communication problems
         case 2: // Error in the parameters sent to the DIBS server
         case 3: // Error at the acquirer
-          throw new RuntimeException("Account validation failed, " + response);
+          throw new DibsException("Account validation failed, " + Redaction.reply(response.raw()), reason, response.actionCode);
       }
 
-      LOG.info(ticket + " checked negative (" + reason + ": " + message + ")");
+      if (LOG.isInfoEnabled())
+        LOG.info("{} checked negative ({}: {})", Redaction.ticket(ticket), reason, message);
       return new CheckAccountResponse(false, response);
   }
 
   /**
    * Checks the validity of the specified account in the DIBS system. This is
    * done by attempting to authorize a small transaction, and then immediately cancel
-   * the authorization.
+   * the authorization. The cancel is left to the {@link #getCancelQueue() cancel
+   * queue}, so the result is returned as soon as the authorization is answered.
    *
    * @param accountId the account to check
    * @param cents the amount to test authorization against
    * @param currency the currency to test authorization against
    * @return "ok" if there are no problems. Or the response
+   * @throws DibsException with the DIBS reason as error key if the
+   *         validation failed on DIBS' or the acquirer's side (reasons 1-3)
    */
-  public DibsResponse validateCardSubscription(String accountId, int cents, Currency currency)
+  public DibsResponse validateCardSubscription(final String accountId, final int cents, final Currency currency)
     throws DibsException
   {
-    // First fill out the message to dibs - authorize a 1kr transfer
-    Map params = new HashMap();
-
-    params.put("merchant", getMerchantId());
-    params.put("ticket", accountId);
-    params.put("orderid", "checking-account");
-    params.put("amount", String.valueOf(cents));
-    params.put("currency", codeOf(currency));
-
-    // Query the DIBS server
-    Map result = post("/cgi-ssl/ticket_auth.cgi", params, false);
+    return withinDeadline(() -> checkCardSubscription(accountId, cents, currency));
+  }
 
-    String status = (String)result.get("status");
+  private DibsResponse checkCardSubscription(String accountId, int cents, Currency currency)
+    throws DibsException
+  {
+    // Authorize a small amount, e.g. 1kr
+    Reply result = post(templates().authorize(accountId, cents, codeOf(currency)));
 
-    if ("ACCEPTED".equalsIgnoreCase(status))
+    if (result.accepted())
     {
-      // Checked out fine. Now cancel the authorization:
-      String transact = (String)result.get("transact");
-
-      // Change the status to be canceled
-      params = new HashMap();
-      params.put("merchant", getMerchantId());
-      params.put("transact", transact);
-
-      try
-      {
-        post("/cgi-adm/cancel.cgi", params, true);
-      }
-      catch (Exception ex)
-      {
-        LOG.error("Validate Account: Exception trying to cancel authorization " + transact, ex);
-      }
+      // Checked out fine. Now cancel the authorization, in the background
+      if (StringUtils.isEmpty(result.transact))
+        LOG.warn("{} authorized without a transaction; nothing to cancel", Redaction.ticket(accountId));
+      else
+        getCancelQueue().submit(this, result.transact);
 
-      LOG.info(accountId + " checked positive");
+      if (LOG.isInfoEnabled())
+        LOG.info("{} checked positive", Redaction.ticket(accountId));
 
       return new CheckAccountResponse(true, result);
     }
 
-    String reason = (String)result.get("reason");
-    String message = (String)result.get("message");
+    String reason = result.reason;
+    String message = result.message;
 
     // Presume auth failed. Need to see if the cardholder is to blame
     switch (new Integer(reason))
@@ -207,35 +559,123 @@ public class DibsClient
       case 1: // Communication problems
       case 2: // Error in the parameters sent to the DIBS server
       case 3: // Error at the acquirer
-        throw new RuntimeException("Account validation failed, " + result);
+        throw new DibsException("Account validation failed, " + Redaction.reply(result.raw()), reason, result.actionCode);
     }
 
-    LOG.info(accountId + " checked negative (" + reason + ": " + message + ")");
+    if (LOG.isInfoEnabled())
+      LOG.info("{} checked negative ({}: {})", Redaction.ticket(accountId), reason, message);
     return new CheckAccountResponse(false, result);
   }
 
-  private Map post(String path, Map params, boolean auth)
+  /**
+   * Cancels an authorization, for the {@link CancelQueue}.
+   */
+  Reply cancelAuthorization(String transact)
           throws DibsException
   {
-    long t1 = System.currentTimeMillis();
+    return post(templates().cancel(transact));
+  }
+
+  private RequestTemplates templates()
+  {
+    return configured.templates();
+  }
+
+  /**
+   * Posts a request built on one of the {@link #templates()}.
+   */
+  private Reply post(RequestTemplate.Body body)
+          throws DibsException
+  {
+    return post(body, null);
+  }
 
-    String query = prepareAndFormatQuery(params);
-    URL url = dibsUrl(path);
+  /**
+   * @param beforeSend run once the request is admitted, just before it is
+   *        sent; null for nothing. If it fails the request is not sent, and
+   *        counts neither as a failure of the endpoint nor as a drop.
+   */
+  private Reply post(RequestTemplate.Body body, AsyncDibsClient.Call<Void> beforeSend)
+          throws DibsException
+  {
+    long t0 = System.nanoTime();
+
+    RequestTemplate template = body.template();
+    String path = template.endpoint;
+    URL url = template.url;
+    Admission admission = admit(path);
+    callStarted(path, "POST");
+    Reply res = null;
+    Exception failure = null;
+    boolean sent = false;
     try {
-      String response = _post(url, query, auth);
-      Map res = parseResponse(response);
-      LOG.info(path + "["+params+"] : " + res);
+      DibsRequest request = request("POST", url, body.toByteArray(), template.auth, admission.deadline);
+      if (beforeSend != null)
+        beforeSend.call();
+      sent = true;
+      res = Reply.parse(_post(request, template.readOnly ? admission : null));
       return res;
     }
+    catch (DibsException | RuntimeException ex) {
+      failure = ex;
+      throw ex;
+    }
     finally {
-      long t2 = System.currentTimeMillis();
-      LOG.info("DIBS call:" + path + " " + query + ": " + (t2-t1) + "ms");
+      if (sent || beforeSend == null)
+        admission.done(failure != null || (res != null && "1".equals(res.reason)));
+      else
+        admission.cancel();
+      callCompleted(path, "POST", body::params, res != null ? res.raw() : null, res, failure, t0);
+    }
+  }
+
+  private void callStarted(String endpoint, String method)
+  {
+    for (DibsEventListener listener : listeners) {
+      try {
+        listener.callStarted(endpoint, method);
+      }
+      catch (RuntimeException ex) {
+        LOG.warn("Event listener failed", ex);
+      }
     }
   }
 
-  private static URL dibsUrl(String path) {
+  /**
+   * Tells listeners and the log about a request. The event is only built
+   * if anyone is listening.
+   */
+  private void callCompleted(String endpoint, String method, Supplier<? extends Map<String, ?>> params, CharSequence reply, Reply fields, Exception failure, long t0)
+  {
+    boolean log = LOG.isInfoEnabled();
+    if (listeners.isEmpty() && !log)
+      return;
+
+    DibsCallEvent event = new DibsCallEvent(endpoint, method, params.get(), reply,
+                                            fields != null ? fields.status : null,
+                                            fields != null ? fields.reason : null,
+                                            fields != null ? fields.actionCode : null,
+                                            failure, System.nanoTime() - t0);
+    for (DibsEventListener listener : listeners) {
       try {
-          return new URL(null, "https://payment.architrade.com" + path, new sun.net.www.protocol.https.Handler());
+        listener.callCompleted(event);
+      }
+      catch (RuntimeException ex) {
+        LOG.warn("Event listener failed", ex);
+      }
+    }
+
+    double rate = logSampleRate;
+    if (log && (failure != null || rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate))
+      LOG.info("{}", event);
+  }
+
+  private URL dibsUrl(String path) {
+      String base = configured.cfg.getBaseUrl();
+      if (base.endsWith("/"))
+          base = base.substring(0, base.length() - 1);
+      try {
+          return new URL(base + path);
       } catch (MalformedURLException ex) {
           throw new IllegalArgumentException(path, ex);
       }
@@ -278,13 +718,16 @@ public class DibsClient
       throw new DibsException("Cannot withdraw kr: " + amount);
 
     long t1 = System.currentTimeMillis();
-    LOG.info("Withdraw " + amount + " from card account " + accountId + ", orderId " + orderId + ", using payment path " + endpoint);
+    boolean log = LOG.isInfoEnabled();
+    if (log)
+      LOG.info("Withdraw {} from card account {}, orderId {}, using payment path {}", amount, Redaction.ticket(accountId), orderId, endpoint);
     DibsResponse<Payment> response = withdrawCents(accountId, orderId, cents, currency, chargeCardFee, endpoint);
-    Payment payment = response.result();
-    Long transactionId = payment.transactionId();
-    BigDecimal feeAmount = payment.feeAmount();
-    long t2 = System.currentTimeMillis();
-    LOG.info("Withdrew " + amount + " from card account " + accountId + ", orderId " + orderId + ": transaction " + transactionId + ", fee reported by Dibs: " + feeAmount + " (" + (t2-t1) + "ms)");
+    if (log) {
+      Payment payment = response.result();
+      long t2 = System.currentTimeMillis();
+      LOG.info("Withdrew {} from card account {}, orderId {}: transaction {}, fee reported by Dibs: {} ({}ms)",
+               amount, Redaction.ticket(accountId), orderId, payment.transactionId(), payment.feeAmount(), t2 - t1);
+    }
     return response;
   }
 
@@ -306,42 +749,50 @@ public class DibsClient
                                         String endpointPath /* "/cgi-ssl/ticket_auth.cgi" */)
     throws DibsException
   {
-    // First fill out the message to dibs
-    Map msg = new HashMap();
-    msg.put("merchant", getMerchantId());
-    msg.put("ticket", accountId);
-    msg.put("orderid", orderId);
-    msg.put("amount", cents);
-    msg.put("currency", codeOf(currency));
-    msg.put("capturenow", "yes");
-    msg.put("uniqueoid", "yes");
-    msg.put("fullreply", "yes");
-    msg.put("mitType", "UCOF");
+    String currencyCode = codeOf(currency);
+    // The signature, the body and the journal must agree on the merchant
+    final Configured c = configured;
+    final String merchantId = c.cfg.getMerchantId();
 
     // cf. http://tech.dibspayment.com/D2/FlexWin/API/MD5
-    String md5key = md5of("merchant=" + getMerchantId() + "&orderid=" + orderId + "&ticket=" + accountId + "&currency=" + codeOf(currency) + "&amount=" + cents);
-    msg.put("md5key", md5key);
-
-    if (isTesting())
-      msg.put("test", "yes");
-
-    if (chargeCardFee)
-      msg.put("calcfee", "yes");
+    String md5key = c.sign("merchant=" + merchantId + "&orderid=" + orderId + "&ticket=" + accountId + "&currency=" + currencyCode + "&amount=" + cents);
+
+    // Journalled only once admitted, as one rejected before sending is not in doubt
+    final WithdrawJournal journal = withdrawJournal;
+    AsyncDibsClient.Call<Void> journalIntent = null;
+    if (journal != null) {
+      journalIntent = () -> {
+        try {
+          journal.intent(merchantId, orderId, accountId, cents, currencyCode);
+          return null;
+        }
+        catch (IOException | IllegalArgumentException ex) {
+          throw new DibsException("Withdrawal of order " + orderId + " not sent, as it could not be journalled", ex);
+        }
+      };
+    }
 
-    // Query the DIBS server
-    Map result = post(endpointPath, msg, false);
-    LOG.info("DIBS response: " + (result != null ? result.toString() : "null"));
+    // Query the DIBS server; without an answer the withdrawal stays in doubt
+    Reply result = post(c.templates().withdraw(endpointPath, accountId, orderId, cents, currencyCode, md5key, chargeCardFee), journalIntent);
 
-    String status = (String)result.get("status");
-    String message = (String)result.get("message");
+    String status = result.status;
+    if (journal != null) {
+      try {
+        journal.outcome(orderId, "ACCEPTED".equals(status), result.transact, result.reason);
+      }
+      catch (IOException | RuntimeException ex) {
+        LOG.error("Could not journal the outcome of order {}: {}", orderId, status, ex);
+      }
+    }
+    String message = result.message;
     if (!"ACCEPTED".equals(status))
-      throw new DibsException("Withdrawal " + status + ": " + message, (String)result.get("reason"), (String)result.get("actioncode"));
+      throw new DibsException("Withdrawal " + status + ": " + message, result.reason, result.actionCode);
 
-    String transact = (String)result.get("transact");
+    String transact = result.transact;
     if (StringUtils.isEmpty(transact))
-      throw new DibsException("Withdrawal " + status + " without transaction: " + message, (String)result.get("reason"), (String)result.get("actioncode"));
+      throw new DibsException("Withdrawal " + status + " without transaction: " + message, result.reason, result.actionCode);
 
-    String reportedFee = (String)result.get("fee");
+    String reportedFee = result.fee;
     Long feeCents = reportedFee != null
                   ? Long.valueOf(reportedFee)
                   : new Long(0);
@@ -350,21 +801,21 @@ public class DibsClient
     final Long transactionId = Long.valueOf(transact);
 
     // TODO: From DIBS, does severity != null => suspect is true ?
-    String suspect = (String)result.get("suspect");
+    String suspect = result.suspect;
     final Boolean isSuspect = suspect != null
                       ? Boolean.valueOf(suspect)
                       : false;
 
-    String severity = (String)result.get("severity");
+    String severity = result.severity;
     final Integer suspectSeverity = suspect != null
                             ? Integer.valueOf(severity)
                             : null;
 
-    final String orderNumber = (String)result.get("orderid");
+    final String orderNumber = result.orderId;
 
-    final String cardType = (String)result.get("cardtypeCD");
-    final String cardGroup = (String)result.get("privatebusiness");
-    final String cardRegion = (String)result.get("surchargeregion");
+    final String cardType = result.cardType;
+    final String cardGroup = result.cardGroup;
+    final String cardRegion = result.cardRegion;
 
     return new DibsResponse<Payment>() {
       @Override
@@ -409,23 +860,27 @@ public class DibsClient
    *
    * @param transactionId the transaction to determine the card type for
    */
-  public String getCardType(Long transactionId)
+  public String getCardType(final Long transactionId)
           throws DibsException
   {
-    // First fill out the message to dibs
-    Map msg = new HashMap();
-    msg.put("merchant", getMerchantId());
-    msg.put("transact", transactionId);
+    TicketMetadataCache cache = ticketMetadataCache;
+    if (cache == null)
+      return fetchCardType(transactionId);
+    return cache.cardType(transactionId, () -> fetchCardType(transactionId));
+  }
 
+  private String fetchCardType(Long transactionId)
+          throws DibsException
+  {
     // Query the DIBS server
-    Map res = post("/cardtype.pml", msg, true);
+    Reply res = post(templates().cardType(transactionId));
 
     // Check that the transaction was executed properly.
     // If the card type is not recognized, "0" is returned
-    String arg1 = (String)res.get("1");
+    String arg1 = res.first;
 
     if ("0".equals(arg1)) {
-      LOG.info(transactionId + ": card type not recognized");
+      LOG.info("{}: card type not recognized", transactionId);
       return null;
     }
 
@@ -433,142 +888,264 @@ public class DibsClient
     return arg1;
   }
 
+  /**
+   * Makes a cheap read-only request, a card type lookup of no transaction,
+   * to keep a connection in use. The reply is ignored. It goes straight to
+   * the transport, unseen by listeners, admission and circuit breakers.
+   */
+  void ping()
+          throws DibsException
+  {
+    RequestTemplate.Body body = templates().cardType(null);
+    RequestTemplate template = body.template();
+    DibsRequest request = request("POST", template.url, body.toByteArray(), template.auth, deadline());
+    try {
+      transport.execute(request);
+    }
+    catch (IOException ex) {
+      throw failure("keep-alive request failed", request, ex);
+    }
+  }
+
   private String getMerchantId()
   {
-    return cfg.getMerchantId();
+    return configured.cfg.getMerchantId();
   }
 
   private String basicAuth()
   {
-    String dibsUser = cfg.getDibsUser();
-    String dibsPass = cfg.getDibsPassword();
-    String userpass = dibsUser + ":" + dibsPass;
-    return "Basic " + new String(Base64.encodeBase64(userpass.getBytes()));
+    return configured.authorization;
   }
 
-  public String surchargeabilityReason(String ticket)
+  public String surchargeabilityReason(final String ticket)
+      throws DibsException
+  {
+    TicketMetadataCache cache = ticketMetadataCache;
+    if (cache == null)
+      return fetchSurchargeabilityReason(ticket);
+    return cache.surchargeabilityReason(ticket, () -> fetchSurchargeabilityReason(ticket));
+  }
+
+  /**
+   * Loads the surchargeability reasons of the given tickets into the ticket
+   * metadata cache, skipping those already there. Tickets which cannot be
+   * looked up are counted as failed in the returned run.
+   *
+   * @param concurrency the number of lookups in flight at a time
+   */
+  public BatchRun prefetchSurchargeability(Iterable<String> tickets, int concurrency)
+  {
+    final TicketMetadataCache cache = ticketMetadataCache;
+    if (cache == null)
+      throw new IllegalStateException("no ticket metadata cache");
+
+    return BatchRun.start("dibs-prefetch", tickets.iterator(), concurrency, 0, (String ticket) -> {
+      if (!cache.hasSurchargeabilityReason(ticket))
+        surchargeabilityReason(ticket);
+    });
+  }
+
+  private String fetchSurchargeabilityReason(String ticket)
       throws DibsException
   {
     String path = "/api/card/v1/tickets/" + ticket;
-    String response = _get(dibsUrl(path), false);
+    CharSequence response = _get("/api/card/v1/tickets/{ticket}", dibsUrl(path), () -> Collections.singletonMap("ticket", ticket), false);
 
-    return parseSurchargeabilityResponse(response);
+    return readSurchargeabilityReason(response);
   }
 
+  /**
+   * Picks the top level "reason" member of a card ticket response.
+   */
   public static String parseSurchargeabilityResponse(String response)
   {
-    Matcher matcher = SURCHARGEABILITY_REASON_PATTERN.matcher(response);
-    if (!matcher.matches())
+    return readSurchargeabilityReason(response);
+  }
+
+  private static String readSurchargeabilityReason(CharSequence response)
+  {
+    String reason = null;
+    try {
+      JsonReader json = new JsonReader(response);
+      json.beginObject();
+      while (json.hasNext()) {
+        if (json.nextNameIs("reason") && json.peek() == JsonReader.Token.STRING)
+          reason = json.nextString();
+        else
+          json.skipValue();
+      }
+      json.endObject();
+    }
+    catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Unknown response format. Response was: " + response, ex);
+    }
+    if (reason == null || reason.isEmpty())
       throw new IllegalArgumentException("Unknown response format. Response was: " + response);
 
-    return matcher.group(1);
+    return reason;
   }
 
   public int expectedFeeCents(String ticket, int amountCents, Currency currency)
       throws DibsException
   {
-    String path = "/api/fee/v1/subscribers/" + getMerchantId() + "/best";
+    return feeQuote(ticket, amountCents, currency).feeCents();
+  }
 
-    Map<String, String> params =  new HashMap<>();
-    params.put("amount", Integer.toString(amountCents));
-    params.put("currency", codeOf(currency));
-    params.put("test", Boolean.toString(isTesting()));
-    params.put("ticket", ticket);
+  /**
+   * Asks DIBS for the fee of charging the given amount to a card ticket.
+   */
+  public FeeQuote feeQuote(final String ticket, final int amountCents, final Currency currency)
+      throws DibsException
+  {
+    FeeQuoteCache cache = feeQuoteCache;
+    if (cache == null)
+      return fetchFeeQuote(ticket, amountCents, currency);
+    return cache.get(getMerchantId(), ticket, amountCents, currency, isTesting(),
+                     () -> fetchFeeQuote(ticket, amountCents, currency));
+  }
 
-    String response = _get(dibsUrl(path + "?" + formatQuery(params)), false);
+  private FeeQuote fetchFeeQuote(String ticket, int amountCents, Currency currency)
+      throws DibsException
+  {
+    RequestTemplate.Body query = templates().fee(ticket, amountCents, codeOf(currency));
+    URL url;
+    try {
+      url = query.queryUrl();
+    }
+    catch (MalformedURLException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+    CharSequence response = _get(RequestTemplates.FEE, url, query::params, false);
 
-    return parseFeeResponse(response);
+    return readFeeQuote(response);
   }
 
   public static int parseFeeResponse(String response)
   {
-    Matcher matcher = EXPECTED_FEE_PATTERN.matcher(response);
-    if (!matcher.matches())
+    try {
+      return parseFeeQuote(response).feeCents();
+    }
+    catch (DibsException ex) {
+      throw new IllegalArgumentException("Unrecognised response format. Response was: " + response, ex);
+    }
+  }
+
+  /**
+   * Reads the top level "agreement", "fee" and "amount" members of a fee
+   * response. Members nested deeper are ignored.
+   */
+  public static FeeQuote parseFeeQuote(String response)
+  {
+    return readFeeQuote(response);
+  }
+
+  private static FeeQuote readFeeQuote(CharSequence response)
+  {
+    Long agreement = null;
+    BigDecimal fee = null;
+    BigDecimal amount = null;
+    try {
+      JsonReader json = new JsonReader(response);
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if (json.peek() != JsonReader.Token.NUMBER)
+          json.skipValue();
+        else if (name.equals("fee"))
+          fee = new BigDecimal(json.nextNumber());
+        else if (name.equals("amount"))
+          amount = new BigDecimal(json.nextNumber());
+        else if (name.equals("agreement"))
+          agreement = new BigDecimal(json.nextNumber()).longValueExact();
+        else
+          json.skipValue();
+      }
+      json.endObject();
+    }
+    catch (IllegalArgumentException | ArithmeticException ex) {
+      throw new IllegalArgumentException("Unrecognised response format. Response was: " + response, ex);
+    }
+    if (fee == null || fee.signum() < 0)
       throw new IllegalArgumentException("Unrecognised response format. Response was: " + response);
-    return Integer.parseInt(matcher.group(1));
+
+    return new FeeQuote(agreement, fee, amount);
   }
 
-  private String _get(URL url, boolean auth)
+  private CharSequence _get(String endpoint, URL url, Supplier<? extends Map<String, ?>> params, boolean auth)
       throws DibsException
   {
+    long t0 = System.nanoTime();
+    Admission admission = admit(endpoint);
+    callStarted(endpoint, "GET");
+    CharSequence res = null;
+    Exception failure = null;
     try {
-      return response(connect(url, auth));
-    } catch (IOException ioe)
-    {
-      throw new DibsException("failed", ioe);
+      DibsRequest request = request("GET", url, null, auth, admission.deadline);
+      try {
+        res = text(execute(request, admission));
+        return res;
+      } catch (IOException ioe)
+      {
+        throw failure("failed", request, ioe);
+      }
+    }
+    catch (DibsException | RuntimeException ex) {
+      failure = ex;
+      throw ex;
+    }
+    finally {
+      admission.done(failure != null);
+      callCompleted(endpoint, "GET", params, res, null, failure, t0);
     }
   }
 
   /**
-   * Posts a request to the DIBS server. Solemnly stolen from DIBS' sample
-   * DeltapayHTTP class. Small changes implemented.
+   * Posts a request to the DIBS server.
    *
-   * @param url the server
-   * @param message the parameters
-   * @param auth should we use basic authentication
+   * @param request the form encoded parameters to post, and where
+   * @param hedgeable the admission of a request which may be hedged; null
+   *        if it may not
    * @return the result
    */
-  private String _post(URL url, String message, boolean auth)
+  private CharSequence _post(DibsRequest request, Admission hedgeable)
     throws DibsException
   {
-    HttpsURLConnection conn;
-    OutputStream os;
     try {
-      conn = connect(url, auth);
-      os = conn.getOutputStream();
+      return text(execute(request, hedgeable));
     }
     catch (IOException ex) {
-      LOG.error(url + ": failed to connect", ex);
-      throw new DibsException("failed to connect", ex);
-    }
-
-    try(PrintWriter wrt = new PrintWriter(os)) {
-      wrt.println(message);
-    }
-
-    try {
-      return response(conn);
-    }
-    catch (IOException ex) {
-      LOG.error(url + "[" + message + "]: failed to get response", ex);
-      throw new DibsException("failed to get response", ex);
+      LOG.error(request + ": failed to get response", ex);
+      throw failure("failed to get response", request, ex);
     }
   }
 
-  private HttpsURLConnection connect(URL url, boolean auth)
-      throws DibsException {
-    HttpsURLConnection conn;
-    try {
-      conn = (HttpsURLConnection) url.openConnection();
-    } catch (IOException ioe)
-    {
-      throw new DibsException("failed to connect ", ioe);
-    }
-    conn.setSSLSocketFactory(sslContext.getSocketFactory());
-
-    conn.setDoOutput(true);
-    conn.setUseCaches(false);
-
-    // DO:
-    // conn.setConnectTimeout(...);
-    // conn.setReadTimeout(....);
-
-    if (auth)
-      conn.setRequestProperty("Authorization", basicAuth());
-
-    return conn;
+  /**
+   * @param hedgeable the admission of a request which may be hedged; null
+   *        if it may not
+   */
+  private byte[] execute(DibsRequest request, Admission hedgeable)
+    throws IOException
+  {
+    HedgePolicy hedging = hedgePolicy;
+    if (hedgeable != null && hedging != null)
+      return hedging.execute(transport, request, hedgeable::hasSpare);
+    return transport.execute(request);
   }
 
-  private static String response(HttpsURLConnection conn)
-      throws IOException
-  {    StringBuilder res = new StringBuilder();
-      try (BufferedReader rdr = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-        String line;
-        while ((line = rdr.readLine()) != null)
-          res.append(line);
-      }
-
-    return res.toString();
+  /**
+   * Decodes a response body. Line breaks are dropped, as the replies were
+   * always read line by line and joined. The usual plain ASCII body is
+   * parsed in place, without decoding.
+   */
+  private static CharSequence text(byte[] body)
+  {
+    if (AsciiText.isPlain(body))
+      return new AsciiText(body, 0, body.length);
+    StringBuilder res = new StringBuilder(body.length);
+    for (char c : new String(body, StandardCharsets.UTF_8).toCharArray())
+      if (c != '\r' && c != '\n')
+        res.append(c);
+    return res;
   }
 
   /**
@@ -580,30 +1157,17 @@ public class DibsClient
    */
   public static Map parseResponse(String s)
   {
-    LOG.info("To parse response {}", s);
+    LOG.debug("To parse response {}", s);
 
-    Map res = new HashMap();
-    StringTokenizer st = new StringTokenizer(s, "&");
-    while (st.hasMoreTokens())
-    {
-      String s1 = st.nextToken();
-      StringTokenizer st2 = new StringTokenizer(s1, "=");
-      if (st2.countTokens() == 0)
-        continue;
-      String key = st2.countTokens() == 2 ? st2.nextToken().toLowerCase() : String.valueOf(res.size() + 1);
-      String val = urlDecodeUTF8(st2.nextToken());
-      res.put(key, val);
-    }
+    final Map res = new HashMap();
+    ResponseParser.parse(s, (src, ks, ke, vs, ve, position) -> {
+      String key = ks >= 0 ? src.subSequence(ks, ke).toString().toLowerCase() : String.valueOf(res.size() + 1);
+      res.put(key, ResponseParser.decode(src, vs, ve));
+    });
     return res;
   }
 
-  private static String prepareAndFormatQuery(Map params)
-  {
-    params.put("textreply", "yes");
-    return formatQuery(params);
-  }
-
-  private static String formatQuery(Map params)
+  static String formatQuery(Map params)
   {
     StringBuilder sb = new StringBuilder();
     Iterator es = params.entrySet().iterator();
@@ -621,10 +1185,7 @@ public class DibsClient
 
       sb.append(k.toString()).append("=").append(urlEncodeUTF8(v.toString()));
     }
-    String msg = sb.toString();
-    LOG.info("Formatted query {}", msg);
-
-    return msg;
+    return sb.toString();
   }
 
   private static class CheckAccountResponse implements DibsResponse<Boolean> {
@@ -633,11 +1194,11 @@ public class DibsClient
     private final String m_actionCode;
     private final Long m_transactionId;
 
-    private CheckAccountResponse(boolean success, Map resultMap) {
+    private CheckAccountResponse(boolean success, Reply reply) {
       m_valid = success;
-      m_reason = (String)resultMap.get("reason");
-      m_actionCode = (String)resultMap.get("actioncode");
-      String transact = (String)resultMap.get("transact");
+      m_reason = reply.reason;
+      m_actionCode = reply.actionCode;
+      String transact = reply.transact;
       m_transactionId = transact == null ? null : Long.valueOf(transact);
     }
 
@@ -835,25 +1396,12 @@ public class DibsClient
     }
   }
 
-  private static String urlDecodeUTF8(String nn)
-  {
-    try
-    {
-      return URLDecoder.decode(nn, "UTF-8");
-    }
-    catch (UnsupportedEncodingException ex)
-    {
-      // Can't happen
-      throw new RuntimeException(ex);
-    }
-  }
-
   private boolean isTesting() {
-      return cfg.isTesting();
+      return configured.cfg.isTesting();
   }
 
   public String md5of(String src) {
-    return MD5(cfg.getMd5K1(), cfg.getMd5K2(), src);
+    return configured.sign(src);
   }
 
   public static String MD5(String src) {
@@ -874,19 +1422,4 @@ public class DibsClient
     return MD5(k2 + MD5(k1 + src));
   }
 
-  private static SSLContext initSSL()
-  {
-    SSLContext sslContext;
-    try
-    {
-      sslContext = SSLContext.getInstance("TLSv1.2");
-      sslContext.init(null, null, new SecureRandom());
-    }
-    catch (NoSuchAlgorithmException | KeyManagementException ex)
-    {
-      throw new RuntimeException("Could not setup ssl context", ex);
-    }
-    return sslContext;
-  }
-
 }
@@ -0,0 +1,260 @@
+package dk.es.br.dibs;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves clients for many merchants from shared infrastructure: one
+ * transport (so one connection pool and TLS context), one
+ * {@link DibsMetrics}, one {@link CancelQueue} and, if given, one fee quote
+ * cache, ticket metadata cache and endpoint isolation.
+ *
+ * <pre>
+ *   DibsClientRegistry registry = new DibsClientRegistry().maxConcurrentPerMerchant(4);
+ *   registry.register(copenhagenDkk);
+ *   registry.register(stockholmSek);
+ *   registry.client("4259425").withdraw(...);
+ * </pre>
+ *
+ * Each merchant may be given a quota of requests in flight, so that one
+ * busy merchant cannot take all the connections of the pool; a request over
+ * the quota waits, then fails with the error key
+ * {@link DibsException#CONCURRENCY_LIMITED}. Registering a configuration
+ * for a merchant already known rotates the configuration of its client.
+ */
+public class DibsClientRegistry
+     implements Closeable
+{
+  private final DibsTransport transport;
+  private final ConcurrentMap<String, DibsClient> clients = new ConcurrentHashMap<>();
+  private final Map<String, Integer> maxConcurrentByMerchant = new ConcurrentHashMap<>();
+  private final DibsMetrics metrics = new DibsMetrics();
+  private final CancelQueue cancelQueue = new CancelQueue();
+
+  private volatile int maxConcurrentPerMerchant;
+  private volatile long quotaWaitMillis = 30000;
+  private volatile long operationTimeoutNanos;
+  private volatile FeeQuoteCache feeQuoteCache;
+  private volatile TicketMetadataCache ticketMetadataCache;
+  private volatile EndpointIsolation isolation;
+
+  /**
+   * Creates a registry on the transport shared by all clients created
+   * with {@link DibsClient#DibsClient(DibsConfig)}.
+   */
+  public DibsClientRegistry()
+  {
+    this(DibsClient.defaultTransport());
+  }
+
+  public DibsClientRegistry(DibsTransport transport)
+  {
+    this.transport = transport;
+  }
+
+  /**
+   * @param max the requests in flight of any one merchant, 0 (the default)
+   *        for no quota
+   */
+  public DibsClientRegistry maxConcurrentPerMerchant(int max)
+  {
+    if (max < 0)
+      throw new IllegalArgumentException("max concurrent: " + max);
+    this.maxConcurrentPerMerchant = max;
+    for (String merchantId : clients.keySet())
+      applyQuota(merchantId);
+    return this;
+  }
+
+  /**
+   * Overrides the quota of the given merchant; 0 for none.
+   */
+  public DibsClientRegistry maxConcurrent(String merchantId, int max)
+  {
+    if (max < 0)
+      throw new IllegalArgumentException("max concurrent: " + max);
+    maxConcurrentByMerchant.put(merchantId, max);
+    applyQuota(merchantId);
+    return this;
+  }
+
+  /**
+   * @param millis how long a request over its merchant's quota waits for
+   *        a slot (default 30000)
+   */
+  public DibsClientRegistry quotaWaitMillis(long millis)
+  {
+    this.quotaWaitMillis = millis;
+    for (String merchantId : clients.keySet())
+      applyQuota(merchantId);
+    return this;
+  }
+
+  /**
+   * @see DibsClient#setOperationTimeout
+   */
+  public DibsClientRegistry operationTimeout(long timeout, TimeUnit unit)
+  {
+    this.operationTimeoutNanos = unit.toNanos(timeout);
+    for (DibsClient client : clients.values())
+      client.setOperationTimeout(operationTimeoutNanos, TimeUnit.NANOSECONDS);
+    return this;
+  }
+
+  /**
+   * Has all clients share the given cache; quotes are kept per merchant.
+   */
+  public DibsClientRegistry feeQuoteCache(FeeQuoteCache cache)
+  {
+    this.feeQuoteCache = cache;
+    for (DibsClient client : clients.values())
+      client.setFeeQuoteCache(cache);
+    return this;
+  }
+
+  /**
+   * Has all clients share the given cache. Ticket and transaction ids are
+   * unique across merchants at DIBS, so one cache serves them all.
+   */
+  public DibsClientRegistry ticketMetadataCache(TicketMetadataCache cache)
+  {
+    this.ticketMetadataCache = cache;
+    for (DibsClient client : clients.values())
+      client.setTicketMetadataCache(cache);
+    return this;
+  }
+
+  /**
+   * Has all clients share the given bulkheads and circuit breakers, the
+   * endpoints being the same whoever the merchant.
+   */
+  public DibsClientRegistry endpointIsolation(EndpointIsolation isolation)
+  {
+    this.isolation = isolation;
+    for (DibsClient client : clients.values())
+      client.setEndpointIsolation(isolation);
+    return this;
+  }
+
+  /**
+   * @return the metrics of the requests of all merchants
+   */
+  public DibsMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  public CancelQueue getCancelQueue()
+  {
+    return cancelQueue;
+  }
+
+  /**
+   * Makes a client for the merchant of the configuration, or has the
+   * client of a merchant already known use it from now on.
+   *
+   * @return the client of the merchant
+   */
+  public DibsClient register(final DibsConfig cfg)
+  {
+    String merchantId = cfg.getMerchantId();
+    if (merchantId == null)
+      throw new IllegalArgumentException("no merchant id");
+    DibsClient client = clients.compute(merchantId, (id, existing) -> {
+      if (existing != null) {
+        existing.setConfig(cfg);
+        return existing;
+      }
+      return newClient(cfg);
+    });
+    applyQuota(merchantId);
+    return client;
+  }
+
+  private DibsClient newClient(DibsConfig cfg)
+  {
+    DibsClient client = new DibsClient(cfg, transport);
+    client.addEventListener(metrics);
+    client.setCancelQueue(cancelQueue);
+    client.setFeeQuoteCache(feeQuoteCache);
+    client.setTicketMetadataCache(ticketMetadataCache);
+    client.setEndpointIsolation(isolation);
+    client.setOperationTimeout(operationTimeoutNanos, TimeUnit.NANOSECONDS);
+    return client;
+  }
+
+  /**
+   * Bounds the concurrency limit of the merchant's client by its quota.
+   * Below the quota the limit adapts as {@link AdaptiveConcurrencyLimit}
+   * does.
+   */
+  private synchronized void applyQuota(String merchantId)
+  {
+    DibsClient client = clients.get(merchantId);
+    if (client == null)
+      return;
+    Integer own = maxConcurrentByMerchant.get(merchantId);
+    int quota = own != null ? own : maxConcurrentPerMerchant;
+    if (quota == 0) {
+      client.setConcurrencyLimit(null);
+      return;
+    }
+    AdaptiveConcurrencyLimit limit = client.getConcurrencyLimit();
+    if (limit == null)
+      client.setConcurrencyLimit(limit = new AdaptiveConcurrencyLimit(quota));
+    limit.bounds(1, quota).maxWaitMillis(quotaWaitMillis);
+  }
+
+  /**
+   * @return the client of the given merchant, or null if not registered
+   */
+  public DibsClient client(String merchantId)
+  {
+    return clients.get(merchantId);
+  }
+
+  /**
+   * Forgets the client of the given merchant. Requests under way finish.
+   *
+   * @return the client removed, or null if not registered
+   */
+  public DibsClient remove(String merchantId)
+  {
+    DibsClient client = clients.remove(merchantId);
+    if (client != null)
+      client.removeEventListener(metrics);
+    return client;
+  }
+
+  public Set<String> getMerchantIds()
+  {
+    return Collections.unmodifiableSet(new TreeSet<>(clients.keySet()));
+  }
+
+  /**
+   * @return the requests in flight of the given merchant, counted only if
+   *         it has a quota
+   */
+  public int getInFlight(String merchantId)
+  {
+    DibsClient client = clients.get(merchantId);
+    AdaptiveConcurrencyLimit limit = client != null ? client.getConcurrencyLimit() : null;
+    return limit != null ? limit.getInFlight() : 0;
+  }
+
+  /**
+   * Flushes and stops the shared cancel queue. The transport is left open,
+   * as it may be shared beyond the registry.
+   */
+  @Override
+  public void close()
+  {
+    cancelQueue.close();
+  }
+}
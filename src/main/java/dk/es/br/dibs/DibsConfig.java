@@ -13,5 +13,12 @@ public interface DibsConfig {
     String getMd5K2();
 
     boolean isTesting();
-    
+
+    /**
+     * The scheme, host and optional port requests are sent to, without a
+     * trailing slash. Override to talk to a proxy or a {@link DibsSimulator}.
+     */
+    default String getBaseUrl() {
+        return "https://payment.architrade.com";
+    }
 }
@@ -0,0 +1,40 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Is told about every request a {@link DibsClient} makes. Called on the
+ * calling thread right after the request completes, so implementations
+ * should be quick and must be thread safe.
+ *
+ * @see DibsClient#addEventListener(DibsEventListener)
+ */
+@FunctionalInterface
+public interface DibsEventListener
+{
+  void callCompleted(DibsCallEvent event);
+
+  /**
+   * Called as a request is about to be sent. Every call is followed by a
+   * call of {@link #callCompleted(DibsCallEvent)} for the same endpoint.
+   *
+   * @param endpoint the endpoint, as later given by {@link DibsCallEvent#endpoint()}
+   */
+  default void callStarted(String endpoint, String method)
+  {
+  }
+
+  /**
+   * Wraps a listener to be told about only a fraction of the successful
+   * calls. Failed calls are always passed on; started calls never are.
+   *
+   * @param rate the fraction of successful calls to pass on, 0 to 1
+   */
+  static DibsEventListener sampled(final DibsEventListener listener, final double rate)
+  {
+    return (DibsCallEvent event) -> {
+      if (event.failed() || ThreadLocalRandom.current().nextDouble() < rate)
+        listener.callCompleted(event);
+    };
+  }
+}
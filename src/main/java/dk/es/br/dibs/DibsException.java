@@ -11,6 +11,28 @@ package dk.es.br.dibs;
 public class DibsException
      extends Exception
 {
+  /**
+   * The error key of a call which ran out of its time budget.
+   */
+  public static final String DEADLINE_EXCEEDED = "DEADLINE_EXCEEDED";
+
+  /**
+   * The error key of a call turned away because its endpoint's breaker is open.
+   */
+  public static final String CIRCUIT_OPEN = "CIRCUIT_OPEN";
+
+  /**
+   * The error key of a call turned away because its endpoint has too many
+   * calls in flight.
+   */
+  public static final String BULKHEAD_FULL = "BULKHEAD_FULL";
+
+  /**
+   * The error key of a call which found no free slot under the adaptive
+   * concurrency limit in time.
+   */
+  public static final String CONCURRENCY_LIMITED = "CONCURRENCY_LIMITED";
+
   private String m_key;
   private String m_actionCode;
 
@@ -25,6 +47,12 @@ public class DibsException
     m_key = cause.getClass().getName();
   }
 
+  DibsException(String message, String errorKey, Exception cause)
+  {
+    super(message, cause);
+    m_key = errorKey;
+  }
+
   DibsException(String message, String errorKey, String actionCode)
   {
     this(message);
@@ -0,0 +1,262 @@
+package dk.es.br.dibs;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects per endpoint latencies, outcomes and in-flight counts of the
+ * requests of one or more clients:
+ *
+ * <pre>
+ *   DibsMetrics metrics = new DibsMetrics();
+ *   client.addEventListener(metrics);
+ *   metrics.register("settlement");
+ * </pre>
+ *
+ * Recording takes no locks and a fixed amount of memory per endpoint.
+ */
+public class DibsMetrics
+     implements DibsEventListener, DibsMetricsMXBean
+{
+  private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+  private ObjectName registeredAs;
+
+  /**
+   * The figures of a single endpoint.
+   */
+  public static final class Endpoint
+  {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+    public LatencyHistogram latency()
+    {
+      return latency;
+    }
+
+    public long calls()
+    {
+      return latency.count();
+    }
+
+    public long failures()
+    {
+      return failures.sum();
+    }
+
+    public int inFlight()
+    {
+      return Math.max(0, inFlight.get());
+    }
+
+    /**
+     * @return counts keyed like "status=ACCEPTED", "reason=1" or "actioncode=116"
+     */
+    public Map<String, Long> outcomes()
+    {
+      Map<String, Long> res = new TreeMap<>();
+      for (Map.Entry<String, LongAdder> e : outcomes.entrySet())
+        res.put(e.getKey(), e.getValue().sum());
+      return res;
+    }
+
+    private void count(String kind, String value)
+    {
+      if (value == null)
+        return;
+      String key = kind + "=" + value;
+      LongAdder n = outcomes.get(key);
+      if (n == null) {
+        LongAdder a = new LongAdder();
+        n = outcomes.putIfAbsent(key, a);
+        if (n == null)
+          n = a;
+      }
+      n.increment();
+    }
+
+    private void reset()
+    {
+      latency.reset();
+      failures.reset();
+      outcomes.clear();
+    }
+
+    @Override
+    public String toString()
+    {
+      return latency + " failures=" + failures() + " inFlight=" + inFlight() + " " + outcomes();
+    }
+  }
+
+  @Override
+  public void callStarted(String endpoint, String method)
+  {
+    endpoint(endpoint).inFlight.incrementAndGet();
+  }
+
+  @Override
+  public void callCompleted(DibsCallEvent event)
+  {
+    Endpoint e = endpoint(event.endpoint());
+    e.inFlight.decrementAndGet();
+    e.latency.record(event.durationNanos(), TimeUnit.NANOSECONDS);
+    if (event.failed())
+      e.failures.increment();
+    e.count("status", event.status());
+    e.count("reason", event.reason());
+    e.count("actioncode", event.actionCode());
+  }
+
+  /**
+   * @return the figures of the endpoint, created empty if not seen before
+   */
+  public Endpoint endpoint(String endpoint)
+  {
+    Endpoint e = endpoints.get(endpoint);
+    if (e == null) {
+      Endpoint n = new Endpoint();
+      e = endpoints.putIfAbsent(endpoint, n);
+      if (e == null)
+        e = n;
+    }
+    return e;
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server as
+   * <code>dk.es.br.dibs:type=DibsMetrics,name=...</code>.
+   */
+  public synchronized void register(String name)
+    throws JMException
+  {
+    unregister();
+    ObjectName on = new ObjectName("dk.es.br.dibs:type=DibsMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+    registeredAs = on;
+  }
+
+  public synchronized void unregister()
+    throws JMException
+  {
+    if (registeredAs == null)
+      return;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(registeredAs))
+      server.unregisterMBean(registeredAs);
+    registeredAs = null;
+  }
+
+  @Override
+  public Map<String, Long> getCalls()
+  {
+    Map<String, Long> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      res.put(e.getKey(), e.getValue().calls());
+    return res;
+  }
+
+  @Override
+  public Map<String, Long> getFailures()
+  {
+    Map<String, Long> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      res.put(e.getKey(), e.getValue().failures());
+    return res;
+  }
+
+  @Override
+  public Map<String, Long> getInFlight()
+  {
+    Map<String, Long> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      res.put(e.getKey(), (long)e.getValue().inFlight());
+    return res;
+  }
+
+  @Override
+  public Map<String, Double> getMeanMillis()
+  {
+    Map<String, Double> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      res.put(e.getKey(), e.getValue().latency.meanMillis());
+    return res;
+  }
+
+  @Override
+  public Map<String, Double> getP50Millis()
+  {
+    return percentiles(50);
+  }
+
+  @Override
+  public Map<String, Double> getP99Millis()
+  {
+    return percentiles(99);
+  }
+
+  @Override
+  public Map<String, Double> getMaxMillis()
+  {
+    Map<String, Double> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      res.put(e.getKey(), e.getValue().latency.maxMillis());
+    return res;
+  }
+
+  @Override
+  public Map<String, Long> getOutcomes()
+  {
+    Map<String, Long> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      for (Map.Entry<String, Long> o : e.getValue().outcomes().entrySet())
+        res.put(e.getKey() + " " + o.getKey(), o.getValue());
+    return res;
+  }
+
+  @Override
+  public double getLatencyPercentileMillis(String endpoint, double percentile)
+  {
+    Endpoint e = endpoints.get(endpoint);
+    return e == null ? 0 : e.latency.percentileMillis(percentile);
+  }
+
+  /**
+   * Clears all figures except the in-flight counts.
+   */
+  @Override
+  public void reset()
+  {
+    for (Endpoint e : endpoints.values())
+      e.reset();
+  }
+
+  private Map<String, Double> percentiles(double p)
+  {
+    Map<String, Double> res = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> e : endpoints.entrySet())
+      res.put(e.getKey(), e.getValue().latency.percentileMillis(p));
+    return res;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder("DibsMetrics");
+    for (Map.Entry<String, Endpoint> e : new TreeMap<>(endpoints).entrySet())
+      sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+    return sb.toString();
+  }
+}
@@ -0,0 +1,37 @@
+package dk.es.br.dibs;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DibsMetrics}. Maps are keyed by endpoint, or by
+ * endpoint and outcome.
+ */
+public interface DibsMetricsMXBean
+{
+  Map<String, Long> getCalls();
+
+  /**
+   * @return calls which got no reply at all
+   */
+  Map<String, Long> getFailures();
+
+  Map<String, Long> getInFlight();
+
+  Map<String, Double> getMeanMillis();
+
+  Map<String, Double> getP50Millis();
+
+  Map<String, Double> getP99Millis();
+
+  Map<String, Double> getMaxMillis();
+
+  /**
+   * @return counts keyed like "/cgi-ssl/ticket_auth.cgi status=DECLINED",
+   *         "... reason=1" and "... actioncode=116"
+   */
+  Map<String, Long> getOutcomes();
+
+  double getLatencyPercentileMillis(String endpoint, double percentile);
+
+  void reset();
+}
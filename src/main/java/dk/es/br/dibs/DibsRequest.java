@@ -0,0 +1,94 @@
+package dk.es.br.dibs;
+
+import java.net.URL;
+
+/**
+ * A single HTTP request as handed to a {@link DibsTransport}.
+ */
+public final class DibsRequest
+{
+  private final String method;
+  private final URL url;
+  private final byte[] body;
+  private final String authorization;
+  private final Deadline deadline;
+
+  DibsRequest(String method, URL url, byte[] body, String authorization)
+  {
+    this(method, url, body, authorization, null);
+  }
+
+  DibsRequest(String method, URL url, byte[] body, String authorization, Deadline deadline)
+  {
+    this.method = method;
+    this.url = url;
+    this.body = body;
+    this.authorization = authorization;
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return "GET" or "POST"
+   */
+  public String method()
+  {
+    return method;
+  }
+
+  public URL url()
+  {
+    return url;
+  }
+
+  /**
+   * @return the form encoded request body, or null for none
+   */
+  public byte[] body()
+  {
+    return body;
+  }
+
+  /**
+   * @return the value of the Authorization header, or null for none
+   */
+  public String authorization()
+  {
+    return authorization;
+  }
+
+  /**
+   * @return whether the call this request belongs to has a time budget
+   */
+  public boolean hasDeadline()
+  {
+    return deadline != null;
+  }
+
+  /**
+   * Transports should give up once this reaches 0.
+   *
+   * @return the milliseconds left of the call's budget, or
+   *         {@link Long#MAX_VALUE} if it has none
+   */
+  public long remainingMillis()
+  {
+    return deadline != null ? deadline.remainingMillis() : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return whether the request may safely be sent again after a failure
+   */
+  public boolean idempotent()
+  {
+    return "GET".equals(method);
+  }
+
+  /**
+   * @return the method and URL, any ticket in the URL masked
+   */
+  @Override
+  public String toString()
+  {
+    return method + " " + Redaction.text(url.toString());
+  }
+}
@@ -0,0 +1,144 @@
+package dk.es.br.dibs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes and checks the keyed MD5 checksums of the DIBS API, i.e.
+ * <code>MD5(k2 + MD5(k1 + src))</code>, cf.
+ * http://tech.dibspayment.com/D2/FlexWin/API/MD5
+ *
+ * The digest states after the constant k1 and k2 prefixes are computed once
+ * and copied for each checksum. Each thread keeps its own copies of them and
+ * its own scratch buffers, so a signer may be shared freely.
+ */
+public final class DibsSigner
+{
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final MessageDigest k1Prefix;
+  private final MessageDigest k2Prefix;
+  private final ThreadLocal<State> state = new ThreadLocal<State>() {
+    @Override
+    protected State initialValue()
+    {
+      return new State(copy(k1Prefix), copy(k2Prefix));
+    }
+  };
+
+  public DibsSigner(String k1, String k2)
+  {
+    this.k1Prefix = md5();
+    this.k1Prefix.update(String.valueOf(k1).getBytes(StandardCharsets.UTF_8));
+    this.k2Prefix = md5();
+    this.k2Prefix.update(String.valueOf(k2).getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static DibsSigner of(DibsConfig cfg)
+  {
+    return new DibsSigner(cfg.getMd5K1(), cfg.getMd5K2());
+  }
+
+  /**
+   * @return the lower case hex checksum of the source
+   */
+  public String sign(String src)
+  {
+    State st = state.get();
+
+    MessageDigest inner = copy(st.k1Prefix);
+    int n = st.encode(src);
+    inner.update(st.bytes, 0, n);
+    hex(inner.digest(), st.hex);
+    for (int i = 0; i < 32; i++)
+      st.hexBytes[i] = (byte)st.hex[i];
+
+    MessageDigest outer = copy(st.k2Prefix);
+    outer.update(st.hexBytes);
+    hex(outer.digest(), st.hex);
+    return new String(st.hex);
+  }
+
+  /**
+   * @return whether the checksum is the one of the source, compared in
+   *         constant time and ignoring case
+   */
+  public boolean verify(String src, String checksum)
+  {
+    if (checksum == null || checksum.length() != 32)
+      return false;
+    byte[] expected = sign(src).getBytes(StandardCharsets.US_ASCII);
+    byte[] actual = checksum.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  static void hex(byte[] digest, char[] out)
+  {
+    for (int i = 0, j = 0; i < digest.length; i++) {
+      int b = digest[i] & 0xff;
+      out[j++] = HEX[b >>> 4];
+      out[j++] = HEX[b & 0x0f];
+    }
+  }
+
+  private static MessageDigest md5()
+  {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static MessageDigest copy(MessageDigest md)
+  {
+    try {
+      return (MessageDigest)md.clone();
+    }
+    catch (CloneNotSupportedException ex) {
+      // The JDK's MD5 is cloneable
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static final class State
+  {
+    final MessageDigest k1Prefix;
+    final MessageDigest k2Prefix;
+    final char[] hex = new char[32];
+    final byte[] hexBytes = new byte[32];
+    byte[] bytes = new byte[256];
+
+    State(MessageDigest k1Prefix, MessageDigest k2Prefix)
+    {
+      this.k1Prefix = k1Prefix;
+      this.k2Prefix = k2Prefix;
+    }
+
+    /**
+     * UTF-8 encodes the source into the scratch buffer.
+     *
+     * @return the number of bytes
+     */
+    int encode(String src)
+    {
+      int len = src.length();
+      if (bytes.length < len)
+        bytes = new byte[Math.max(len, bytes.length * 2)];
+      for (int i = 0; i < len; i++) {
+        char c = src.charAt(i);
+        if (c >= 0x80) {
+          byte[] utf8 = src.getBytes(StandardCharsets.UTF_8);
+          if (bytes.length < utf8.length)
+            bytes = new byte[utf8.length];
+          System.arraycopy(utf8, 0, bytes, 0, utf8.length);
+          return utf8.length;
+        }
+        bytes[i] = (byte)c;
+      }
+      return len;
+    }
+  }
+}
@@ -0,0 +1,618 @@
+package dk.es.br.dibs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process stand-in for DIBS, for load tests and for tests of the
+ * client's concurrency behaviour. It serves plain HTTP/1.1 with keep-alive
+ * on the loopback interface and speaks the textreply form protocol of the
+ * authorization, cancel, ticket deletion and card type endpoints, and the
+ * JSON card ticket and fee APIs.
+ *
+ * Every request waits for a delay drawn from the latency distribution.
+ * Authorizations are declined at the configured rates, and any request may
+ * have its connection reset or its body sent slowly. Point a client at it
+ * through {@link #config(DibsConfig)}:
+ *
+ * <pre>
+ * DibsSimulator sim = new DibsSimulator()
+ *     .latency(DibsSimulator.logNormal(80, 0.5))
+ *     .decline(0.05, "4", "116")
+ *     .resetRate(0.001)
+ *     .start();
+ * DibsClient client = new DibsClient(sim.config(cfg));
+ * </pre>
+ *
+ * Settings may be changed while the simulator runs.
+ */
+public class DibsSimulator
+     implements Closeable
+{
+  private final static Logger LOG = LoggerFactory.getLogger(DibsSimulator.class);
+
+  /**
+   * A distribution of response delays.
+   */
+  @FunctionalInterface
+  public interface Latency
+  {
+    long nextMillis(Random random);
+  }
+
+  public static Latency fixed(final long millis)
+  {
+    return random -> millis;
+  }
+
+  public static Latency uniform(final long minMillis, final long maxMillis)
+  {
+    if (maxMillis < minMillis)
+      throw new IllegalArgumentException(minMillis + " > " + maxMillis);
+    return random -> minMillis + (long)(random.nextDouble() * (maxMillis - minMillis));
+  }
+
+  /**
+   * A long-tailed distribution around the given median; a sigma of 0.5
+   * puts the 99th percentile at about three times the median.
+   */
+  public static Latency logNormal(final double medianMillis, final double sigma)
+  {
+    if (medianMillis <= 0 || sigma < 0)
+      throw new IllegalArgumentException(medianMillis + ", " + sigma);
+    final double mu = Math.log(medianMillis);
+    return random -> Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+  }
+
+  private static class Decline
+  {
+    final double share;
+    final String reason;
+    final String actionCode;
+
+    Decline(double share, String reason, String actionCode)
+    {
+      this.share = share;
+      this.reason = reason;
+      this.actionCode = actionCode;
+    }
+  }
+
+  private final AtomicLong transactions = new AtomicLong(1000000000L);
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong declined = new AtomicLong();
+  private final AtomicLong resets = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+  private volatile Latency latency = fixed(0);
+  private volatile List<Decline> declines = new ArrayList<>();
+  private volatile double resetRate;
+  private volatile double slowBodyRate;
+  private volatile long slowBytesPerSecond = 100;
+  private volatile String cardType = "V-DK";
+  private volatile String surchargeabilityReason = "PRIVATE";
+  private volatile int feeBasisPoints = 125;
+  private volatile String authorization;
+  private volatile boolean gzip;
+  private volatile boolean chunked;
+
+  private ServerSocket server;
+  private ExecutorService workers;
+  private volatile boolean closed;
+
+  public DibsSimulator latency(Latency latency)
+  {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * Declines the given share of authorizations with the reason and action
+   * code. Several declines may be added; the rest are accepted.
+   */
+  public synchronized DibsSimulator decline(double share, String reason, String actionCode)
+  {
+    double total = share;
+    for (Decline d : declines)
+      total += d.share;
+    if (share < 0 || total > 1)
+      throw new IllegalArgumentException("decline shares add up to " + total);
+
+    List<Decline> res = new ArrayList<>(declines);
+    res.add(new Decline(share, reason, actionCode));
+    declines = res;
+    return this;
+  }
+
+  public synchronized DibsSimulator clearDeclines()
+  {
+    declines = new ArrayList<>();
+    return this;
+  }
+
+  /**
+   * Resets the connection instead of answering the given share of requests.
+   */
+  public DibsSimulator resetRate(double rate)
+  {
+    this.resetRate = rate;
+    return this;
+  }
+
+  /**
+   * Sends the body of the given share of replies at the given pace.
+   */
+  public DibsSimulator slowBody(double rate, long bytesPerSecond)
+  {
+    if (bytesPerSecond <= 0)
+      throw new IllegalArgumentException("bytes per second: " + bytesPerSecond);
+    this.slowBodyRate = rate;
+    this.slowBytesPerSecond = bytesPerSecond;
+    return this;
+  }
+
+  /**
+   * Gzips replies to requests which accept it.
+   */
+  public DibsSimulator gzip(boolean gzip)
+  {
+    this.gzip = gzip;
+    return this;
+  }
+
+  /**
+   * Sends replies with chunked transfer encoding rather than a length.
+   */
+  public DibsSimulator chunked(boolean chunked)
+  {
+    this.chunked = chunked;
+    return this;
+  }
+
+  public DibsSimulator cardType(String cardType)
+  {
+    this.cardType = cardType;
+    return this;
+  }
+
+  public DibsSimulator surchargeabilityReason(String reason)
+  {
+    this.surchargeabilityReason = reason;
+    return this;
+  }
+
+  /**
+   * The fee quoted, and reported on authorizations with calcfee, in
+   * hundredths of a percent of the amount.
+   */
+  public DibsSimulator feeBasisPoints(int feeBasisPoints)
+  {
+    this.feeBasisPoints = feeBasisPoints;
+    return this;
+  }
+
+  /**
+   * Has the administrative endpoints require basic authentication with the
+   * given credentials. Without, any credentials are accepted.
+   */
+  public DibsSimulator credentials(String user, String password)
+  {
+    String userpass = user + ":" + password;
+    this.authorization = "Basic " + new String(Base64.encodeBase64(userpass.getBytes()));
+    return this;
+  }
+
+  public synchronized DibsSimulator start()
+    throws IOException
+  {
+    if (server != null)
+      throw new IllegalStateException("already started");
+
+    server = new ServerSocket();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+    workers = Executors.newCachedThreadPool(new DaemonThreadFactory("dibs-simulator"));
+    workers.execute(new Runnable() {
+      @Override
+      public void run()
+      {
+        accept();
+      }
+    });
+    LOG.info("DIBS simulator listening on {}", getBaseUrl());
+    return this;
+  }
+
+  public int getPort()
+  {
+    if (server == null)
+      throw new IllegalStateException("not started");
+    return server.getLocalPort();
+  }
+
+  public String getBaseUrl()
+  {
+    return "http://127.0.0.1:" + getPort();
+  }
+
+  /**
+   * Wraps a configuration to send its requests to this simulator.
+   */
+  public DibsConfig config(final DibsConfig cfg)
+  {
+    final String baseUrl = getBaseUrl();
+    return new DibsConfig() {
+      @Override public String getMerchantId() { return cfg.getMerchantId(); }
+      @Override public String getDibsUser() { return cfg.getDibsUser(); }
+      @Override public String getDibsPassword() { return cfg.getDibsPassword(); }
+      @Override public String getMd5K1() { return cfg.getMd5K1(); }
+      @Override public String getMd5K2() { return cfg.getMd5K2(); }
+      @Override public boolean isTesting() { return cfg.isTesting(); }
+      @Override public String getBaseUrl() { return baseUrl; }
+    };
+  }
+
+  public long getRequestCount()
+  {
+    return requests.get();
+  }
+
+  public long getAcceptedCount()
+  {
+    return accepted.get();
+  }
+
+  public long getDeclinedCount()
+  {
+    return declined.get();
+  }
+
+  public long getResetCount()
+  {
+    return resets.get();
+  }
+
+  /**
+   * The most requests that were being answered at the same time.
+   */
+  public int getMaxConcurrentRequests()
+  {
+    return maxInFlight.get();
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    closed = true;
+    if (server == null)
+      return;
+    try {
+      server.close();
+    }
+    catch (IOException ignore) {
+    }
+    for (Socket s : connections)
+      closeQuietly(s);
+    workers.shutdownNow();
+  }
+
+  private void accept()
+  {
+    while (!closed) {
+      final Socket socket;
+      try {
+        socket = server.accept();
+        socket.setTcpNoDelay(true);
+      }
+      catch (IOException ex) {
+        if (!closed)
+          LOG.warn("DIBS simulator failed to accept", ex);
+        return;
+      }
+      connections.add(socket);
+      workers.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          serve(socket);
+        }
+      });
+    }
+  }
+
+  private void serve(Socket socket)
+  {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      while (!closed && handle(socket, in, out))
+        ;
+    }
+    catch (InterruptedIOException | SocketException ex) {
+      // closed
+    }
+    catch (IOException | RuntimeException ex) {
+      if (!closed)
+        LOG.warn("DIBS simulator failed to serve request", ex);
+    }
+    finally {
+      connections.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Answers one request; false once the connection is done.
+   */
+  private boolean handle(Socket socket, InputStream in, OutputStream out)
+    throws IOException
+  {
+    String requestLine = PooledDibsTransport.readLine(in);
+    if (requestLine == null || requestLine.isEmpty())
+      return false;
+
+    String[] parts = requestLine.split(" ");
+    if (parts.length != 3)
+      return false;
+    String method = parts[0];
+    String target = parts[1];
+    boolean keepAlive = !parts[2].equals("HTTP/1.0");
+
+    int contentLength = 0;
+    String auth = null;
+    boolean acceptsGzip = false;
+    String line;
+    while ((line = PooledDibsTransport.readLine(in)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon < 0)
+        continue;
+      String name = line.substring(0, colon).trim();
+      String value = line.substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Content-Length"))
+        contentLength = Integer.parseInt(value);
+      else if (name.equalsIgnoreCase("Authorization"))
+        auth = value;
+      else if (name.equalsIgnoreCase("Accept-Encoding"))
+        acceptsGzip = value.toLowerCase().contains("gzip");
+      else if (name.equalsIgnoreCase("Connection"))
+        keepAlive = !value.equalsIgnoreCase("close");
+    }
+    if (line == null)
+      return false;
+    byte[] body = PooledDibsTransport.readFully(in, contentLength);
+
+    requests.incrementAndGet();
+    int n = inFlight.incrementAndGet();
+    try {
+      int max;
+      while (n > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, n))
+        ;
+
+      Random random = ThreadLocalRandom.current();
+      long delay = latency.nextMillis(random);
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+
+      if (random.nextDouble() < resetRate) {
+        resets.incrementAndGet();
+        socket.setSoLinger(true, 0);
+        socket.close();
+        return false;
+      }
+
+      int q = target.indexOf('?');
+      String path = q < 0 ? target : target.substring(0, q);
+      Map<String, String> params = form(q < 0 ? "" : target.substring(q + 1));
+      params.putAll(form(new String(body, StandardCharsets.UTF_8)));
+
+      int status = 200;
+      String reply;
+      if (path.startsWith("/cgi-adm/") || path.equals("/cardtype.pml")) {
+        String required = authorization;
+        if (required != null && !required.equals(auth)) {
+          status = 401;
+          reply = "Unauthorized";
+        }
+        else
+          reply = admin(path, params);
+      }
+      else if ("POST".equals(method) && path.equals("/cgi-ssl/ticket_auth.cgi"))
+        reply = authorize(params, random);
+      else if ("GET".equals(method) && path.startsWith("/api/card/v1/tickets/"))
+        reply = "{\"ticket\":\"" + path.substring("/api/card/v1/tickets/".length())
+                + "\",\"reason\":\"" + surchargeabilityReason + "\"}";
+      else if ("GET".equals(method) && path.startsWith("/api/fee/v1/subscribers/") && path.endsWith("/best"))
+        reply = fee(params);
+      else {
+        status = 404;
+        reply = "Not Found";
+      }
+
+      write(out, status, reply.getBytes(StandardCharsets.UTF_8), keepAlive, acceptsGzip && gzip, random.nextDouble() < slowBodyRate);
+      return keepAlive;
+    }
+    finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private String authorize(Map<String, String> params, Random random)
+  {
+    String amount = params.get("amount");
+    if (params.get("merchant") == null || params.get("ticket") == null || params.get("orderid") == null || amount == null) {
+      declined.incrementAndGet();
+      return "status=DECLINED&reason=2&message=Missing+parameters";
+    }
+
+    double r = random.nextDouble();
+    for (Decline d : declines) {
+      if (r < d.share) {
+        declined.incrementAndGet();
+        StringBuilder sb = new StringBuilder("status=DECLINED&reason=").append(d.reason);
+        if (d.actionCode != null)
+          sb.append("&actioncode=").append(d.actionCode);
+        sb.append("&message=Declined&orderid=").append(params.get("orderid"));
+        return sb.toString();
+      }
+      r -= d.share;
+    }
+
+    accepted.incrementAndGet();
+    StringBuilder sb = new StringBuilder("status=ACCEPTED");
+    sb.append("&transact=").append(transactions.incrementAndGet());
+    sb.append("&orderid=").append(params.get("orderid"));
+    sb.append("&amount=").append(amount);
+    if (params.get("currency") != null)
+      sb.append("&currency=").append(params.get("currency"));
+    sb.append("&cardtype=").append(cardType);
+    if ("yes".equals(params.get("calcfee")))
+      sb.append("&fee=").append(feeCents(amount));
+    sb.append("&suspect=false&severity=0");
+    return sb.toString();
+  }
+
+  private String admin(String path, Map<String, String> params)
+  {
+    if (path.equals("/cardtype.pml"))
+      return cardType;
+    if (path.equals("/cgi-adm/cancel.cgi"))
+      return "status=ACCEPTED&transact=" + params.get("transact");
+    if (path.equals("/cgi-adm/delticket.cgi"))
+      return "status=ACCEPTED&ticket=" + params.get("ticket");
+    return "status=DECLINED&reason=2&message=Unknown+function";
+  }
+
+  private String fee(Map<String, String> params)
+  {
+    String amount = params.get("amount");
+    return "{\"agreement\":1,\"fee\":" + feeCents(amount) + ",\"amount\":" + amount + "}";
+  }
+
+  private long feeCents(String amount)
+  {
+    try {
+      return Math.round(Long.parseLong(amount) * feeBasisPoints / 10000.0);
+    }
+    catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  private void write(OutputStream out, int status, byte[] body, boolean keepAlive, boolean gzipped, boolean slow)
+    throws IOException
+  {
+    if (gzipped) {
+      ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+      try (GZIPOutputStream z = new GZIPOutputStream(zipped)) {
+        z.write(body);
+      }
+      body = zipped.toByteArray();
+    }
+
+    boolean chunks = chunked;
+    StringBuilder head = new StringBuilder(128);
+    head.append("HTTP/1.1 ").append(status).append(status == 200 ? " OK" : " Error").append("\r\n");
+    head.append("Content-Type: text/plain; charset=UTF-8\r\n");
+    if (gzipped)
+      head.append("Content-Encoding: gzip\r\n");
+    if (chunks)
+      head.append("Transfer-Encoding: chunked\r\n");
+    else
+      head.append("Content-Length: ").append(body.length).append("\r\n");
+    if (!keepAlive)
+      head.append("Connection: close\r\n");
+    head.append("\r\n");
+    out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+    if (chunks) {
+      // Two chunks, the second with an extension, then the last one
+      int half = body.length / 2;
+      out.write((Integer.toHexString(half) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(body, 0, half);
+      out.write(("\r\n" + Integer.toHexString(body.length - half) + ";x=y\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(body, half, body.length - half);
+      out.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+      return;
+    }
+
+    if (!slow) {
+      out.write(body);
+      out.flush();
+      return;
+    }
+
+    // Dribble the body a few bytes at a time
+    out.flush();
+    int step = 8;
+    long pause = Math.max(1, step * 1000L / slowBytesPerSecond);
+    for (int off = 0; off < body.length; off += step) {
+      out.write(body, off, Math.min(step, body.length - off));
+      out.flush();
+      try {
+        Thread.sleep(pause);
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private static Map<String, String> form(String s)
+  {
+    final Map<String, String> res = new HashMap<>();
+    ResponseParser.parse(s, (src, ks, ke, vs, ve, position) -> {
+      if (ks >= 0)
+        res.put(src.subSequence(ks, ke).toString(), ResponseParser.decode(src, vs, ve));
+    });
+    return res;
+  }
+
+  private static void closeQuietly(Socket socket)
+  {
+    try {
+      socket.close();
+    }
+    catch (IOException ignore) {
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package dk.es.br.dibs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * The HTTP layer underneath {@link DibsClient}. Implementations are shared
+ * between threads and must be safe for concurrent use.
+ *
+ * @see PooledDibsTransport
+ */
+public interface DibsTransport
+     extends Closeable
+{
+  /**
+   * Performs a single request against the DIBS server.
+   *
+   * @param request the request to send
+   * @return the response body
+   * @throws IOException if the exchange fails or the server answers with
+   *         anything but a 2xx status
+   */
+  byte[] execute(DibsRequest request)
+    throws IOException;
+
+  /**
+   * Gets ready for requests to the server of the given URL, e.g. by
+   * resolving its address and opening connections ahead of time. Does
+   * nothing by default.
+   *
+   * @param connections the number of connections wanted ready
+   * @return the number of connections opened
+   */
+  default int warmUp(URL url, int connections)
+    throws IOException
+  {
+    return 0;
+  }
+
+  /**
+   * Releases any connections held by this transport.
+   */
+  @Override
+  default void close()
+  {
+  }
+}
@@ -0,0 +1,292 @@
+package dk.es.br.dibs;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the endpoints of DIBS from dragging each other down: each endpoint
+ * gets a bulkhead, limiting the calls in flight to it, and a
+ * {@link CircuitBreaker}. A call turned away fails at once with the error
+ * key {@link DibsException#BULKHEAD_FULL} or
+ * {@link DibsException#CIRCUIT_OPEN}, without reaching DIBS.
+ *
+ * Endpoints are named as in {@link DibsCallEvent#endpoint()}, e.g.
+ * "/cgi-ssl/ticket_auth.cgi" or "/api/fee/v1/subscribers/{merchant}/best".
+ * A call fails if no answer is had from DIBS, or if DIBS answers with
+ * reason 1 (communication problems); declines do not count. Settings
+ * should be made before the isolation is handed to a client.
+ */
+public class EndpointIsolation
+{
+  private final ConcurrentMap<String, Compartment> compartments = new ConcurrentHashMap<>();
+  private final Map<String, Integer> maxConcurrentByEndpoint = new ConcurrentHashMap<>();
+
+  private volatile int maxConcurrent = 20;
+  private volatile long maxWaitMillis;
+  private volatile int window = 50;
+  private volatile int minimumCalls = 20;
+  private volatile double failureRateThreshold = 0.5;
+  private volatile long slowCallMillis = 10000;
+  private volatile double slowCallRateThreshold = 1.0;
+  private volatile long openMillis = 30000;
+  private volatile int halfOpenProbes = 3;
+
+  /**
+   * @param max the calls in flight to any one endpoint (default 20)
+   */
+  public EndpointIsolation maxConcurrent(int max)
+  {
+    if (max < 1)
+      throw new IllegalArgumentException("max concurrent: " + max);
+    this.maxConcurrent = max;
+    return this;
+  }
+
+  /**
+   * @param max the calls in flight to the given endpoint
+   */
+  public EndpointIsolation maxConcurrent(String endpoint, int max)
+  {
+    if (max < 1)
+      throw new IllegalArgumentException("max concurrent: " + max);
+    maxConcurrentByEndpoint.put(endpoint, max);
+    return this;
+  }
+
+  /**
+   * @param millis how long a call may wait for room in a full bulkhead
+   *        (default 0, failing at once)
+   */
+  public EndpointIsolation maxWaitMillis(long millis)
+  {
+    this.maxWaitMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param calls the number of latest calls the rates are taken over
+   *        (default 50)
+   */
+  public EndpointIsolation window(int calls)
+  {
+    if (calls < 1)
+      throw new IllegalArgumentException("window: " + calls);
+    this.window = calls;
+    return this;
+  }
+
+  /**
+   * @param calls the calls needed in the window before the breaker may
+   *        open (default 20)
+   */
+  public EndpointIsolation minimumCalls(int calls)
+  {
+    this.minimumCalls = calls;
+    return this;
+  }
+
+  /**
+   * @param rate 0 to 1, the share of failed calls opening the breaker
+   *        (default 0.5)
+   */
+  public EndpointIsolation failureRateThreshold(double rate)
+  {
+    this.failureRateThreshold = rate;
+    return this;
+  }
+
+  /**
+   * @param millis the duration from which a call counts as slow
+   * @param rate 0 to 1, the share of slow calls opening the breaker
+   *        (default 1, only opening if every call is slow)
+   */
+  public EndpointIsolation slowCallThreshold(long millis, double rate)
+  {
+    this.slowCallMillis = millis;
+    this.slowCallRateThreshold = rate;
+    return this;
+  }
+
+  /**
+   * @param millis how long an open breaker stays open before probing
+   *        (default 30000)
+   */
+  public EndpointIsolation openMillis(long millis)
+  {
+    this.openMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param calls the probe calls let through by a half open breaker, all
+   *        of which must succeed for it to close (default 3)
+   */
+  public EndpointIsolation halfOpenProbes(int calls)
+  {
+    if (calls < 1)
+      throw new IllegalArgumentException("probes: " + calls);
+    this.halfOpenProbes = calls;
+    return this;
+  }
+
+  int getWindow()
+  {
+    return window;
+  }
+
+  int getMinimumCalls()
+  {
+    return minimumCalls;
+  }
+
+  double getFailureRateThreshold()
+  {
+    return failureRateThreshold;
+  }
+
+  long getSlowCallMillis()
+  {
+    return slowCallMillis;
+  }
+
+  double getSlowCallRateThreshold()
+  {
+    return slowCallRateThreshold;
+  }
+
+  long getOpenMillis()
+  {
+    return openMillis;
+  }
+
+  int getHalfOpenProbes()
+  {
+    return halfOpenProbes;
+  }
+
+  /**
+   * @return the breaker of the endpoint, created on first use
+   */
+  public CircuitBreaker getCircuitBreaker(String endpoint)
+  {
+    return compartment(endpoint).breaker;
+  }
+
+  /**
+   * @return the state of every endpoint called so far, by endpoint
+   */
+  public Map<String, CircuitBreaker.State> getStates()
+  {
+    Map<String, CircuitBreaker.State> res = new TreeMap<>();
+    for (Compartment c : compartments.values())
+      res.put(c.breaker.getEndpoint(), c.breaker.getState());
+    return Collections.unmodifiableMap(res);
+  }
+
+  /**
+   * @return the calls currently in flight to the endpoint
+   */
+  public int getInFlight(String endpoint)
+  {
+    Compartment c = compartments.get(endpoint);
+    return c == null ? 0 : c.max - c.permits.availablePermits();
+  }
+
+  Compartment compartment(String endpoint)
+  {
+    Compartment c = compartments.get(endpoint);
+    if (c == null) {
+      Integer max = maxConcurrentByEndpoint.get(endpoint);
+      Compartment n = new Compartment(endpoint, max != null ? max : maxConcurrent);
+      c = compartments.putIfAbsent(endpoint, n);
+      if (c == null)
+        c = n;
+    }
+    return c;
+  }
+
+  /**
+   * The bulkhead and breaker of one endpoint.
+   */
+  class Compartment
+  {
+    private final int max;
+    private final Semaphore permits;
+    private final CircuitBreaker breaker;
+
+    Compartment(String endpoint, int max)
+    {
+      this.max = max;
+      this.permits = new Semaphore(max);
+      this.breaker = new CircuitBreaker(endpoint, EndpointIsolation.this);
+    }
+
+    /**
+     * Admits a call, which must be followed by {@link #exit}.
+     *
+     * @param deadline the deadline of the call, or null
+     * @return the breaker generation the call is admitted under
+     */
+    long enter(Deadline deadline)
+      throws DibsException
+    {
+      boolean admitted;
+      try {
+        long wait = maxWaitMillis;
+        if (deadline != null)
+          wait = Math.min(wait, deadline.remainingMillis());
+        admitted = wait > 0 ? permits.tryAcquire(wait, TimeUnit.MILLISECONDS) : permits.tryAcquire();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new DibsException(breaker.getEndpoint() + ": interrupted waiting in bulkhead", DibsException.BULKHEAD_FULL, ex);
+      }
+      if (!admitted) {
+        if (deadline != null && deadline.expired())
+          throw new DibsException(breaker.getEndpoint() + ": deadline exceeded waiting in bulkhead", DibsException.DEADLINE_EXCEEDED, (String)null);
+        throw new DibsException(breaker.getEndpoint() + ": " + max + " calls in flight", DibsException.BULKHEAD_FULL, (String)null);
+      }
+
+      long generation = breaker.tryAcquire();
+      if (generation < 0) {
+        permits.release();
+        throw new DibsException(breaker.getEndpoint() + ": circuit open", DibsException.CIRCUIT_OPEN, (String)null);
+      }
+      return generation;
+    }
+
+    /**
+     * @param generation what {@link #enter} returned
+     */
+    void exit(long generation, boolean failed, long nanos)
+    {
+      permits.release();
+      breaker.record(generation, failed, nanos);
+    }
+
+    /**
+     * @return whether another request could be let in now, with the
+     *         breaker closed
+     */
+    boolean hasSpare()
+    {
+      return permits.availablePermits() > 0 && breaker.getState() == CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * Lets go of a call which was never made.
+     *
+     * @param generation what {@link #enter} returned
+     */
+    void cancel(long generation)
+    {
+      permits.release();
+      breaker.cancel(generation);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package dk.es.br.dibs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded, least-recently-used cache whose entries optionally expire
+ * a fixed time after they were loaded. Concurrent misses on the same key are
+ * coalesced: one caller loads the value while the others wait for it. A
+ * value whose load was under way when its entry was invalidated is returned
+ * to its callers but not cached; loads of other keys are unaffected.
+ */
+final class ExpiringCache<K, V>
+{
+  interface Loader<V>
+  {
+    V load()
+      throws DibsException;
+  }
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final Map<K, Entry<V>> entries;
+  // A load is only cached while still the one registered for its key;
+  // invalidation unregisters it, under the entries lock
+  private final ConcurrentMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxSize the maximum number of entries
+   * @param ttl how long an entry is valid; 0 or less for no expiry
+   */
+  ExpiringCache(final int maxSize, long ttl, TimeUnit unit)
+  {
+    if (maxSize < 1)
+      throw new IllegalArgumentException("max size: " + maxSize);
+    this.maxSize = maxSize;
+    this.ttlNanos = ttl > 0 ? unit.toNanos(ttl) : 0;
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest)
+      {
+        if (size() <= maxSize)
+          return false;
+        evictions.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached value for the key, loading it if it is missing or
+   * expired.
+   */
+  V get(K key, Loader<V> loader)
+    throws DibsException
+  {
+    V value = getIfPresent(key);
+    if (value != null) {
+      hits.incrementAndGet();
+      return value;
+    }
+    misses.incrementAndGet();
+
+    CompletableFuture<V> mine = new CompletableFuture<>();
+    CompletableFuture<V> running = loading.putIfAbsent(key, mine);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      return await(running);
+    }
+
+    try {
+      // Another caller may have finished loading in the meantime
+      value = getIfPresent(key);
+      if (value == null) {
+        value = loader.load();
+        put(key, value, mine);
+      }
+      mine.complete(value);
+      return value;
+    }
+    catch (DibsException | RuntimeException ex) {
+      mine.completeExceptionally(ex);
+      throw ex;
+    }
+    finally {
+      loading.remove(key, mine);
+    }
+  }
+
+  /**
+   * @return the cached value, or null if missing or expired
+   */
+  V getIfPresent(K key)
+  {
+    synchronized (entries) {
+      Entry<V> e = entries.get(key);
+      if (e == null)
+        return null;
+      if (e.expired(System.nanoTime())) {
+        entries.remove(key);
+        return null;
+      }
+      return e.value;
+    }
+  }
+
+  void put(K key, V value)
+  {
+    put(key, value, null);
+  }
+
+  /**
+   * @param load the load the value comes from, cached only if not
+   *        invalidated since; null for none
+   */
+  private void put(K key, V value, CompletableFuture<V> load)
+  {
+    if (value == null)
+      return;
+    long expires = ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0;
+    synchronized (entries) {
+      if (load != null && loading.get(key) != load)
+        return;
+      entries.put(key, new Entry<>(value, expires));
+    }
+  }
+
+  /**
+   * Drops the entry. A load under way is left to finish, but later callers
+   * load anew rather than wait for it.
+   */
+  void invalidate(K key)
+  {
+    synchronized (entries) {
+      entries.remove(key);
+      loading.remove(key);
+    }
+  }
+
+  void invalidateAll()
+  {
+    synchronized (entries) {
+      entries.clear();
+      loading.clear();
+    }
+  }
+
+  int size()
+  {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  int maxSize()
+  {
+    return maxSize;
+  }
+
+  long hits()
+  {
+    return hits.get();
+  }
+
+  long misses()
+  {
+    return misses.get();
+  }
+
+  long coalesced()
+  {
+    return coalesced.get();
+  }
+
+  long evictions()
+  {
+    return evictions.get();
+  }
+
+  private static <V> V await(CompletableFuture<V> running)
+    throws DibsException
+  {
+    try {
+      return running.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new DibsException("interrupted waiting for a concurrent lookup", ex);
+    }
+    catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof DibsException)
+        throw (DibsException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private static final class Entry<V>
+  {
+    final V value;
+    final long expires;
+
+    Entry(V value, long expires)
+    {
+      this.value = value;
+      this.expires = expires;
+    }
+
+    boolean expired(long now)
+    {
+      return expires != 0 && now - expires >= 0;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package dk.es.br.dibs;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * The fee DIBS expects to charge for a payment, as returned by the
+ * <code>/api/fee/v1/subscribers/{merchant}/best</code> endpoint. Amounts are
+ * in cents.
+ */
+public final class FeeQuote
+{
+  private final Long agreement;
+  private final BigDecimal fee;
+  private final BigDecimal amount;
+
+  FeeQuote(Long agreement, BigDecimal fee, BigDecimal amount)
+  {
+    this.agreement = agreement;
+    this.fee = fee;
+    this.amount = amount;
+  }
+
+  /**
+   * @return the acquirer agreement the quote is based on, if reported
+   */
+  public Long agreement()
+  {
+    return agreement;
+  }
+
+  /**
+   * @return the expected fee in cents
+   */
+  public BigDecimal fee()
+  {
+    return fee;
+  }
+
+  /**
+   * @return the whole cents of the expected fee
+   * @throws DibsException if the fee is beyond an int of cents
+   */
+  public int feeCents()
+    throws DibsException
+  {
+    try {
+      return fee.setScale(0, RoundingMode.DOWN).intValueExact();
+    }
+    catch (ArithmeticException ex) {
+      throw new DibsException("Fee out of range: " + fee, ex);
+    }
+  }
+
+  /**
+   * @return the amount the fee applies to, in cents, if reported
+   */
+  public BigDecimal amount()
+  {
+    return amount;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "fee " + fee + " of " + amount + " (agreement " + agreement + ")";
+  }
+}
@@ -0,0 +1,124 @@
+package dk.es.br.dibs;
+
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps fee quotes for a while, so that asking for the same (ticket, amount,
+ * currency) quote again does not call DIBS. Only one call per quote is made
+ * at a time; concurrent requests for it wait for that call.
+ *
+ * <pre>
+ *   client.setFeeQuoteCache(new FeeQuoteCache(10000, 5, TimeUnit.MINUTES));
+ * </pre>
+ *
+ * One cache may be shared by several clients.
+ */
+public class FeeQuoteCache
+{
+  private final ExpiringCache<Key, FeeQuote> cache;
+
+  /**
+   * @param maxSize the number of quotes kept, the least recently used being dropped first
+   * @param ttl how long a quote is used
+   */
+  public FeeQuoteCache(int maxSize, long ttl, TimeUnit unit)
+  {
+    this.cache = new ExpiringCache<>(maxSize, ttl, unit);
+  }
+
+  FeeQuote get(String merchantId, String ticket, int amountCents, Currency currency, boolean testing, ExpiringCache.Loader<FeeQuote> loader)
+    throws DibsException
+  {
+    return cache.get(new Key(merchantId, ticket, amountCents, currency, testing), loader);
+  }
+
+  public void invalidateAll()
+  {
+    cache.invalidateAll();
+  }
+
+  public int size()
+  {
+    return cache.size();
+  }
+
+  public long getHitCount()
+  {
+    return cache.hits();
+  }
+
+  public long getMissCount()
+  {
+    return cache.misses();
+  }
+
+  /**
+   * @return the number of misses which waited for a lookup already running
+   *         rather than calling DIBS themselves
+   */
+  public long getCoalescedCount()
+  {
+    return cache.coalesced();
+  }
+
+  public long getEvictionCount()
+  {
+    return cache.evictions();
+  }
+
+  public double getHitRate()
+  {
+    long hits = cache.hits();
+    long total = hits + cache.misses();
+    return total == 0 ? 0 : (double)hits / total;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "FeeQuoteCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+         + ", coalesced=" + getCoalescedCount() + ", evictions=" + getEvictionCount() + "]";
+  }
+
+  private static final class Key
+  {
+    private final String merchantId;
+    private final String ticket;
+    private final int amountCents;
+    private final Currency currency;
+    private final boolean testing;
+
+    Key(String merchantId, String ticket, int amountCents, Currency currency, boolean testing)
+    {
+      this.merchantId = merchantId;
+      this.ticket = ticket;
+      this.amountCents = amountCents;
+      this.currency = currency;
+      this.testing = testing;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key)o;
+      return amountCents == k.amountCents
+          && testing == k.testing
+          && ticket.equals(k.ticket)
+          && merchantId.equals(k.merchantId)
+          && currency.equals(k.currency);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = ticket.hashCode();
+      h = 31 * h + amountCents;
+      h = 31 * h + currency.hashCode();
+      h = 31 * h + merchantId.hashCode();
+      return testing ? h + 1 : h;
+    }
+  }
+}
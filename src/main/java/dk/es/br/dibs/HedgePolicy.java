@@ -0,0 +1,360 @@
+package dk.es.br.dibs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hedging of read-only lookups: when an answer is slower than a percentile
+ * of recent latency, the same request is sent once more and whichever
+ * answer arrives first is used. The percentile is recomputed from each
+ * window of completed first attempts; until the first window is full,
+ * nothing is hedged.
+ *
+ * The extra load is capped: every call earns a fraction of a hedge, and
+ * a hedge is only sent when a whole one has been earned. A call which
+ * cannot be hedged, while learning or without a hedge earned, is sent on
+ * the caller's thread; otherwise both attempts run on a bounded pool, and
+ * a hedge finding it full is not sent.
+ *
+ * A hedge takes no slot of its own under the client's concurrency limit
+ * or in the endpoint's bulkhead, and the losing attempt is not cancelled
+ * but runs to its end. So a hedge is not sent either while the limit or
+ * the bulkhead is full, or while the endpoint's circuit breaker is not
+ * closed, when the extra request would add to the load, or muddle the
+ * probes, the client is guarding against.
+ *
+ * Only {@link DibsClient#getCardType}, {@link DibsClient#expectedFeeCents},
+ * {@link DibsClient#feeQuote} and {@link DibsClient#surchargeabilityReason}
+ * are hedged; payments, cancellations and ticket deletions never are.
+ * Settings should be made before the policy is handed to a client.
+ */
+public final class HedgePolicy
+{
+  private volatile double percentile = 95;
+  private volatile double maxExtraLoad = 0.05;
+  private volatile int window = 500;
+  private volatile long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+  private volatile int maxThreads = 16;
+  private volatile Executor executor;
+
+  private final LatencyHistogram recent = new LatencyHistogram();
+  private volatile long delayNanos = -1;
+  private double budget;
+
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder hedgeWins = new LongAdder();
+  private final LongAdder hedgesRejected = new LongAdder();
+
+  /**
+   * @param percentile 0 to 100; the latency beyond which a second request
+   *        is sent (default 95)
+   */
+  public HedgePolicy percentile(double percentile)
+  {
+    if (percentile <= 0 || percentile > 100)
+      throw new IllegalArgumentException("percentile: " + percentile);
+    this.percentile = percentile;
+    return this;
+  }
+
+  /**
+   * @param fraction the most extra requests sent, relative to the number of
+   *        calls (default 0.05)
+   */
+  public HedgePolicy maxExtraLoad(double fraction)
+  {
+    if (fraction < 0)
+      throw new IllegalArgumentException("extra load: " + fraction);
+    this.maxExtraLoad = fraction;
+    return this;
+  }
+
+  /**
+   * @param samples the number of first attempts the percentile is taken
+   *        over (default 500)
+   */
+  public HedgePolicy window(int samples)
+  {
+    if (samples < 1)
+      throw new IllegalArgumentException("window: " + samples);
+    this.window = samples;
+    return this;
+  }
+
+  /**
+   * @param millis the shortest wait before hedging (default 1)
+   */
+  public HedgePolicy minDelayMillis(long millis)
+  {
+    this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    return this;
+  }
+
+  /**
+   * @param threads the most attempts run at a time by the default executor
+   *        (default 16)
+   */
+  public HedgePolicy maxThreads(int threads)
+  {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads: " + threads);
+    this.maxThreads = threads;
+    return this;
+  }
+
+  /**
+   * @param executor runs the attempts of calls which may be hedged, and
+   *        should reject rather than queue them when busy; by default a
+   *        pool of at most {@link #maxThreads} daemon threads
+   */
+  public HedgePolicy executor(Executor executor)
+  {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * @return the current wait before hedging, or -1 while still learning
+   */
+  public double getDelayMillis()
+  {
+    long delay = delayNanos;
+    return delay < 0 ? -1 : delay / 1e6;
+  }
+
+  public long getCallCount()
+  {
+    return calls.sum();
+  }
+
+  public long getHedgeCount()
+  {
+    return hedges.sum();
+  }
+
+  /**
+   * @return the number of calls answered by the second request
+   */
+  public long getHedgeWinCount()
+  {
+    return hedgeWins.sum();
+  }
+
+  /**
+   * @return the hedges not sent because the executor, the concurrency limit
+   *         or the endpoint was busy
+   */
+  public long getHedgeRejectedCount()
+  {
+    return hedgesRejected.sum();
+  }
+
+  /**
+   * @param spare whether the client has room for a hedge, asked when one
+   *        is due
+   */
+  byte[] execute(DibsTransport transport, DibsRequest request, BooleanSupplier spare)
+    throws IOException
+  {
+    calls.increment();
+    earn();
+
+    long delay = delayNanos;
+    Call call = new Call(transport, request);
+    if (delay < 0 || !canSpend() || !call.attempt(true))
+      return call.direct();
+
+    try {
+      return call.result.get(Math.max(delay, minDelayNanos), TimeUnit.NANOSECONDS);
+    }
+    catch (TimeoutException ex) {
+      if (!call.result.isDone()) {
+        if (!spare.getAsBoolean())
+          hedgesRejected.increment();
+        else if (spend()) {
+          if (call.attempt(false))
+            hedges.increment();
+          else {
+            refund();
+            hedgesRejected.increment();
+          }
+        }
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for a response");
+    }
+    catch (ExecutionException ex) {
+      return await(call.result);
+    }
+    return await(call.result);
+  }
+
+  /**
+   * The attempts at one request, the first of which to answer completes
+   * the result. It fails once all attempts have.
+   */
+  private final class Call
+  {
+    final DibsTransport transport;
+    final DibsRequest request;
+    final long t0 = System.nanoTime();
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicBoolean answered = new AtomicBoolean();
+    volatile Exception failure;
+
+    Call(DibsTransport transport, DibsRequest request)
+    {
+      this.transport = transport;
+      this.request = request;
+    }
+
+    /**
+     * Sends the request on the caller's thread.
+     */
+    byte[] direct()
+      throws IOException
+    {
+      byte[] body = transport.execute(request);
+      record(System.nanoTime() - t0);
+      return body;
+    }
+
+    /**
+     * @return whether the attempt was started, rather than rejected by a
+     *         busy executor
+     */
+    boolean attempt(final boolean first)
+    {
+      pending.incrementAndGet();
+      try {
+        executor().execute(new Runnable() {
+          @Override
+          public void run()
+          {
+            try {
+              byte[] body = transport.execute(request);
+              if (first)
+                record(System.nanoTime() - t0);
+              // Counted before the caller is woken
+              if (answered.compareAndSet(false, true)) {
+                if (!first)
+                  hedgeWins.increment();
+                result.complete(body);
+              }
+            }
+            catch (IOException | RuntimeException ex) {
+              finished(ex);
+            }
+          }
+        });
+        return true;
+      }
+      catch (RejectedExecutionException ex) {
+        finished(null);
+        return false;
+      }
+    }
+
+    private void finished(Exception ex)
+    {
+      if (ex != null)
+        failure = ex;
+      Exception f = failure;
+      if (pending.decrementAndGet() == 0 && f != null)
+        result.completeExceptionally(f);
+    }
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> result)
+    throws IOException
+  {
+    try {
+      return result.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for a response");
+    }
+    catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private void record(long nanos)
+  {
+    recent.record(nanos, TimeUnit.NANOSECONDS);
+    if (recent.count() < window)
+      return;
+    synchronized (recent) {
+      if (recent.count() < window)
+        return;
+      delayNanos = (long)(recent.percentileMillis(percentile) * 1e6);
+      recent.reset();
+    }
+  }
+
+  private synchronized void earn()
+  {
+    // Enough saved for a burst of about a hundred calls' worth
+    budget = Math.min(budget + maxExtraLoad, Math.max(1, maxExtraLoad * 100));
+  }
+
+  private synchronized boolean canSpend()
+  {
+    return budget >= 1;
+  }
+
+  private synchronized boolean spend()
+  {
+    if (budget < 1)
+      return false;
+    budget -= 1;
+    return true;
+  }
+
+  private synchronized void refund()
+  {
+    budget += 1;
+  }
+
+  private Executor executor()
+  {
+    Executor e = executor;
+    if (e == null) {
+      synchronized (this) {
+        if (executor == null) {
+          int threads = maxThreads;
+          // Hands over or rejects, never queues
+          ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                           new SynchronousQueue<Runnable>(),
+                                                           new DaemonThreadFactory("dibs-hedge"));
+          pool.allowCoreThreadTimeOut(true);
+          executor = pool;
+        }
+        e = executor;
+      }
+    }
+    return e;
+  }
+}
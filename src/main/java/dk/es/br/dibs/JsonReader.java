@@ -0,0 +1,301 @@
+package dk.es.br.dibs;
+
+/**
+ * Minimal pull reader of the small JSON documents returned by the DIBS REST
+ * endpoints. It reads forward only, one token at a time, so a caller picks
+ * the members it needs from an object and skips the rest, nested values
+ * included, without building a tree.
+ *
+ * Malformed input raises an {@link IllegalArgumentException}.
+ */
+final class JsonReader
+{
+  enum Token
+  {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END
+  }
+
+  private final CharSequence src;
+  private final int len;
+  private int pos;
+
+  // Whether the next string in the current object is a member name
+  private boolean expectName;
+  private int[] stack = new int[8];
+  private int depth;
+
+  private static final int IN_OBJECT = 1;
+  private static final int IN_ARRAY = 2;
+
+  JsonReader(CharSequence src)
+  {
+    this.src = src;
+    this.len = src.length();
+  }
+
+  Token peek()
+  {
+    skipWhitespaceAndSeparators();
+    if (pos >= len)
+      return Token.END;
+    char c = src.charAt(pos);
+    switch (c) {
+      case '{': return Token.BEGIN_OBJECT;
+      case '}': return Token.END_OBJECT;
+      case '[': return Token.BEGIN_ARRAY;
+      case ']': return Token.END_ARRAY;
+      case '"': return expectName ? Token.NAME : Token.STRING;
+      case 't':
+      case 'f': return Token.BOOLEAN;
+      case 'n': return Token.NULL;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9'))
+          return Token.NUMBER;
+        throw error("unexpected character '" + c + "'");
+    }
+  }
+
+  void beginObject()
+  {
+    expect(Token.BEGIN_OBJECT);
+    pos++;
+    push(IN_OBJECT);
+  }
+
+  void endObject()
+  {
+    expect(Token.END_OBJECT);
+    pos++;
+    pop();
+  }
+
+  void beginArray()
+  {
+    expect(Token.BEGIN_ARRAY);
+    pos++;
+    push(IN_ARRAY);
+  }
+
+  void endArray()
+  {
+    expect(Token.END_ARRAY);
+    pos++;
+    pop();
+  }
+
+  /**
+   * @return whether the current object or array has more members
+   */
+  boolean hasNext()
+  {
+    Token t = peek();
+    return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END;
+  }
+
+  String nextName()
+  {
+    expect(Token.NAME);
+    String name = readString();
+    skipWhitespace();
+    if (pos >= len || src.charAt(pos) != ':')
+      throw error("expected ':'");
+    pos++;
+    expectName = false;
+    return name;
+  }
+
+  /**
+   * @return whether the next member name equals the given name; the name is
+   *         consumed either way
+   */
+  boolean nextNameIs(String name)
+  {
+    return name.equals(nextName());
+  }
+
+  String nextString()
+  {
+    expect(Token.STRING);
+    String s = readString();
+    valueDone();
+    return s;
+  }
+
+  /**
+   * @return the literal text of the next number
+   */
+  String nextNumber()
+  {
+    expect(Token.NUMBER);
+    int start = pos;
+    while (pos < len && "+-0123456789.eE".indexOf(src.charAt(pos)) >= 0)
+      pos++;
+    valueDone();
+    return src.subSequence(start, pos).toString();
+  }
+
+  boolean nextBoolean()
+  {
+    expect(Token.BOOLEAN);
+    boolean value = src.charAt(pos) == 't';
+    literal(value ? "true" : "false");
+    valueDone();
+    return value;
+  }
+
+  void nextNull()
+  {
+    expect(Token.NULL);
+    literal("null");
+    valueDone();
+  }
+
+  /**
+   * Skips the next value, including everything nested inside it.
+   */
+  void skipValue()
+  {
+    switch (peek()) {
+      case BEGIN_OBJECT:
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+        break;
+      case BEGIN_ARRAY:
+        beginArray();
+        while (hasNext())
+          skipValue();
+        endArray();
+        break;
+      case STRING:
+        nextString();
+        break;
+      case NUMBER:
+        nextNumber();
+        break;
+      case BOOLEAN:
+        nextBoolean();
+        break;
+      case NULL:
+        nextNull();
+        break;
+      default:
+        throw error("expected a value");
+    }
+  }
+
+  private void expect(Token token)
+  {
+    Token t = peek();
+    if (t != token)
+      throw error("expected " + token + " but was " + t);
+  }
+
+  private void push(int kind)
+  {
+    if (depth == stack.length) {
+      int[] s = new int[depth * 2];
+      System.arraycopy(stack, 0, s, 0, depth);
+      stack = s;
+    }
+    stack[depth++] = kind;
+    expectName = kind == IN_OBJECT;
+  }
+
+  private void pop()
+  {
+    depth--;
+    valueDone();
+  }
+
+  private void valueDone()
+  {
+    expectName = depth > 0 && stack[depth - 1] == IN_OBJECT;
+  }
+
+  private void skipWhitespace()
+  {
+    while (pos < len && Character.isWhitespace(src.charAt(pos)))
+      pos++;
+  }
+
+  private void skipWhitespaceAndSeparators()
+  {
+    skipWhitespace();
+    if (pos < len && src.charAt(pos) == ',') {
+      pos++;
+      skipWhitespace();
+    }
+  }
+
+  private void literal(String text)
+  {
+    for (int i = 0; i < text.length(); i++, pos++)
+      if (pos >= len || src.charAt(pos) != text.charAt(i))
+        throw error("expected " + text);
+  }
+
+  private String readString()
+  {
+    pos++; // opening quote
+    int start = pos;
+    while (pos < len) {
+      char c = src.charAt(pos);
+      if (c == '"') {
+        String s = src.subSequence(start, pos).toString();
+        pos++;
+        return s;
+      }
+      if (c == '\\')
+        return readEscapedString(start);
+      pos++;
+    }
+    throw error("unterminated string");
+  }
+
+  private String readEscapedString(int start)
+  {
+    StringBuilder sb = new StringBuilder(src.subSequence(start, pos));
+    while (pos < len) {
+      char c = src.charAt(pos++);
+      if (c == '"')
+        return sb.toString();
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if (pos >= len)
+        break;
+      char e = src.charAt(pos++);
+      switch (e) {
+        case 'b': sb.append('\b'); break;
+        case 'f': sb.append('\f'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 't': sb.append('\t'); break;
+        case 'u':
+          if (pos + 4 > len)
+            throw error("bad unicode escape");
+          try {
+            sb.append((char)Integer.parseInt(src.subSequence(pos, pos + 4).toString(), 16));
+          }
+          catch (NumberFormatException ex) {
+            throw error("bad unicode escape");
+          }
+          pos += 4;
+          break;
+        default:
+          sb.append(e);
+      }
+    }
+    throw error("unterminated string");
+  }
+
+  private IllegalArgumentException error(String what)
+  {
+    return new IllegalArgumentException(what + " at offset " + pos + " of JSON: " + src);
+  }
+}
@@ -0,0 +1,118 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock free histogram of latencies. Values are kept in
+ * microseconds in log-linear buckets: eight buckets per power of two, so a
+ * reported percentile is within 12.5% of the true value. Latencies above
+ * about 19 hours land in the last bucket.
+ */
+public final class LatencyHistogram
+{
+  private static final int SUB_BITS = 3;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int MAX_SHIFT = 33;
+  private static final int BUCKETS = (MAX_SHIFT + 2) * SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void record(long duration, TimeUnit unit)
+  {
+    long micros = Math.max(0, unit.toMicros(duration));
+    counts.incrementAndGet(index(micros));
+    count.incrementAndGet();
+    sumMicros.addAndGet(micros);
+    long max;
+    while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+      // retry
+    }
+  }
+
+  public long count()
+  {
+    return count.get();
+  }
+
+  public double meanMillis()
+  {
+    long n = count.get();
+    return n == 0 ? 0 : sumMicros.get() / 1000.0 / n;
+  }
+
+  public double maxMillis()
+  {
+    return maxMicros.get() / 1000.0;
+  }
+
+  /**
+   * @param percentile 0 to 100, e.g. 99.9
+   * @return the upper bound of the bucket holding the given percentile, in
+   *         milliseconds, or 0 if nothing is recorded
+   */
+  public double percentileMillis(double percentile)
+  {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+      total += snapshot[i] = counts.get(i);
+    if (total == 0)
+      return 0;
+
+    long rank = (long)Math.ceil(percentile / 100.0 * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= Math.max(1, rank))
+        return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+    }
+    return maxMillis();
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set(i, 0);
+    count.set(0);
+    sumMicros.set(0);
+    maxMicros.set(0);
+  }
+
+  static int index(long v)
+  {
+    if (v < SUB)
+      return (int)v;
+    int msb = 63 - Long.numberOfLeadingZeros(v);
+    int shift = msb - SUB_BITS;
+    if (shift > MAX_SHIFT)
+      return BUCKETS - 1;
+    int sub = (int)(v >>> shift) & (SUB - 1);
+    return (shift + 1) * SUB + sub;
+  }
+
+  static long lowerBound(int index)
+  {
+    if (index < SUB)
+      return index;
+    int shift = index / SUB - 1;
+    int sub = index % SUB;
+    return (long)(SUB + sub) << shift;
+  }
+
+  static long upperBound(int index)
+  {
+    return index == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(index + 1) - 1;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+                         count(), meanMillis(), percentileMillis(50), percentileMillis(99), maxMillis());
+  }
+}
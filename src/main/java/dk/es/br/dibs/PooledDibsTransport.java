@@ -0,0 +1,1092 @@
+package dk.es.br.dibs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default {@link DibsTransport}: a small HTTP/1.1 client which keeps a
+ * bounded pool of keep-alive connections per host, so that consecutive calls
+ * skip the TCP and TLS setup. All connections are created from one
+ * {@link SSLContext}, whose client session cache lets new connections resume
+ * an earlier TLS session rather than doing a full handshake. Unless given
+ * one, the transport sets up a context of its own on its first secure
+ * connection, leaving the JVM-wide TLS settings alone.
+ *
+ * Connections go through the proxies of the JVM's {@link ProxySelector},
+ * e.g. as set by the <code>https.proxyHost</code> and
+ * <code>https.proxyPort</code> properties, or a selector of the transport's
+ * own. Secure connections are tunnelled through an HTTP proxy with CONNECT;
+ * proxies requiring authentication are not supported, and fail the request.
+ *
+ * Besides the connect and read timeouts, a request whose call has a
+ * deadline is abandoned, and its connection closed, once the deadline
+ * passes, even if the server keeps trickling data.
+ *
+ * Settings should be made before the transport is first used.
+ */
+public class PooledDibsTransport
+     implements DibsTransport
+{
+  private final static Logger LOG = LoggerFactory.getLogger(PooledDibsTransport.class);
+  private final static long EVICTION_PERIOD_MILLIS = 5000;
+  // Servers keep idle connections for seconds; probing sooner costs a
+  // millisecond per request for nothing
+  private final static long STALE_CHECK_AFTER_MILLIS = 1000;
+  private final static int MAX_HEADER_BYTES = 64 * 1024;
+  private final static byte[] EMPTY = new byte[0];
+
+  private volatile SSLContext sslContext;
+  private int sessionCacheSize = -1;
+  private int sessionTimeoutSeconds = -1;
+  private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler;
+  private final BufferPool buffers = new BufferPool(8192, 64);
+
+  private volatile int maxConnectionsPerHost = 10;
+  private volatile long idleTimeoutMillis = 30000;
+  private volatile long acquireTimeoutMillis = 30000;
+  private volatile int connectTimeoutMillis = 10000;
+  private volatile int readTimeoutMillis = 30000;
+  private volatile int maxResponseBytes = 1024 * 1024;
+  private volatile boolean gzip = true;
+  private volatile ProxySelector proxySelector;
+  private volatile boolean closed;
+
+  /**
+   * Creates a transport with a TLS context of its own, set up on first use.
+   */
+  public PooledDibsTransport()
+  {
+    this(null);
+  }
+
+  /**
+   * @param sslContext the context of secure connections; null for one of
+   *        the transport's own, set up on first use
+   */
+  public PooledDibsTransport(SSLContext sslContext)
+  {
+    this.sslContext = sslContext;
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("dibs-pool-scheduler"));
+    // Watchdogs are cancelled after almost every request
+    scheduler.setRemoveOnCancelPolicy(true);
+    this.scheduler = scheduler;
+    this.scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run()
+      {
+        evictIdleConnections();
+      }
+    }, EVICTION_PERIOD_MILLIS, EVICTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param max the maximum number of connections, busy or idle, to any one host
+   */
+  public PooledDibsTransport maxConnectionsPerHost(int max)
+  {
+    if (max < 1)
+      throw new IllegalArgumentException("max connections: " + max);
+    this.maxConnectionsPerHost = max;
+    return this;
+  }
+
+  /**
+   * @param millis how long an unused connection is kept open
+   */
+  public PooledDibsTransport idleTimeoutMillis(long millis)
+  {
+    this.idleTimeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param millis how long a call waits for a connection when all are busy
+   */
+  public PooledDibsTransport acquireTimeoutMillis(long millis)
+  {
+    this.acquireTimeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param millis how long to wait for a TCP connection, 0 for no limit
+   */
+  public PooledDibsTransport connectTimeoutMillis(int millis)
+  {
+    this.connectTimeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param millis how long the server may go silent while a request is
+   *        outstanding, including the TLS handshake; 0 for no limit
+   */
+  public PooledDibsTransport readTimeoutMillis(int millis)
+  {
+    this.readTimeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param bytes the largest response body accepted, after decompression;
+   *        a larger one fails the request (default 1 MiB)
+   */
+  public PooledDibsTransport maxResponseBytes(int bytes)
+  {
+    if (bytes < 0)
+      throw new IllegalArgumentException("max response bytes: " + bytes);
+    this.maxResponseBytes = bytes;
+    return this;
+  }
+
+  /**
+   * @param gzip whether to offer the server to send gzipped responses
+   *        (default true); gzipped responses are read either way
+   */
+  public PooledDibsTransport gzip(boolean gzip)
+  {
+    this.gzip = gzip;
+    return this;
+  }
+
+  /**
+   * @param selector chooses the proxies of new connections; null for the
+   *        JVM's default selector (default)
+   */
+  public PooledDibsTransport proxySelector(ProxySelector selector)
+  {
+    this.proxySelector = selector;
+    return this;
+  }
+
+  /**
+   * Sizes the TLS session cache used to resume sessions on new connections.
+   *
+   * @param size the maximum number of cached sessions, 0 for no limit
+   * @param timeoutSeconds how long a session may be resumed, 0 for no limit
+   */
+  public synchronized PooledDibsTransport tlsSessionCache(int size, int timeoutSeconds)
+  {
+    this.sessionCacheSize = size;
+    this.sessionTimeoutSeconds = timeoutSeconds;
+    if (sslContext != null)
+      applySessionCache(sslContext);
+    return this;
+  }
+
+  private void applySessionCache(SSLContext ctx)
+  {
+    SSLSessionContext sessions = ctx.getClientSessionContext();
+    if (sessionCacheSize >= 0)
+      sessions.setSessionCacheSize(sessionCacheSize);
+    if (sessionTimeoutSeconds >= 0)
+      sessions.setSessionTimeout(sessionTimeoutSeconds);
+  }
+
+  /**
+   * @return the context of secure connections, set up on first use
+   */
+  private SSLContext sslContext()
+    throws IOException
+  {
+    SSLContext ctx = sslContext;
+    if (ctx != null)
+      return ctx;
+    synchronized (this) {
+      if (sslContext == null) {
+        try {
+          ctx = SSLContext.getInstance("TLS");
+          ctx.init(null, null, null);
+        }
+        catch (GeneralSecurityException ex) {
+          throw new IOException("Could not set up TLS", ex);
+        }
+        applySessionCache(ctx);
+        sslContext = ctx;
+        LOG.debug("Set up {} context", ctx.getProtocol());
+      }
+      return sslContext;
+    }
+  }
+
+  public int getMaxConnectionsPerHost()
+  {
+    return maxConnectionsPerHost;
+  }
+
+  /**
+   * @return the number of idle connections currently kept open, over all hosts
+   */
+  public int getIdleConnections()
+  {
+    int n = 0;
+    for (HostPool pool : pools.values())
+      n += pool.idleCount();
+    return n;
+  }
+
+  @Override
+  public byte[] execute(DibsRequest request)
+    throws IOException
+  {
+    if (closed)
+      throw new IOException("transport closed");
+
+    HostPool pool = pool(request.url());
+    pool.acquire(Math.min(acquireTimeoutMillis, remaining(request)));
+    try {
+      Connection conn = pool.poll();
+      if (conn != null) {
+        try {
+          return exchange(pool, conn, request, true);
+        }
+        catch (StaleConnectionException ex) {
+          // The server dropped the connection while it sat in the pool
+          if (!request.idempotent() || request.remainingMillis() == 0)
+            throw ex.failure;
+          LOG.debug("{}: retrying on a new connection after {}", request, ex.failure.toString());
+        }
+      }
+      return exchange(pool, pool.open(timeout(connectTimeoutMillis, request), timeout(readTimeoutMillis, request)), request, false);
+    }
+    finally {
+      pool.release();
+    }
+  }
+
+  /**
+   * Resolves the host of the URL and opens connections to it, TLS
+   * handshakes included, until the given number, at most the maximum per
+   * host, are ready in the pool. Connections are not opened while all are
+   * busy.
+   *
+   * @return the number of connections opened
+   */
+  @Override
+  public int warmUp(URL url, int connections)
+    throws IOException
+  {
+    if (closed)
+      throw new IOException("transport closed");
+
+    HostPool pool = pool(url);
+    InetAddress.getAllByName(url.getHost());
+    int wanted = Math.min(connections, maxConnectionsPerHost);
+    int opened = 0;
+    while (pool.idleCount() < wanted && pool.tryAcquire()) {
+      try {
+        pool.offer(pool.open(connectTimeoutMillis, readTimeoutMillis));
+        opened++;
+      }
+      finally {
+        pool.release();
+      }
+    }
+    LOG.debug("Warmed up {} with {} new connections", url.getHost(), opened);
+    return opened;
+  }
+
+  /**
+   * Closes connections which have been idle longer than the idle timeout.
+   */
+  public void evictIdleConnections()
+  {
+    long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+    for (HostPool pool : pools.values())
+      pool.evict(cutoff);
+  }
+
+  @Override
+  public void close()
+  {
+    closed = true;
+    scheduler.shutdownNow();
+    for (HostPool pool : pools.values())
+      pool.evict(Long.MAX_VALUE);
+  }
+
+  private HostPool pool(URL url)
+  {
+    boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+    int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    String key = url.getProtocol().toLowerCase() + "://" + url.getHost() + ":" + port;
+
+    HostPool pool = pools.get(key);
+    if (pool == null) {
+      HostPool p = new HostPool(url.getHost(), port, secure, maxConnectionsPerHost);
+      pool = pools.putIfAbsent(key, p);
+      if (pool == null)
+        pool = p;
+    }
+    return pool;
+  }
+
+  /**
+   * @return the time left of the request's deadline
+   * @throws SocketTimeoutException if there is none left
+   */
+  private static long remaining(DibsRequest request)
+    throws SocketTimeoutException
+  {
+    long remaining = request.remainingMillis();
+    if (remaining == 0)
+      throw new SocketTimeoutException(request + ": deadline exceeded");
+    return remaining;
+  }
+
+  /**
+   * @return the socket timeout to use: the configured one, shortened to
+   *         the time left of the deadline; 0 for none
+   */
+  private static int timeout(int configured, DibsRequest request)
+    throws SocketTimeoutException
+  {
+    if (!request.hasDeadline())
+      return configured;
+    long remaining = remaining(request);
+    return (int)(configured > 0 ? Math.min(configured, remaining) : Math.min(Integer.MAX_VALUE, remaining));
+  }
+
+  /**
+   * @param reused whether the connection comes from the pool; if so, and
+   *        it turns out closed by the server before any of the response
+   *        arrived, the failure is thrown as a {@link StaleConnectionException}
+   */
+  private byte[] exchange(HostPool pool, Connection conn, DibsRequest request, boolean reused)
+    throws IOException
+  {
+    ScheduledFuture<?> watchdog = null;
+    boolean answered = false;
+    Response res;
+    try {
+      conn.socket.setSoTimeout(timeout(readTimeoutMillis, request));
+      if (request.hasDeadline())
+        watchdog = scheduler.schedule(conn, remaining(request), TimeUnit.MILLISECONDS);
+      writeRequest(conn, pool, request);
+      conn.awaitResponse();
+      answered = true;
+      res = readResponse(conn, request.method());
+    }
+    catch (IOException | RuntimeException ex) {
+      if (watchdog != null)
+        watchdog.cancel(false);
+      conn.close();
+      if (request.hasDeadline() && request.remainingMillis() == 0 && !(ex instanceof SocketTimeoutException)) {
+        SocketTimeoutException timeout = new SocketTimeoutException(request + ": deadline exceeded");
+        timeout.initCause(ex);
+        throw timeout;
+      }
+      // A timeout means the server has the request, and may be acting on it
+      if (reused && !answered && (ex instanceof EOFException || ex instanceof SocketException))
+        throw new StaleConnectionException((IOException)ex);
+      throw ex;
+    }
+
+    // A watchdog which already fired has closed the connection
+    boolean open = watchdog == null || watchdog.cancel(false);
+    if (res.keepAlive && open)
+      pool.offer(conn);
+    else
+      conn.close();
+
+    if (res.status < 200 || res.status > 299)
+      throw new IOException("Server returned HTTP response code: " + res.status + ": " + request);
+    return res.body;
+  }
+
+  private void writeRequest(Connection conn, HostPool pool, DibsRequest request)
+    throws IOException
+  {
+    URL url = request.url();
+    String target = url.getFile().isEmpty() ? "/" : url.getFile();
+    // A plain proxy is sent the whole URL rather than tunnelled through
+    if (conn.proxied && !pool.secure)
+      target = url.getProtocol() + "://" + pool.hostHeader + target;
+    byte[] body = request.body();
+
+    try (BufferPool.Bytes head = buffers.new Bytes(Integer.MAX_VALUE)) {
+      head.writeAscii(request.method());
+      head.write(' ');
+      head.writeAscii(target);
+      head.writeAscii(" HTTP/1.1\r\nHost: ");
+      head.writeAscii(pool.hostHeader);
+      head.writeAscii("\r\nAccept: */*\r\n");
+      if (gzip)
+        head.writeAscii("Accept-Encoding: gzip\r\n");
+      if (request.authorization() != null) {
+        head.writeAscii("Authorization: ");
+        head.writeAscii(request.authorization());
+        head.writeAscii("\r\n");
+      }
+      if (body != null) {
+        head.writeAscii("Content-Type: application/x-www-form-urlencoded\r\nContent-Length: ");
+        head.writeAscii(Integer.toString(body.length));
+        head.writeAscii("\r\n");
+      }
+      head.writeAscii("\r\n");
+
+      OutputStream out = conn.out;
+      out.write(head.array(), 0, head.length());
+      if (body != null)
+        out.write(body);
+      out.flush();
+    }
+  }
+
+  private Response readResponse(Connection conn, String method)
+    throws IOException
+  {
+    InputStream in = conn.in;
+    Response res = new Response();
+    long contentLength = -1;
+    boolean chunked = false;
+    boolean gzipped = false;
+
+    try (BufferPool.Bytes head = buffers.new Bytes(MAX_HEADER_BYTES)) {
+      // Skip interim 1xx responses
+      do {
+        readHead(in, head);
+        res.status = parseStatus(head);
+      }
+      while (res.status < 200);
+
+      byte[] b = head.array();
+      int end = head.length();
+      res.keepAlive = !startsWith(b, 0, end, "HTTP/1.0");
+
+      int pos = lineEnd(b, 0, end) + 1;
+      while (pos < end) {
+        int eol = lineEnd(b, pos, end);
+        int colon = indexOf(b, pos, eol, (byte)':');
+        if (colon > 0) {
+          int vs = skipSpaces(b, colon + 1, eol);
+          int ve = trimEnd(b, vs, eol);
+          if (nameIs(b, pos, colon, "content-length"))
+            contentLength = parseLong(b, vs, ve);
+          else if (nameIs(b, pos, colon, "transfer-encoding"))
+            chunked = contains(b, vs, ve, "chunked");
+          else if (nameIs(b, pos, colon, "content-encoding"))
+            gzipped = contains(b, vs, ve, "gzip");
+          else if (nameIs(b, pos, colon, "connection")) {
+            boolean close = contains(b, vs, ve, "close");
+            res.keepAlive = contains(b, vs, ve, "keep-alive") || (res.keepAlive && !close);
+          }
+        }
+        pos = eol + 1;
+      }
+    }
+
+    int max = maxResponseBytes;
+    if ("HEAD".equals(method) || res.status == 204 || res.status == 304)
+      res.body = EMPTY;
+    else if (contentLength > max)
+      throw new BufferPool.BodyTooLargeException(max);
+    else if (contentLength >= 0 && !chunked && !gzipped)
+      res.body = readFully(in, (int)contentLength);
+    else {
+      try (BufferPool.Bytes body = buffers.new Bytes(max)) {
+        if (chunked)
+          readChunked(in, body);
+        else if (contentLength >= 0)
+          readFully(in, body, (int)contentLength);
+        else {
+          readToEnd(in, body);
+          res.keepAlive = false;
+        }
+        res.body = gzipped ? gunzip(body, max) : body.toByteArray();
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Reads the status line and headers, up to and including the empty line.
+   */
+  private static void readHead(InputStream in, BufferPool.Bytes head)
+    throws IOException
+  {
+    head.reset();
+    int c;
+    int newlines = 0;
+    while ((c = in.read()) >= 0) {
+      if (c == '\n') {
+        if (++newlines == 2)
+          return;
+      }
+      else if (c != '\r')
+        newlines = 0;
+      head.write(c);
+    }
+    throw new EOFException(head.length() == 0 ? "connection closed by server" : "connection closed while reading headers");
+  }
+
+  private static int parseStatus(BufferPool.Bytes head)
+    throws IOException
+  {
+    byte[] b = head.array();
+    int eol = lineEnd(b, 0, head.length());
+    int sp = indexOf(b, 0, eol, (byte)' ');
+    if (!startsWith(b, 0, eol, "HTTP/") || sp < 0 || eol < sp + 4)
+      throw new IOException("malformed status line: " + new String(b, 0, eol, StandardCharsets.ISO_8859_1));
+    int status = 0;
+    for (int i = sp + 1; i < sp + 4; i++) {
+      int d = b[i] - '0';
+      if (d < 0 || d > 9)
+        throw new IOException("malformed status line: " + new String(b, 0, eol, StandardCharsets.ISO_8859_1));
+      status = status * 10 + d;
+    }
+    return status;
+  }
+
+  private static void readChunked(InputStream in, BufferPool.Bytes body)
+    throws IOException
+  {
+    for (;;) {
+      // Chunk size in hex, optionally followed by extensions
+      long size = 0;
+      int digits = 0;
+      int c;
+      while ((c = in.read()) >= 0 && Character.digit(c, 16) >= 0) {
+        // Leading zeros aside, digits beyond the cap make it malformed
+        if (size <= Integer.MAX_VALUE)
+          size = size * 16 + Character.digit(c, 16);
+        digits++;
+      }
+      while (c >= 0 && c != '\n')
+        c = in.read();
+      if (c < 0)
+        throw new EOFException("connection closed in chunk header");
+      if (digits == 0 || size > Integer.MAX_VALUE)
+        throw new IOException("malformed chunk header");
+      if (size == 0)
+        break;
+      readFully(in, body, (int)size);
+      readLine(in);
+    }
+    skipHeaders(in); // trailers
+  }
+
+  private static void skipHeaders(InputStream in)
+    throws IOException
+  {
+    String line;
+    while ((line = readLine(in)) != null && !line.isEmpty()) {
+      // ignored
+    }
+  }
+
+  private static void readFully(InputStream in, BufferPool.Bytes body, int length)
+    throws IOException
+  {
+    byte[] buf = body.reserve(length);
+    int off = body.length();
+    int end = off + length;
+    while (off < end) {
+      int n = in.read(buf, off, end - off);
+      if (n < 0)
+        throw new EOFException("connection closed after " + (length - (end - off)) + " of " + length + " bytes");
+      off += n;
+    }
+    body.advance(length);
+  }
+
+  private static void readToEnd(InputStream in, BufferPool.Bytes body)
+    throws IOException
+  {
+    for (;;) {
+      byte[] buf = body.reserve(Math.min(4096, body.limit() - body.length()));
+      int room = Math.min(buf.length - body.length(), body.limit() - body.length());
+      if (room == 0) {
+        // At the limit; anything more is too much
+        if (in.read() >= 0)
+          body.reserve(1);
+        return;
+      }
+      int n = in.read(buf, body.length(), room);
+      if (n < 0)
+        return;
+      body.advance(n);
+    }
+  }
+
+  private byte[] gunzip(BufferPool.Bytes compressed, int max)
+    throws IOException
+  {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array(), 0, compressed.length()), 512);
+         BufferPool.Bytes res = buffers.new Bytes(max)) {
+      readToEnd(in, res);
+      return res.toByteArray();
+    }
+  }
+
+  static byte[] readFully(InputStream in, int length)
+    throws IOException
+  {
+    byte[] res = new byte[length];
+    int off = 0;
+    while (off < length) {
+      int n = in.read(res, off, length - off);
+      if (n < 0)
+        throw new EOFException("connection closed after " + off + " of " + length + " bytes");
+      off += n;
+    }
+    return res;
+  }
+
+  /**
+   * @return the index of the end of the line starting at pos, i.e. of its
+   *         '\n', or end
+   */
+  private static int lineEnd(byte[] b, int pos, int end)
+  {
+    int i = indexOf(b, pos, end, (byte)'\n');
+    return i < 0 ? end : i;
+  }
+
+  private static int indexOf(byte[] b, int start, int end, byte c)
+  {
+    for (int i = start; i < end; i++)
+      if (b[i] == c)
+        return i;
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] b, int start, int end, String prefix)
+  {
+    int n = prefix.length();
+    if (end - start < n)
+      return false;
+    for (int i = 0; i < n; i++)
+      if (b[start + i] != prefix.charAt(i))
+        return false;
+    return true;
+  }
+
+  /**
+   * @param lowerName the header name, in lower case
+   */
+  private static boolean nameIs(byte[] b, int start, int end, String lowerName)
+  {
+    end = trimEnd(b, start, end);
+    if (end - start != lowerName.length())
+      return false;
+    for (int i = start; i < end; i++) {
+      int c = b[i];
+      if (c >= 'A' && c <= 'Z')
+        c += 'a' - 'A';
+      if (c != lowerName.charAt(i - start))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param lowerWord the word to look for, in lower case
+   */
+  private static boolean contains(byte[] b, int start, int end, String lowerWord)
+  {
+    int n = lowerWord.length();
+    outer:
+    for (int i = start; i + n <= end; i++) {
+      for (int j = 0; j < n; j++) {
+        int c = b[i + j];
+        if (c >= 'A' && c <= 'Z')
+          c += 'a' - 'A';
+        if (c != lowerWord.charAt(j))
+          continue outer;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static int skipSpaces(byte[] b, int start, int end)
+  {
+    while (start < end && (b[start] == ' ' || b[start] == '\t'))
+      start++;
+    return start;
+  }
+
+  private static int trimEnd(byte[] b, int start, int end)
+  {
+    while (end > start && (b[end - 1] == ' ' || b[end - 1] == '\t' || b[end - 1] == '\r'))
+      end--;
+    return end;
+  }
+
+  private static long parseLong(byte[] b, int start, int end)
+    throws IOException
+  {
+    if (start == end || end - start > 18)
+      throw new IOException("malformed number: " + new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+    long res = 0;
+    for (int i = start; i < end; i++) {
+      int d = b[i] - '0';
+      if (d < 0 || d > 9)
+        throw new IOException("malformed number: " + new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+      res = res * 10 + d;
+    }
+    return res;
+  }
+
+  static String readLine(InputStream in)
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder(64);
+    int c;
+    while ((c = in.read()) >= 0) {
+      if (c == '\n') {
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == '\r')
+          sb.setLength(len - 1);
+        return sb.toString();
+      }
+      sb.append((char)c);
+    }
+    return sb.length() > 0 ? sb.toString() : null;
+  }
+
+  private static class Response
+  {
+    int status;
+    boolean keepAlive;
+    byte[] body;
+  }
+
+  private class HostPool
+  {
+    private final String host;
+    private final int port;
+    private final boolean secure;
+    private final Semaphore permits;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    final String hostHeader;
+
+    HostPool(String host, int port, boolean secure, int maxConnections)
+    {
+      this.host = host;
+      this.port = port;
+      this.secure = secure;
+      boolean defaultPort = secure ? port == 443 : port == 80;
+      this.hostHeader = defaultPort ? host : host + ":" + port;
+      this.permits = new Semaphore(maxConnections, true);
+    }
+
+
+    void acquire(long timeoutMillis)
+      throws IOException
+    {
+      try {
+        if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+          throw new IOException(host + ": no connection available within " + timeoutMillis + "ms");
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException(host + ": interrupted waiting for a connection", ex);
+      }
+    }
+
+    boolean tryAcquire()
+    {
+      return permits.tryAcquire();
+    }
+
+    void release()
+    {
+      permits.release();
+    }
+
+    /**
+     * @return the most recently used idle connection which still looks alive,
+     *         or null if there is none
+     */
+    Connection poll()
+    {
+      long now = System.currentTimeMillis();
+      long cutoff = now - idleTimeoutMillis;
+      for (;;) {
+        Connection conn;
+        synchronized (idle) {
+          conn = idle.pollFirst();
+        }
+        if (conn == null)
+          return null;
+        if (conn.lastUsed >= cutoff && (now - conn.lastUsed < STALE_CHECK_AFTER_MILLIS || !conn.isStale()))
+          return conn;
+        conn.close();
+      }
+    }
+
+    void offer(Connection conn)
+    {
+      conn.lastUsed = System.currentTimeMillis();
+      if (closed) {
+        conn.close();
+        return;
+      }
+      synchronized (idle) {
+        idle.offerFirst(conn);
+      }
+    }
+
+    /**
+     * Opens a connection through the first of the selected proxies that
+     * can be reached.
+     */
+    Connection open(int connectTimeout, int readTimeout)
+      throws IOException
+    {
+      ProxySelector selector = proxySelector != null ? proxySelector : ProxySelector.getDefault();
+      if (selector == null)
+        return open(Proxy.NO_PROXY, connectTimeout, readTimeout);
+
+      URI uri = URI.create((secure ? "https://" : "http://") + hostHeader + "/");
+      List<Proxy> proxies = selector.select(uri);
+      if (proxies == null || proxies.isEmpty())
+        return open(Proxy.NO_PROXY, connectTimeout, readTimeout);
+      IOException failure = null;
+      for (Proxy proxy : proxies) {
+        try {
+          return open(proxy, connectTimeout, readTimeout);
+        }
+        catch (ProxyException ex) {
+          throw ex;
+        }
+        catch (IOException ex) {
+          if (proxy.type() != Proxy.Type.DIRECT)
+            selector.connectFailed(uri, proxy.address(), ex);
+          failure = ex;
+        }
+      }
+      throw failure;
+    }
+
+    private Connection open(Proxy proxy, int connectTimeout, int readTimeout)
+      throws IOException
+    {
+      boolean http = proxy.type() == Proxy.Type.HTTP;
+      Socket socket = http ? new Socket() : new Socket(proxy);
+      try {
+        SocketAddress target = proxy.type() == Proxy.Type.SOCKS
+                             ? InetSocketAddress.createUnresolved(host, port)
+                             : new InetSocketAddress(host, port);
+        socket.connect(http ? proxy.address() : target, connectTimeout);
+        socket.setSoTimeout(readTimeout);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        if (http && secure)
+          tunnel(socket, proxy);
+        if (secure) {
+          SSLSocket ssl = (SSLSocket)sslContext().getSocketFactory().createSocket(socket, host, port, true);
+          SSLParameters params = ssl.getSSLParameters();
+          params.setEndpointIdentificationAlgorithm("HTTPS");
+          ssl.setSSLParameters(params);
+          ssl.startHandshake();
+          socket = ssl;
+        }
+        LOG.debug("Opened connection to {}:{} via {}", host, port, proxy);
+        return new Connection(socket, http && !secure);
+      }
+      catch (IOException ex) {
+        try {
+          socket.close();
+        }
+        catch (IOException ignore) {
+        }
+        throw ex;
+      }
+    }
+
+    /**
+     * Asks an HTTP proxy to connect the socket through to the host.
+     */
+    private void tunnel(Socket socket, Proxy proxy)
+      throws IOException
+    {
+      OutputStream out = socket.getOutputStream();
+      String authority = host + ":" + port;
+      out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      // Read unbuffered, so that nothing of the TLS handshake is consumed
+      try (BufferPool.Bytes head = buffers.new Bytes(MAX_HEADER_BYTES)) {
+        readHead(socket.getInputStream(), head);
+        int status = parseStatus(head);
+        if (status < 200 || status > 299)
+          throw new ProxyException(proxy + " refused to connect to " + authority + ": HTTP response code " + status);
+      }
+    }
+
+    int idleCount()
+    {
+      synchronized (idle) {
+        return idle.size();
+      }
+    }
+
+    void evict(long cutoff)
+    {
+      synchronized (idle) {
+        Iterator<Connection> it = idle.iterator();
+        while (it.hasNext()) {
+          Connection conn = it.next();
+          if (conn.lastUsed < cutoff) {
+            it.remove();
+            conn.close();
+          }
+        }
+      }
+    }
+  }
+
+  private static class Connection
+       implements Runnable
+  {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    // Talks plain HTTP to a proxy, rather than to the host
+    final boolean proxied;
+    volatile long lastUsed;
+
+    Connection(Socket socket, boolean proxied)
+      throws IOException
+    {
+      this.socket = socket;
+      this.proxied = proxied;
+      this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+      this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+      this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * A pooled connection should have nothing to read; end-of-stream means
+     * the server has closed it.
+     */
+    boolean isStale()
+    {
+      try {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(1);
+        try {
+          // Either end-of-stream or unsolicited data; neither is usable
+          in.read();
+          return true;
+        }
+        catch (SocketTimeoutException ex) {
+          return false;
+        }
+        finally {
+          socket.setSoTimeout(timeout);
+        }
+      }
+      catch (IOException ex) {
+        return true;
+      }
+    }
+
+    /**
+     * Waits for the first byte of the response, leaving it to be read.
+     *
+     * @throws EOFException if the server closed the connection instead
+     */
+    void awaitResponse()
+      throws IOException
+    {
+      in.mark(1);
+      if (in.read() < 0)
+        throw new EOFException("connection closed by server");
+      in.reset();
+    }
+
+    /**
+     * Closes the connection when its request runs out of time.
+     */
+    @Override
+    public void run()
+    {
+      LOG.debug("Closing connection to {} at request deadline", socket.getRemoteSocketAddress());
+      close();
+    }
+
+    void close()
+    {
+      try {
+        socket.close();
+      }
+      catch (IOException ex) {
+        LOG.debug("Error closing connection", ex);
+      }
+    }
+  }
+
+  /**
+   * A proxy reached but refusing the connection, which another proxy is
+   * not tried for.
+   */
+  private static final class ProxyException
+       extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    ProxyException(String message)
+    {
+      super(message);
+    }
+  }
+
+  /**
+   * A pooled connection found closed by the server before any response;
+   * the request may be sent again if idempotent.
+   */
+  private static final class StaleConnectionException
+       extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    final IOException failure;
+
+    StaleConnectionException(IOException failure)
+    {
+      super(failure);
+      this.failure = failure;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out calls evenly to stay under a requests-per-second cap.
+ */
+final class RateLimiter
+{
+  private final long intervalNanos;
+  private long next;
+
+  /**
+   * @param permitsPerSecond the rate cap; zero or less for no cap
+   */
+  RateLimiter(double permitsPerSecond)
+  {
+    this.intervalNanos = permitsPerSecond > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+  }
+
+  /**
+   * Blocks until the next call is due.
+   */
+  void acquire()
+    throws InterruptedException
+  {
+    if (intervalNanos == 0)
+      return;
+
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (next - now < 0)
+        next = now;
+      wait = next - now;
+      next += intervalNanos;
+    }
+    if (wait > 0)
+      TimeUnit.NANOSECONDS.sleep(wait);
+  }
+}
@@ -0,0 +1,165 @@
+package dk.es.br.dibs;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Masks card tickets and checksums before they reach logs or listeners.
+ */
+final class Redaction
+{
+  private Redaction()
+  {
+  }
+
+  /**
+   * @return the ticket with all but its last four characters masked
+   */
+  static String ticket(String ticket)
+  {
+    if (ticket == null)
+      return null;
+    int keep = Math.min(4, ticket.length() / 2);
+    StringBuilder sb = new StringBuilder(ticket.length());
+    for (int i = 0; i < ticket.length() - keep; i++)
+      sb.append('*');
+    return sb.append(ticket, ticket.length() - keep, ticket.length()).toString();
+  }
+
+  static boolean isSensitive(String name)
+  {
+    return "ticket".equalsIgnoreCase(name) || "md5key".equalsIgnoreCase(name);
+  }
+
+  static String value(String name, String value)
+  {
+    if ("md5key".equalsIgnoreCase(name))
+      return "***";
+    if ("ticket".equalsIgnoreCase(name))
+      return ticket(value);
+    return value;
+  }
+
+  /**
+   * @return a sorted copy of the parameters with sensitive values masked
+   */
+  static Map<String, String> params(Map<String, ?> params)
+  {
+    Map<String, String> res = new TreeMap<>();
+    if (params == null)
+      return res;
+    for (Map.Entry<String, ?> e : params.entrySet()) {
+      if (e.getKey() == null || e.getValue() == null)
+        continue;
+      String k = e.getKey();
+      res.put(k, value(k, e.getValue().toString()));
+    }
+    return res;
+  }
+
+  /**
+   * @return the text with the tickets of any URLs in it masked, both
+   *         <code>ticket=</code> query values and <code>/tickets/</code>
+   *         path segments
+   */
+  static String text(String text)
+  {
+    if (text == null)
+      return null;
+    StringBuilder sb = null;
+    int copied = 0;
+    int len = text.length();
+    for (int i = 0; i < len; i++) {
+      int start;
+      if (text.startsWith("ticket=", i) && i > 0 && (text.charAt(i - 1) == '?' || text.charAt(i - 1) == '&'))
+        start = i + "ticket=".length();
+      else if (text.startsWith("/tickets/", i))
+        start = i + "/tickets/".length();
+      else
+        continue;
+      int end = start;
+      while (end < len && "&/?# \t\r\n".indexOf(text.charAt(end)) < 0)
+        end++;
+      if (end == start)
+        continue;
+      if (sb == null)
+        sb = new StringBuilder(len);
+      sb.append(text, copied, start).append(ticket(text.substring(start, end)));
+      copied = end;
+      i = end - 1;
+    }
+    return sb == null ? text : sb.append(text, copied, len).toString();
+  }
+
+  /**
+   * @return the JSON reply with the string values of sensitive names masked
+   */
+  static String json(CharSequence reply)
+  {
+    if (reply == null)
+      return null;
+    String s = reply.toString();
+    StringBuilder sb = null;
+    int copied = 0;
+    int len = s.length();
+    for (int i = s.indexOf('"'); i >= 0 && i < len; i = s.indexOf('"', i + 1)) {
+      int close = s.indexOf('"', i + 1);
+      if (close < 0)
+        break;
+      int colon = skipSpace(s, close + 1);
+      if (colon >= len || s.charAt(colon) != ':') {
+        i = close;
+        continue;
+      }
+      int start = skipSpace(s, colon + 1);
+      if (start >= len || s.charAt(start) != '"' || !isSensitive(s.substring(i + 1, close))) {
+        i = colon;
+        continue;
+      }
+      int end = s.indexOf('"', start + 1);
+      if (end < 0)
+        break;
+      if (sb == null)
+        sb = new StringBuilder(len);
+      sb.append(s, copied, start + 1).append(value(s.substring(i + 1, close), s.substring(start + 1, end)));
+      copied = end;
+      i = end;
+    }
+    return sb == null ? s : sb.append(s, copied, len).toString();
+  }
+
+  private static int skipSpace(String s, int pos)
+  {
+    while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+      pos++;
+    return pos;
+  }
+
+  /**
+   * @return the form encoded reply with sensitive values masked
+   */
+  static String reply(CharSequence reply)
+  {
+    if (reply == null)
+      return null;
+    final StringBuilder sb = new StringBuilder(reply.length());
+    int pos = 0;
+    int len = reply.length();
+    while (pos <= len) {
+      int end = pos;
+      while (end < len && reply.charAt(end) != '&')
+        end++;
+      int eq = pos;
+      while (eq < end && reply.charAt(eq) != '=')
+        eq++;
+      if (pos > 0)
+        sb.append('&');
+      if (eq < end && isSensitive(reply.subSequence(pos, eq).toString()))
+        sb.append(reply, pos, eq + 1).append(value(reply.subSequence(pos, eq).toString(), reply.subSequence(eq + 1, end).toString()));
+      else
+        sb.append(reply, pos, end);
+      pos = end + 1;
+    }
+    return sb.toString();
+  }
+}
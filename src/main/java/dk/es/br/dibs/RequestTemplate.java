@@ -0,0 +1,280 @@
+package dk.es.br.dibs;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The fixed part of the requests to one DIBS endpoint: where they go, and
+ * the form fields which are the same for every call, encoded once. The
+ * fields which vary are added per call to a {@link Body}.
+ *
+ * Templates are immutable and shared between threads.
+ */
+final class RequestTemplate
+{
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+  private static final ThreadLocal<Body> BODY = new ThreadLocal<Body>() {
+    @Override
+    protected Body initialValue()
+    {
+      return new Body();
+    }
+  };
+
+  /**
+   * A form field which varies per call, with its name encoded.
+   */
+  static final class Field
+  {
+    final String name;
+    private final byte[] prefix;
+
+    Field(String name)
+    {
+      this.name = name;
+      this.prefix = ("&" + encode(name) + "=").getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  final String endpoint;
+  final URL url;
+  final boolean auth;
+  final boolean readOnly;
+  private final String[] names;
+  private final String[] values;
+  private final byte[] constants;
+
+  /**
+   * @param endpoint the path as reported to listeners and isolation, e.g.
+   *        with placeholders for tickets
+   * @param url where the requests go
+   * @param constants the fields sent with every call, in order
+   */
+  RequestTemplate(String endpoint, String url, boolean auth, boolean readOnly, Map<String, String> constants)
+  {
+    this.endpoint = endpoint;
+    try {
+      this.url = new URL(url);
+    }
+    catch (MalformedURLException ex) {
+      throw new IllegalArgumentException(url, ex);
+    }
+    this.auth = auth;
+    this.readOnly = readOnly;
+    Map<String, String> set = new LinkedHashMap<>(constants);
+    set.values().removeIf(v -> v == null);
+    this.names = set.keySet().toArray(new String[0]);
+    this.values = set.values().toArray(new String[0]);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < names.length; i++) {
+      if (sb.length() > 0)
+        sb.append('&');
+      sb.append(encode(names[i])).append('=').append(encode(values[i]));
+    }
+    this.constants = sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @return this thread's body, emptied and started on this template; it
+   *         is reused by the next call on the thread
+   */
+  Body body()
+  {
+    Body b = BODY.get();
+    b.reset(this);
+    return b;
+  }
+
+  /**
+   * The encoded fields of one call.
+   */
+  static final class Body
+  {
+    private RequestTemplate template;
+    private byte[] buf = new byte[256];
+    private int len;
+    private Object[] fields = new Object[16];
+    private int fieldCount;
+
+    private void reset(RequestTemplate t)
+    {
+      template = t;
+      len = 0;
+      fieldCount = 0;
+      append(t.constants, 0, t.constants.length);
+    }
+
+    RequestTemplate template()
+    {
+      return template;
+    }
+
+    Body add(Field field, CharSequence value)
+    {
+      if (value == null)
+        return this;
+      prefix(field.prefix);
+      appendEncoded(value);
+      remember(field.name, value);
+      return this;
+    }
+
+    Body add(Field field, long value)
+    {
+      prefix(field.prefix);
+      appendDigits(value);
+      remember(field.name, value);
+      return this;
+    }
+
+    /**
+     * Adds a field not known to the template.
+     */
+    Body add(String name, Object value)
+    {
+      if (name == null || value == null)
+        return this;
+      if (len > 0)
+        append((byte)'&');
+      appendEncoded(name);
+      append((byte)'=');
+      appendEncoded(value.toString());
+      remember(name, value);
+      return this;
+    }
+
+    /**
+     * @return a copy of the encoded fields, for the request
+     */
+    byte[] toByteArray()
+    {
+      return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * @return the template's URL with the encoded fields as query string
+     */
+    URL queryUrl()
+      throws MalformedURLException
+    {
+      return new URL(template.url + "?" + new String(buf, 0, len, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return all fields, for events and logging
+     */
+    Map<String, Object> params()
+    {
+      Map<String, Object> res = new LinkedHashMap<>();
+      for (int i = 0; i < template.names.length; i++)
+        res.put(template.names[i], template.values[i]);
+      for (int i = 0; i < fieldCount; i += 2)
+        res.put((String)fields[i], fields[i + 1]);
+      return res;
+    }
+
+    private void remember(String name, Object value)
+    {
+      if (fieldCount + 2 > fields.length)
+        fields = Arrays.copyOf(fields, fields.length * 2);
+      fields[fieldCount++] = name;
+      fields[fieldCount++] = value;
+    }
+
+    private void prefix(byte[] prefix)
+    {
+      // Leave out the '&' of the first field
+      int skip = len == 0 ? 1 : 0;
+      append(prefix, skip, prefix.length - skip);
+    }
+
+    private void appendDigits(long v)
+    {
+      if (v < 0) {
+        if (v == Long.MIN_VALUE) {
+          appendEncoded(Long.toString(v));
+          return;
+        }
+        append((byte)'-');
+        v = -v;
+      }
+      int start = len;
+      do {
+        append((byte)('0' + (int)(v % 10)));
+        v /= 10;
+      } while (v > 0);
+      for (int i = start, j = len - 1; i < j; i++, j--) {
+        byte t = buf[i];
+        buf[i] = buf[j];
+        buf[j] = t;
+      }
+    }
+
+    /**
+     * Encodes as {@link java.net.URLEncoder} does in UTF-8.
+     */
+    private void appendEncoded(CharSequence s)
+    {
+      int n = s.length();
+      for (int i = 0; i < n; i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          if (unreserved(c))
+            append((byte)c);
+          else if (c == ' ')
+            append((byte)'+');
+          else
+            appendEscaped(c);
+        }
+        else {
+          int end = i + 1;
+          if (Character.isHighSurrogate(c) && end < n && Character.isLowSurrogate(s.charAt(end)))
+            end++;
+          for (byte b : s.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8))
+            appendEscaped(b & 0xff);
+          i = end - 1;
+        }
+      }
+    }
+
+    private void appendEscaped(int b)
+    {
+      append((byte)'%');
+      append(HEX[b >> 4]);
+      append(HEX[b & 0xf]);
+    }
+
+    private void append(byte b)
+    {
+      if (len == buf.length)
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      buf[len++] = b;
+    }
+
+    private void append(byte[] b, int off, int n)
+    {
+      if (len + n > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+      System.arraycopy(b, off, buf, len, n);
+      len += n;
+    }
+  }
+
+  private static boolean unreserved(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '.' || c == '-' || c == '*' || c == '_';
+  }
+
+  static String encode(String s)
+  {
+    Body b = new Body();
+    b.appendEncoded(s);
+    return new String(b.buf, 0, b.len, StandardCharsets.US_ASCII);
+  }
+}
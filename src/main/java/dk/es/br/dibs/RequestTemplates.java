@@ -0,0 +1,172 @@
+package dk.es.br.dibs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import dk.es.br.dibs.RequestTemplate.Body;
+import dk.es.br.dibs.RequestTemplate.Field;
+
+/**
+ * The request templates of one {@link DibsConfig}, one per endpoint, with
+ * typed methods filling in the fields which vary per call.
+ */
+final class RequestTemplates
+{
+  static final String TICKET_AUTH = "/cgi-ssl/ticket_auth.cgi";
+  static final String CANCEL = "/cgi-adm/cancel.cgi";
+  static final String DELETE_TICKET = "/cgi-adm/delticket.cgi";
+  static final String CARD_TYPE = "/cardtype.pml";
+  static final String FEE = "/api/fee/v1/subscribers/{merchant}/best";
+
+  private static final Field TICKET = new Field("ticket");
+  private static final Field ORDER_ID = new Field("orderid");
+  private static final Field AMOUNT = new Field("amount");
+  private static final Field CURRENCY = new Field("currency");
+  private static final Field MD5_KEY = new Field("md5key");
+  private static final Field CALC_FEE = new Field("calcfee");
+  private static final Field TRANSACT = new Field("transact");
+
+  private final String baseUrl;
+  private final String merchant;
+  private final boolean testing;
+  private final RequestTemplate authorize;
+  private final RequestTemplate zeroPreauth;
+  private final RequestTemplate ticketAuth;
+  private final RequestTemplate cancel;
+  private final RequestTemplate deleteTicket;
+  private final RequestTemplate cardType;
+  private final RequestTemplate fee;
+  private final ConcurrentMap<String, RequestTemplate> withdraw = new ConcurrentHashMap<>();
+
+  RequestTemplates(DibsConfig cfg)
+  {
+    String base = cfg.getBaseUrl();
+    if (base.endsWith("/"))
+      base = base.substring(0, base.length() - 1);
+    this.baseUrl = base;
+    this.merchant = cfg.getMerchantId();
+    this.testing = cfg.isTesting();
+
+    authorize = post(TICKET_AUTH, false, false, fields("orderid", "checking-account"));
+    zeroPreauth = post(TICKET_AUTH, false, false, fields("amount", "100", "currency", "DKK", "zero_preauth", "1"));
+    ticketAuth = new RequestTemplate(TICKET_AUTH, baseUrl + TICKET_AUTH, false, false, fields());
+    cancel = post(CANCEL, true, false, fields());
+    deleteTicket = post(DELETE_TICKET, true, false, fields());
+    cardType = post(CARD_TYPE, true, true, fields());
+    fee = new RequestTemplate(FEE, baseUrl + "/api/fee/v1/subscribers/" + merchant + "/best",
+                              false, true, fields("test", Boolean.toString(testing)));
+    withdrawTemplate(TICKET_AUTH);
+  }
+
+  private Map<String, String> fields(String... nameValues)
+  {
+    Map<String, String> res = new LinkedHashMap<>();
+    for (int i = 0; i < nameValues.length; i += 2)
+      res.put(nameValues[i], nameValues[i + 1]);
+    return res;
+  }
+
+  private RequestTemplate post(String path, boolean auth, boolean readOnly, Map<String, String> constants)
+  {
+    Map<String, String> fields = new LinkedHashMap<>();
+    fields.put("merchant", merchant);
+    fields.putAll(constants);
+    fields.put("textreply", "yes");
+    return new RequestTemplate(path, baseUrl + path, auth, readOnly, fields);
+  }
+
+  private RequestTemplate withdrawTemplate(String path)
+  {
+    RequestTemplate t = withdraw.get(path);
+    if (t == null) {
+      Map<String, String> constants = fields("capturenow", "yes", "uniqueoid", "yes", "fullreply", "yes", "mitType", "UCOF");
+      if (testing)
+        constants.put("test", "yes");
+      t = post(path, false, false, constants);
+      RequestTemplate raced = withdraw.putIfAbsent(path, t);
+      if (raced != null)
+        t = raced;
+    }
+    return t;
+  }
+
+  Body withdraw(String path, String ticket, String orderId, long cents, String currency, String md5key, boolean calcFee)
+  {
+    Body b = withdrawTemplate(path).body()
+        .add(TICKET, ticket)
+        .add(ORDER_ID, orderId)
+        .add(AMOUNT, cents)
+        .add(CURRENCY, currency)
+        .add(MD5_KEY, md5key);
+    if (calcFee)
+      b.add(CALC_FEE, "yes");
+    return b;
+  }
+
+  /**
+   * An authorization to be cancelled, checking a card.
+   */
+  Body authorize(String ticket, long cents, String currency)
+  {
+    return authorize.body()
+        .add(TICKET, ticket)
+        .add(AMOUNT, cents)
+        .add(CURRENCY, currency);
+  }
+
+  /**
+   * A zero amount authorization.
+   *
+   * @param extra further fields, which may also override the standard ones
+   */
+  Body zeroPreauth(String ticket, String orderId, Map<?, ?> extra)
+  {
+    if (extra.isEmpty()) {
+      return zeroPreauth.body()
+          .add(TICKET, ticket)
+          .add(ORDER_ID, orderId);
+    }
+
+    Map<Object, Object> fields = new LinkedHashMap<>();
+    fields.put("merchant", merchant);
+    fields.put("ticket", ticket);
+    fields.put("orderid", orderId);
+    fields.put("amount", "100");
+    fields.put("currency", "DKK");
+    fields.put("zero_preauth", "1");
+    fields.putAll(extra);
+    fields.put("textreply", "yes");
+    Body b = ticketAuth.body();
+    for (Map.Entry<Object, Object> e : fields.entrySet())
+      b.add(e.getKey() != null ? e.getKey().toString() : null, e.getValue());
+    return b;
+  }
+
+  Body cancel(String transact)
+  {
+    return cancel.body().add(TRANSACT, transact);
+  }
+
+  Body deleteTicket(String ticket)
+  {
+    return deleteTicket.body().add(TICKET, ticket);
+  }
+
+  Body cardType(Long transact)
+  {
+    Body b = cardType.body();
+    if (transact != null)
+      b.add(TRANSACT, transact);
+    return b;
+  }
+
+  Body fee(String ticket, long amountCents, String currency)
+  {
+    return fee.body()
+        .add(AMOUNT, amountCents)
+        .add(CURRENCY, currency)
+        .add(TICKET, ticket);
+  }
+}
@@ -0,0 +1,224 @@
+package dk.es.br.dibs;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * Single pass parser of the "textreply" form replies of the DIBS server,
+ * i.e. <code>name=value&amp;name=value...</code>.
+ *
+ * The pairs are split the way the original <code>StringTokenizer</code> based
+ * parser did: empty pairs are skipped, and anything not made up of exactly
+ * one non-empty name and one non-empty value is taken as a positional field,
+ * numbered from 1, whose value is its first non-empty part. Names are
+ * matched case-insensitively. Values are only decoded when asked for.
+ */
+final class ResponseParser
+{
+  private ResponseParser()
+  {
+  }
+
+  /**
+   * Receives the fields of a reply as ranges of the source.
+   */
+  interface Fields
+  {
+    /**
+     * @param src the reply
+     * @param keyStart start of the name, or -1 for a positional field
+     * @param keyEnd end of the name
+     * @param valStart start of the (still encoded) value
+     * @param valEnd end of the value
+     * @param position the 1-based position of the field among all fields
+     */
+    void field(CharSequence src, int keyStart, int keyEnd, int valStart, int valEnd, int position);
+  }
+
+  static void parse(CharSequence src, Fields fields)
+  {
+    int len = src.length();
+    int position = 0;
+    int pos = 0;
+    while (pos < len) {
+      int end = pos;
+      while (end < len && src.charAt(end) != '&')
+        end++;
+
+      // Locate the first two non-empty parts of the pair, and whether there are more
+      int p1s = -1, p1e = -1, p2s = -1, p2e = -1;
+      int parts = 0;
+      int i = pos;
+      while (i < end && parts < 3) {
+        while (i < end && isSeparator(src.charAt(i)))
+          i++;
+        if (i == end)
+          break;
+        int s = i;
+        while (i < end && !isSeparator(src.charAt(i)))
+          i++;
+        parts++;
+        if (parts == 1) {
+          p1s = s;
+          p1e = i;
+        }
+        else if (parts == 2) {
+          p2s = s;
+          p2e = i;
+        }
+      }
+
+      if (parts == 2)
+        fields.field(src, p1s, p1e, p2s, p2e, ++position);
+      else if (parts > 0)
+        fields.field(src, -1, -1, p1s, p1e, ++position);
+
+      pos = end + 1;
+    }
+  }
+
+  private static boolean isSeparator(char c)
+  {
+    return c == '=';
+  }
+
+  /**
+   * @param lowerName the expected name, in lower case
+   * @return whether the range holds the given name, ignoring case
+   */
+  static boolean nameIs(CharSequence src, int start, int end, String lowerName)
+  {
+    if (start < 0 || end - start != lowerName.length())
+      return false;
+    for (int i = start; i < end; i++)
+      if (Character.toLowerCase(src.charAt(i)) != lowerName.charAt(i - start))
+        return false;
+    return true;
+  }
+
+  /**
+   * URL-decodes the range, as UTF-8.
+   */
+  static String decode(CharSequence src, int start, int end)
+  {
+    for (int i = start; i < end; i++) {
+      char c = src.charAt(i);
+      if (c == '%' || c == '+') {
+        try {
+          return URLDecoder.decode(src.subSequence(start, end).toString(), "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+          // Can't happen
+          throw new RuntimeException(ex);
+        }
+      }
+    }
+    return src.subSequence(start, end).toString();
+  }
+
+  /**
+   * The fields of a reply used by the client, filled in directly by the
+   * parser. Any other field is skipped without being decoded.
+   */
+  static final class Reply
+       implements Fields
+  {
+    private final CharSequence raw;
+
+    String status;
+    String message;
+    String reason;
+    String actionCode;
+    String transact;
+    String orderId;
+    String fee;
+    String suspect;
+    String severity;
+    String cardType;
+    String cardGroup;
+    String cardRegion;
+    String first;
+
+    private Reply(CharSequence raw)
+    {
+      this.raw = raw;
+    }
+
+    static Reply parse(CharSequence src)
+    {
+      Reply reply = new Reply(src);
+      ResponseParser.parse(src, reply);
+      return reply;
+    }
+
+    @Override
+    public void field(CharSequence src, int ks, int ke, int vs, int ve, int position)
+    {
+      if (position == 1 && ks < 0)
+        first = decode(src, vs, ve);
+      if (ks < 0)
+        return;
+
+      // Later occurrences of a name win, as they did in the map
+      switch (ke - ks) {
+        case 3:
+          if (nameIs(src, ks, ke, "fee"))
+            fee = decode(src, vs, ve);
+          break;
+        case 6:
+          if (nameIs(src, ks, ke, "status"))
+            status = decode(src, vs, ve);
+          else if (nameIs(src, ks, ke, "reason"))
+            reason = decode(src, vs, ve);
+          break;
+        case 7:
+          if (nameIs(src, ks, ke, "message"))
+            message = decode(src, vs, ve);
+          else if (nameIs(src, ks, ke, "orderid"))
+            orderId = decode(src, vs, ve);
+          else if (nameIs(src, ks, ke, "suspect"))
+            suspect = decode(src, vs, ve);
+          break;
+        case 8:
+          if (nameIs(src, ks, ke, "transact"))
+            transact = decode(src, vs, ve);
+          else if (nameIs(src, ks, ke, "severity"))
+            severity = decode(src, vs, ve);
+          break;
+        case 10:
+          if (nameIs(src, ks, ke, "actioncode"))
+            actionCode = decode(src, vs, ve);
+          else if (nameIs(src, ks, ke, "cardtypecd"))
+            cardType = decode(src, vs, ve);
+          break;
+        case 15:
+          if (nameIs(src, ks, ke, "privatebusiness"))
+            cardGroup = decode(src, vs, ve);
+          else if (nameIs(src, ks, ke, "surchargeregion"))
+            cardRegion = decode(src, vs, ve);
+          break;
+        default:
+          break;
+      }
+    }
+
+    CharSequence raw()
+    {
+      return raw;
+    }
+
+    boolean accepted()
+    {
+      return "ACCEPTED".equalsIgnoreCase(status);
+    }
+
+    /**
+     * @return the reply as received
+     */
+    @Override
+    public String toString()
+    {
+      return raw.toString();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package dk.es.br.dibs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps what DIBS has told about card tickets and transactions. The card
+ * type of a transaction never changes and is kept until it is pushed out by
+ * newer entries; the surchargeability of a ticket is kept for a limited
+ * time. Deleting a ticket through the client drops what is known about it.
+ *
+ * <pre>
+ *   client.setTicketMetadataCache(new TicketMetadataCache(50000, 50000, 1, TimeUnit.DAYS));
+ * </pre>
+ */
+public class TicketMetadataCache
+{
+  private final ExpiringCache<Long, String> cardTypes;
+  private final ExpiringCache<String, String> surchargeability;
+
+  /**
+   * @param maxTransactions the number of transaction card types kept
+   * @param maxTickets the number of ticket surchargeability reasons kept
+   * @param surchargeabilityTtl how long a surchargeability reason is used
+   */
+  public TicketMetadataCache(int maxTransactions, int maxTickets, long surchargeabilityTtl, TimeUnit unit)
+  {
+    this.cardTypes = new ExpiringCache<>(maxTransactions, 0, unit);
+    this.surchargeability = new ExpiringCache<>(maxTickets, surchargeabilityTtl, unit);
+  }
+
+  String cardType(Long transactionId, ExpiringCache.Loader<String> loader)
+    throws DibsException
+  {
+    return cardTypes.get(transactionId, loader);
+  }
+
+  String surchargeabilityReason(String ticket, ExpiringCache.Loader<String> loader)
+    throws DibsException
+  {
+    return surchargeability.get(ticket, loader);
+  }
+
+  boolean hasSurchargeabilityReason(String ticket)
+  {
+    return surchargeability.getIfPresent(ticket) != null;
+  }
+
+  /**
+   * Forgets what is known about the given ticket.
+   */
+  public void invalidateTicket(String ticket)
+  {
+    surchargeability.invalidate(ticket);
+  }
+
+  public void invalidateAll()
+  {
+    cardTypes.invalidateAll();
+    surchargeability.invalidateAll();
+  }
+
+  public int getCardTypeCount()
+  {
+    return cardTypes.size();
+  }
+
+  public int getTicketCount()
+  {
+    return surchargeability.size();
+  }
+
+  public long getHitCount()
+  {
+    return cardTypes.hits() + surchargeability.hits();
+  }
+
+  public long getMissCount()
+  {
+    return cardTypes.misses() + surchargeability.misses();
+  }
+
+  public long getEvictionCount()
+  {
+    return cardTypes.evictions() + surchargeability.evictions();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "TicketMetadataCache[cardTypes=" + getCardTypeCount() + ", tickets=" + getTicketCount()
+         + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+  }
+}
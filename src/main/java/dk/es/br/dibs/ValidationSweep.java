@@ -0,0 +1,279 @@
+package dk.es.br.dibs;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates a large set of stored card tickets, e.g. all cards on file for
+ * the upcoming sales, by {@link DibsClient#validateSubscription zero_preauth}
+ * authorizations run a number at a time.
+ *
+ * Validations are only started within the time windows given, if any, and
+ * under a budget of requests per second, which retries count against too.
+ * A validation failing on DIBS' or the acquirer's side (reasons 1-3) or in
+ * transport is retried with growing delays; the ticket is reported as an
+ * error only once the attempts are used up, and the sweep goes on.
+ *
+ * <pre>
+ *   BatchRun run = new ValidationSweep(client)
+ *       .concurrency(8)
+ *       .maxRequestsPerSecond(5)
+ *       .window(LocalTime.of(1, 0), LocalTime.of(6, 0))
+ *       .start(tickets, sink);
+ * </pre>
+ *
+ * In the run's counters, a ticket found invalid counts as succeeded; only
+ * errors count as failed.
+ */
+public class ValidationSweep
+{
+  private final static Logger LOG = LoggerFactory.getLogger(ValidationSweep.class);
+
+  private final DibsClient client;
+  private int concurrency = 8;
+  private double maxRequestsPerSecond;
+  private int maxAttempts = 4;
+  private long retryDelayMillis = 1000;
+  private long maxRetryDelayMillis = 60000;
+  private final List<LocalTime[]> windows = new ArrayList<>();
+  private ZoneId zone = ZoneId.systemDefault();
+  private Map<String, String> additionalParams = Collections.emptyMap();
+  private String orderIdPrefix = "validate-";
+
+  /**
+   * Receives the outcome of each ticket as it completes. Called from the
+   * worker threads, so implementations must be thread safe.
+   */
+  public interface Sink
+  {
+    void valid(String ticket, DibsResponse<?> response);
+
+    /**
+     * @param response holds the DIBS reason the card was refused for
+     */
+    void invalid(String ticket, DibsResponse<?> response);
+
+    /**
+     * The card could not be judged, after all attempts.
+     *
+     * @param failure the failure of the last attempt
+     */
+    void error(String ticket, Exception failure);
+  }
+
+  public ValidationSweep(DibsClient client)
+  {
+    this.client = client;
+  }
+
+  /**
+   * @param concurrency the number of validations in flight at a time
+   */
+  public ValidationSweep concurrency(int concurrency)
+  {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  /**
+   * @param max the cap on validation requests, retries included, per
+   *        second; 0 for no cap
+   */
+  public ValidationSweep maxRequestsPerSecond(double max)
+  {
+    this.maxRequestsPerSecond = max;
+    return this;
+  }
+
+  /**
+   * @param attempts the attempts made at a ticket before reporting it as an
+   *        error (default 4)
+   */
+  public ValidationSweep maxAttempts(int attempts)
+  {
+    if (attempts < 1)
+      throw new IllegalArgumentException("attempts: " + attempts);
+    this.maxAttempts = attempts;
+    return this;
+  }
+
+  /**
+   * @param millis the wait before the first retry, doubled for every
+   *        following one (default 1000)
+   * @param maxMillis the longest wait between retries (default 60000)
+   */
+  public ValidationSweep retryDelay(long millis, long maxMillis)
+  {
+    this.retryDelayMillis = millis;
+    this.maxRetryDelayMillis = maxMillis;
+    return this;
+  }
+
+  /**
+   * Adds a daily time window for the sweep to run in. A window ending
+   * before it starts runs past midnight. Without windows, the sweep runs
+   * right away and to the end.
+   */
+  public ValidationSweep window(LocalTime start, LocalTime end)
+  {
+    if (start.equals(end))
+      throw new IllegalArgumentException("empty window: " + start);
+    windows.add(new LocalTime[] { start, end });
+    return this;
+  }
+
+  /**
+   * @param zone the time zone of the windows (default the system's)
+   */
+  public ValidationSweep zone(ZoneId zone)
+  {
+    this.zone = zone;
+    return this;
+  }
+
+  /**
+   * @param params extra parameters for each validation, e.g. a test flag
+   */
+  public ValidationSweep additionalParams(Map<String, String> params)
+  {
+    this.additionalParams = new HashMap<>(params);
+    return this;
+  }
+
+  /**
+   * @param prefix the start of the order ids of the validations, which are
+   *        numbered within the sweep (default "validate-")
+   */
+  public ValidationSweep orderIdPrefix(String prefix)
+  {
+    this.orderIdPrefix = prefix;
+    return this;
+  }
+
+  public BatchRun start(Iterable<String> tickets, Sink sink)
+  {
+    return start(tickets.iterator(), sink);
+  }
+
+  public BatchRun start(Stream<String> tickets, Sink sink)
+  {
+    return start(tickets.iterator(), sink);
+  }
+
+  public BatchRun start(Iterator<String> tickets, final Sink sink)
+  {
+    final RateLimiter rate = new RateLimiter(maxRequestsPerSecond);
+    final AtomicLong orders = new AtomicLong();
+    final String prefix = orderIdPrefix + System.currentTimeMillis() / 1000 + "-";
+    final AtomicReference<BatchRun> run = new AtomicReference<>();
+
+    // The rate budget is spent per attempt, in the task, rather than per ticket
+    run.set(BatchRun.start("dibs-validate", tickets, concurrency, 0, (String ticket) -> {
+      DibsResponse<?> response;
+      try {
+        response = validate(ticket, prefix + orders.incrementAndGet(), rate, run);
+      }
+      catch (DibsException | RuntimeException ex) {
+        sink.error(ticket, ex);
+        throw ex;
+      }
+      if (response.success())
+        sink.valid(ticket, response);
+      else
+        sink.invalid(ticket, response);
+    }));
+    return run.get();
+  }
+
+  private DibsResponse<?> validate(String ticket, String orderId, RateLimiter rate, AtomicReference<BatchRun> run)
+    throws DibsException, InterruptedException
+  {
+    for (int attempt = 1; ; attempt++) {
+      awaitWindow(run);
+      rate.acquire();
+      try {
+        return client.validateSubscription(ticket, orderId, additionalParams);
+      }
+      catch (DibsException ex) {
+        if (attempt >= maxAttempts || !retryable(ex) || cancelled(run))
+          throw ex;
+        LOG.debug("Validating {} failed (attempt {}): {}", Redaction.ticket(ticket), attempt, ex.getMessage());
+        TimeUnit.MILLISECONDS.sleep(Math.min(retryDelayMillis << Math.min(attempt - 1, 20), maxRetryDelayMillis));
+      }
+    }
+  }
+
+  /**
+   * @return whether the failure says nothing about the card itself
+   */
+  static boolean retryable(DibsException ex)
+  {
+    String key = ex.getErrorKey();
+    if ("1".equals(key) || "2".equals(key) || "3".equals(key))
+      return true;
+    return ex.getCause() instanceof IOException
+        || DibsException.DEADLINE_EXCEEDED.equals(key)
+        || DibsException.CIRCUIT_OPEN.equals(key)
+        || DibsException.BULKHEAD_FULL.equals(key)
+        || DibsException.CONCURRENCY_LIMITED.equals(key);
+  }
+
+  private void awaitWindow(AtomicReference<BatchRun> run)
+    throws InterruptedException
+  {
+    long wait;
+    while ((wait = millisUntilOpen(LocalDateTime.now(zone))) > 0) {
+      if (cancelled(run))
+        throw new CancellationException("sweep cancelled outside its window");
+      // Wake up now and then to notice a cancel
+      TimeUnit.MILLISECONDS.sleep(Math.min(wait, 1000));
+    }
+  }
+
+  private static boolean cancelled(AtomicReference<BatchRun> run)
+  {
+    BatchRun r = run.get();
+    return r != null && r.isCancelled();
+  }
+
+  /**
+   * @return how long until one of the windows is open; 0 if one is
+   */
+  long millisUntilOpen(LocalDateTime now)
+  {
+    if (windows.isEmpty())
+      return 0;
+    long best = Long.MAX_VALUE;
+    LocalTime t = now.toLocalTime();
+    for (LocalTime[] w : windows) {
+      LocalTime start = w[0], end = w[1];
+      boolean open = start.isBefore(end)
+                   ? !t.isBefore(start) && t.isBefore(end)
+                   : !t.isBefore(start) || t.isBefore(end);
+      if (open)
+        return 0;
+      LocalDateTime next = now.with(start);
+      if (!next.isAfter(now))
+        next = next.plusDays(1);
+      best = Math.min(best, now.until(next, ChronoUnit.MILLIS));
+    }
+    return best;
+  }
+}
@@ -0,0 +1,281 @@
+package dk.es.br.dibs;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Currency;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets a client ready ahead of a run, so that its first payments are as
+ * fast as the rest. The encoding, signing and parsing of requests are run
+ * on synthetic replies until compiled, the DIBS host is resolved and
+ * connections are opened, and from then on, until closed, the connections
+ * are kept open with a cheap request each on a fixed period, sent straight
+ * to the transport so that it is not seen by listeners, metrics or breakers.
+ *
+ * <pre>
+ *   WarmUp warmUp = new WarmUp(client).connections(8);
+ *   warmUp.scheduleAt(runStart.minus(Duration.ofMinutes(2)));
+ *   ...
+ *   warmUp.close();
+ * </pre>
+ *
+ * Settings should be made before the warm-up is started.
+ */
+public class WarmUp
+     implements Closeable
+{
+  private final static Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+  private static final String TICKET = "2718314359";
+  private static final BigDecimal AMOUNT = new BigDecimal("300.00");
+  private static final Currency DKK = Currency.getInstance("DKK");
+  private static final byte[] WITHDRAW_REPLY = bytes("status=ACCEPTED&transact=1000000001&orderid=warm-up&amount=30000"
+                                                     + "&currency=208&cardtype=V-DK&fee=375&suspect=false&severity=0");
+  private static final byte[] CARD_TYPE_REPLY = bytes("V-DK");
+  private static final byte[] FEE_REPLY = bytes("{\"agreement\":1,\"fee\":375,\"amount\":30000}");
+  private static final byte[] TICKET_REPLY = bytes("{\"ticket\":\"" + TICKET + "\",\"reason\":\"PRIVATE\"}");
+
+  /**
+   * Answers like DIBS, without leaving the JVM.
+   */
+  private static final DibsTransport SYNTHETIC = request -> {
+    String path = request.url().getPath();
+    if (path.equals("/cardtype.pml"))
+      return CARD_TYPE_REPLY.clone();
+    if (path.startsWith("/api/fee/"))
+      return FEE_REPLY.clone();
+    if (path.startsWith("/api/card/"))
+      return TICKET_REPLY.clone();
+    return WITHDRAW_REPLY.clone();
+  };
+
+  private final DibsClient client;
+  private final LongAdder pings = new LongAdder();
+  private final LongAdder pingFailures = new LongAdder();
+
+  private volatile int connections = 4;
+  private volatile long keepAliveMillis = 20000;
+  private volatile int syntheticCalls = 5000;
+
+  private ScheduledThreadPoolExecutor executor;
+  private ScheduledFuture<?> keepAlive;
+  private boolean closed;
+
+  public WarmUp(DibsClient client)
+  {
+    this.client = client;
+  }
+
+  /**
+   * @param n the connections opened and kept open (default 4), at most
+   *        the transport's maximum per host
+   */
+  public WarmUp connections(int n)
+  {
+    if (n < 1)
+      throw new IllegalArgumentException("connections: " + n);
+    this.connections = n;
+    return this;
+  }
+
+  /**
+   * @param millis the period of the keep-alive requests, which should be
+   *        shorter than both the server's and the transport's idle
+   *        timeouts (default 20000); 0 for none
+   */
+  public WarmUp keepAliveMillis(long millis)
+  {
+    this.keepAliveMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param calls the rounds of synthetic withdrawals and lookups run
+   *        (default 5000); 0 for none
+   */
+  public WarmUp syntheticCalls(int calls)
+  {
+    this.syntheticCalls = calls;
+    return this;
+  }
+
+  /**
+   * @return the keep-alive requests answered
+   */
+  public long getPingCount()
+  {
+    return pings.sum();
+  }
+
+  public long getPingFailureCount()
+  {
+    return pingFailures.sum();
+  }
+
+  /**
+   * Warms up on the caller's thread, without keeping connections alive
+   * afterwards.
+   *
+   * @return the number of connections opened
+   */
+  public int warmUp()
+    throws DibsException
+  {
+    long t0 = System.nanoTime();
+    exercise();
+    int opened = client.warmUp(connections);
+    LOG.info("Warmed up in {}ms, {} connections opened", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), opened);
+    return opened;
+  }
+
+  /**
+   * Runs withdrawals and lookups of the client's configuration against
+   * synthetic replies, which never reach DIBS nor the client's listeners.
+   */
+  public void exercise()
+    throws DibsException
+  {
+    DibsClient synthetic = new DibsClient(client.getConfig(), SYNTHETIC);
+    synthetic.setLogSampleRate(0);
+    int n = syntheticCalls;
+    for (int i = 0; i < n; i++) {
+      synthetic.withdraw(TICKET, "warm-up-" + i, AMOUNT, DKK, true);
+      synthetic.getCardType(1000000001L + i);
+      synthetic.feeQuote(TICKET, 30000, DKK);
+      synthetic.surchargeabilityReason(TICKET);
+    }
+  }
+
+  /**
+   * Warms up in the background now, then keeps the connections alive
+   * until closed.
+   */
+  public void start()
+  {
+    scheduleAt(Instant.now());
+  }
+
+  /**
+   * Warms up in the background at the given time, then keeps the
+   * connections alive until closed.
+   */
+  public synchronized void scheduleAt(Instant at)
+  {
+    if (closed)
+      throw new IllegalStateException("warm-up closed");
+    long delay = Math.max(0, at.toEpochMilli() - System.currentTimeMillis());
+    executor().schedule(new Runnable() {
+      @Override
+      public void run()
+      {
+        try {
+          warmUp();
+        }
+        catch (DibsException | RuntimeException ex) {
+          LOG.warn("Warming up failed", ex);
+        }
+        startKeepAlive();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void startKeepAlive()
+  {
+    long period = keepAliveMillis;
+    if (closed || keepAlive != null || period <= 0)
+      return;
+    keepAlive = executor().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run()
+      {
+        keepAlive();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends a keep-alive request per connection, all at once so that each
+   * takes a connection of its own, then opens new connections in place of
+   * any the server has closed.
+   */
+  void keepAlive()
+  {
+    int n = connections;
+    final CountDownLatch done = new CountDownLatch(n);
+    for (int i = 0; i < n; i++) {
+      try {
+        executor().execute(new Runnable() {
+          @Override
+          public void run()
+          {
+            try {
+              client.ping();
+              pings.increment();
+            }
+            catch (DibsException | RuntimeException ex) {
+              pingFailures.increment();
+              LOG.debug("Keep-alive request failed", ex);
+            }
+            finally {
+              done.countDown();
+            }
+          }
+        });
+      }
+      catch (RejectedExecutionException ex) {
+        // Closed meanwhile
+        return;
+      }
+    }
+    try {
+      if (!done.await(Math.max(keepAliveMillis, 1000), TimeUnit.MILLISECONDS))
+        LOG.debug("Keep-alive requests still running");
+      client.warmUp(n);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    catch (DibsException | RuntimeException ex) {
+      LOG.warn("Reopening connections failed", ex);
+    }
+  }
+
+  /**
+   * Stops keeping the connections alive, letting keep-alive requests
+   * under way finish. The connections are left in the pool.
+   */
+  @Override
+  public synchronized void close()
+  {
+    closed = true;
+    if (executor != null)
+      executor.shutdown();
+  }
+
+  private synchronized ScheduledThreadPoolExecutor executor()
+  {
+    if (executor == null) {
+      // One thread ticks while the others send the keep-alive requests
+      executor = new ScheduledThreadPoolExecutor(connections + 1, new DaemonThreadFactory("dibs-warm-up"));
+      executor.setRemoveOnCancelPolicy(true);
+      executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+    return executor;
+  }
+
+  private static byte[] bytes(String s)
+  {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
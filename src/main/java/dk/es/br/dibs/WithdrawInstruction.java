@@ -0,0 +1,57 @@
+package dk.es.br.dibs;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+/**
+ * One charge of a batch: the arguments of
+ * {@link DibsClient#withdraw(String, String, BigDecimal, Currency, boolean)}.
+ */
+public final class WithdrawInstruction
+{
+  private final String accountId;
+  private final String orderId;
+  private final BigDecimal amount;
+  private final Currency currency;
+  private final boolean chargeCardFee;
+
+  public WithdrawInstruction(String accountId, String orderId, BigDecimal amount, Currency currency, boolean chargeCardFee)
+  {
+    this.accountId = accountId;
+    this.orderId = orderId;
+    this.amount = amount;
+    this.currency = currency;
+    this.chargeCardFee = chargeCardFee;
+  }
+
+  public String accountId()
+  {
+    return accountId;
+  }
+
+  public String orderId()
+  {
+    return orderId;
+  }
+
+  public BigDecimal amount()
+  {
+    return amount;
+  }
+
+  public Currency currency()
+  {
+    return currency;
+  }
+
+  public boolean chargeCardFee()
+  {
+    return chargeCardFee;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "withdraw " + amount + " " + currency + " for order " + orderId;
+  }
+}
@@ -0,0 +1,510 @@
+package dk.es.br.dibs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead journal of withdrawals, so that a withdrawal cut short by
+ * a crash is known and can be reconciled with DIBS:
+ *
+ * <pre>
+ *   WithdrawJournal journal = new WithdrawJournal(Paths.get("/var/lib/dibs/journal"));
+ *   for (WithdrawJournal.Intent intent : journal.getInDoubt())
+ *     ... look the order up at DIBS, then journal.resolve(intent.orderId())
+ *   client.setWithdrawJournal(journal);
+ * </pre>
+ *
+ * The intent of a withdrawal is on disk before the request is sent; its
+ * outcome is written once DIBS has answered. A withdrawal whose request
+ * failed without an answer has no outcome and stays in doubt. Outcomes are
+ * not waited for, so one lost in a crash leaves its order in doubt too,
+ * which errs on the safe side.
+ *
+ * Records are appended to memory-mapped segment files, a new one being
+ * started when the current one is full and on every opening. Intents
+ * written at the same time share one flush to disk. Segments older than
+ * the oldest intent in doubt are deleted as new ones are started.
+ */
+public class WithdrawJournal
+     implements Closeable
+{
+  private final static Logger LOG = LoggerFactory.getLogger(WithdrawJournal.class);
+
+  private static final int MAGIC = 0x44574a31; // "DWJ1"
+  private static final int HEADER_BYTES = 4;
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final byte INTENT = 1;
+  private static final byte ACCEPTED = 2;
+  private static final byte DECLINED = 3;
+  private static final byte RESOLVED = 4;
+  private static final String PREFIX = "withdraws-";
+  private static final String SUFFIX = ".journal";
+  // Keeps every record within the scratch buffer
+  private static final int MAX_STRING_BYTES = 512;
+
+  /**
+   * A withdrawal journalled as about to be sent.
+   */
+  public static final class Intent
+  {
+    private final String orderId;
+    private final String merchantId;
+    private final String ticket;
+    private final long amountCents;
+    private final String currency;
+    private final long timeMillis;
+    private final long segment;
+
+    Intent(String orderId, String merchantId, String ticket, long amountCents, String currency, long timeMillis, long segment)
+    {
+      this.orderId = orderId;
+      this.merchantId = merchantId;
+      this.ticket = ticket;
+      this.amountCents = amountCents;
+      this.currency = currency;
+      this.timeMillis = timeMillis;
+      this.segment = segment;
+    }
+
+    public String orderId()
+    {
+      return orderId;
+    }
+
+    public String merchantId()
+    {
+      return merchantId;
+    }
+
+    public String ticket()
+    {
+      return ticket;
+    }
+
+    public long amountCents()
+    {
+      return amountCents;
+    }
+
+    /**
+     * @return the ISO 4217 numeric code of the currency
+     */
+    public String currency()
+    {
+      return currency;
+    }
+
+    public long timeMillis()
+    {
+      return timeMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "order " + orderId + " of merchant " + merchantId + ": " + amountCents + " (" + currency + ")"
+           + " on ticket " + Redaction.ticket(ticket) + " at " + new Date(timeMillis);
+    }
+  }
+
+  private final Path dir;
+  private final Map<String, Intent> pending = new LinkedHashMap<>();
+  private final LongAdder records = new LongAdder();
+  private final LongAdder syncs = new LongAdder();
+  private final CRC32 crc = new CRC32();
+  private final ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+  private volatile int segmentBytes = 16 * 1024 * 1024;
+
+  // Guarded by this
+  private long nextSegment;
+  private FileChannel channel;
+  private MappedByteBuffer segment;
+  private long segmentNumber;
+  private long written;
+  private long durable;
+  private boolean forcing;
+  private boolean closed;
+
+  /**
+   * Opens the journal in the given directory, creating it if need be, and
+   * reads what it holds. The withdrawals found in doubt are logged.
+   */
+  public WithdrawJournal(Path dir)
+    throws IOException
+  {
+    this.dir = dir;
+    Files.createDirectories(dir);
+    TreeMap<Long, Path> segments = segments();
+    for (Map.Entry<Long, Path> e : segments.entrySet())
+      scan(e.getKey(), e.getValue());
+    nextSegment = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    for (Intent intent : pending.values())
+      LOG.warn("Withdrawal in doubt: {}", intent);
+  }
+
+  /**
+   * @param bytes the size of the segments started from now on (default
+   *        16 MiB)
+   */
+  public WithdrawJournal segmentBytes(int bytes)
+  {
+    if (bytes < 1024)
+      throw new IllegalArgumentException("segment bytes: " + bytes);
+    this.segmentBytes = bytes;
+    return this;
+  }
+
+  /**
+   * @return the withdrawals with no outcome, oldest first: those found on
+   *         opening, and those which have since failed without an answer
+   */
+  public synchronized List<Intent> getInDoubt()
+  {
+    return Collections.unmodifiableList(new ArrayList<>(pending.values()));
+  }
+
+  /**
+   * @return the records written since opening
+   */
+  public long getRecordCount()
+  {
+    return records.sum();
+  }
+
+  /**
+   * @return the flushes to disk made since opening, each covering all
+   *         records written before it
+   */
+  public long getSyncCount()
+  {
+    return syncs.sum();
+  }
+
+  /**
+   * Journals a withdrawal as about to be sent, returning once it is on disk.
+   */
+  void intent(String merchantId, String orderId, String ticket, long amountCents, String currency)
+    throws IOException
+  {
+    long end;
+    synchronized (this) {
+      ByteBuffer b = record(INTENT, orderId);
+      putString(b, merchantId);
+      putString(b, ticket);
+      b.putLong(amountCents);
+      putString(b, currency);
+      end = append(b);
+      pending.put(orderId, new Intent(orderId, merchantId, ticket, amountCents, currency, System.currentTimeMillis(), segmentNumber));
+    }
+    try {
+      sync(end);
+    }
+    catch (IOException ex) {
+      // Not to be sent, so not in doubt, unless found on disk after a crash
+      synchronized (this) {
+        pending.remove(orderId);
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Journals the answer of DIBS to a withdrawal, without waiting for it to
+   * reach the disk.
+   */
+  void outcome(String orderId, boolean accepted, String transactionId, String reason)
+    throws IOException
+  {
+    synchronized (this) {
+      ByteBuffer b = record(accepted ? ACCEPTED : DECLINED, orderId);
+      putString(b, transactionId);
+      putString(b, reason);
+      append(b);
+      pending.remove(orderId);
+    }
+  }
+
+  /**
+   * Marks a withdrawal in doubt as settled, e.g. once it has been looked up
+   * at DIBS, so that it is no longer reported.
+   */
+  public void resolve(String orderId)
+    throws IOException
+  {
+    long end;
+    synchronized (this) {
+      if (!pending.containsKey(orderId))
+        return;
+      end = append(record(RESOLVED, orderId));
+      pending.remove(orderId);
+    }
+    sync(end);
+  }
+
+  /**
+   * Flushes what has been written and closes the current segment.
+   */
+  @Override
+  public void close()
+    throws IOException
+  {
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      while (forcing) {
+        try {
+          wait();
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      if (segment != null) {
+        segment.force();
+        channel.close();
+        segment = null;
+      }
+    }
+  }
+
+  /**
+   * Starts a record in the scratch buffer.
+   */
+  private ByteBuffer record(byte type, String orderId)
+    throws IOException
+  {
+    if (closed)
+      throw new IOException("journal closed");
+    ByteBuffer b = scratch;
+    b.clear();
+    b.position(RECORD_HEADER_BYTES);
+    b.put(type);
+    b.putLong(System.currentTimeMillis());
+    putString(b, orderId);
+    return b;
+  }
+
+  /**
+   * Appends the record in the scratch buffer to the current segment,
+   * starting a new segment if it does not fit.
+   *
+   * @return the position in the journal at the end of the record
+   */
+  private long append(ByteBuffer b)
+    throws IOException
+  {
+    int len = b.position();
+    crc.reset();
+    crc.update(b.array(), RECORD_HEADER_BYTES, len - RECORD_HEADER_BYTES);
+    b.putInt(0, len - RECORD_HEADER_BYTES);
+    b.putInt(4, (int)crc.getValue());
+
+    if (segment == null || segment.remaining() < len)
+      roll(len);
+    segment.put(b.array(), 0, len);
+    written += len;
+    records.increment();
+    return written;
+  }
+
+  /**
+   * Flushes the journal to disk up to the given position. Whoever finds no
+   * flush running makes one for all records written so far; the others
+   * wait for it.
+   */
+  private void sync(long end)
+    throws IOException
+  {
+    MappedByteBuffer buf;
+    long target;
+    synchronized (this) {
+      while (durable < end) {
+        if (!forcing)
+          break;
+        try {
+          wait();
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted waiting for the journal", ex);
+        }
+      }
+      if (durable >= end)
+        return;
+      if (closed)
+        throw new IOException("journal closed");
+      forcing = true;
+      buf = segment;
+      target = written;
+    }
+
+    try {
+      buf.force();
+      syncs.increment();
+    }
+    finally {
+      synchronized (this) {
+        forcing = false;
+        // Rolling forces the segments it leaves, so all of the target is on disk
+        if (target > durable)
+          durable = target;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Starts a new segment, flushing the one left, and deletes the segments
+   * older than the oldest withdrawal in doubt.
+   */
+  private void roll(int needed)
+    throws IOException
+  {
+    if (segment != null) {
+      segment.force();
+      channel.close();
+      // What was left of the old segment counts as written and flushed
+      written += segment.remaining();
+      durable = written;
+    }
+
+    long number = nextSegment++;
+    int size = Math.max(segmentBytes, HEADER_BYTES + needed + 1);
+    Path file = dir.resolve(String.format("%s%08d%s", PREFIX, number, SUFFIX));
+    channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    segment.putInt(MAGIC);
+    segmentNumber = number;
+    written += HEADER_BYTES;
+    LOG.debug("Started journal segment {}", file);
+
+    long oldest = number;
+    for (Intent intent : pending.values())
+      oldest = Math.min(oldest, intent.segment);
+    for (Map.Entry<Long, Path> e : segments().headMap(oldest).entrySet()) {
+      try {
+        Files.delete(e.getValue());
+      }
+      catch (IOException ex) {
+        LOG.warn("Could not delete journal segment {}", e.getValue(), ex);
+      }
+    }
+  }
+
+  private TreeMap<Long, Path> segments()
+    throws IOException
+  {
+    TreeMap<Long, Path> res = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          res.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+        }
+        catch (NumberFormatException ex) {
+          LOG.warn("Ignoring {} in the withdrawal journal", file);
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Reads a segment into the withdrawals pending. Reading stops at the
+   * first record not completely written.
+   */
+  private void scan(long number, Path file)
+    throws IOException
+  {
+    ByteBuffer buf;
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+    }
+    if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC) {
+      LOG.warn("Ignoring {}, which is not a withdrawal journal segment", file);
+      return;
+    }
+
+    byte[] payload = new byte[0];
+    CRC32 check = new CRC32();
+    while (buf.remaining() >= RECORD_HEADER_BYTES) {
+      int len = buf.getInt();
+      int sum = buf.getInt();
+      if (len == 0)
+        return;
+      if (len < 0 || len > buf.remaining()) {
+        LOG.warn("Torn record at {} of {}", buf.position() - RECORD_HEADER_BYTES, file);
+        return;
+      }
+      if (payload.length < len)
+        payload = new byte[len];
+      buf.get(payload, 0, len);
+      check.reset();
+      check.update(payload, 0, len);
+      if ((int)check.getValue() != sum) {
+        LOG.warn("Torn record at {} of {}", buf.position() - len - RECORD_HEADER_BYTES, file);
+        return;
+      }
+
+      ByteBuffer r = ByteBuffer.wrap(payload, 0, len);
+      byte type = r.get();
+      long time = r.getLong();
+      String orderId = getString(r);
+      if (type == INTENT) {
+        String merchantId = getString(r);
+        String ticket = getString(r);
+        long amount = r.getLong();
+        String currency = getString(r);
+        pending.put(orderId, new Intent(orderId, merchantId, ticket, amount, currency, time, number));
+      }
+      else
+        pending.remove(orderId);
+    }
+  }
+
+  private static void putString(ByteBuffer b, String s)
+  {
+    if (s == null) {
+      b.putShort((short)-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_STRING_BYTES)
+      throw new IllegalArgumentException("too long for the journal: " + s.length() + " chars");
+    b.putShort((short)bytes.length);
+    b.put(bytes);
+  }
+
+  private static String getString(ByteBuffer b)
+  {
+    int len = b.getShort();
+    if (len < 0)
+      return null;
+    String s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+    b.position(b.position() + len);
+    return s;
+  }
+}
@@ -0,0 +1,170 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdaptiveConcurrencyLimitTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static void round(AdaptiveConcurrencyLimit limit, int calls, boolean dropped, long rttNanos) throws Exception {
+    round(limit, "/cardtype.pml", calls, dropped, rttNanos);
+  }
+
+  private static void round(AdaptiveConcurrencyLimit limit, String endpoint, int calls, boolean dropped, long rttNanos) throws Exception {
+    for (int i = 0; i < calls; i++)
+      limit.acquire(null);
+    for (int i = 0; i < calls; i++)
+      limit.release(endpoint, dropped, rttNanos);
+  }
+
+  @Test
+  public void testGrowsWhileLatencyIsFlat() throws Exception
+  {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4);
+    for (int i = 0; i < 50; i++)
+      round(limit, limit.getLimit(), false, 10 * MS);
+    assertTrue(limit.getLimit() > 10, limit.toString());
+    assertEquals(limit.getNoLoadMillis(), 10.0);
+    assertEquals(limit.getInFlight(), 0);
+  }
+
+  @Test
+  public void testDoesNotGrowWhenUnused() throws Exception
+  {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10);
+    for (int i = 0; i < 100; i++)
+      round(limit, 1, false, 10 * MS);
+    assertEquals(limit.getLimit(), 10);
+  }
+
+  @Test
+  public void testShrinksWhenLatencyRises() throws Exception
+  {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20);
+    round(limit, 20, false, 10 * MS);
+    for (int i = 0; i < 10; i++)
+      round(limit, limit.getLimit(), false, 50 * MS);
+    assertTrue(limit.getLimit() < 10, limit.toString());
+  }
+
+  @Test
+  public void testSlowEndpointIsHeldToItsOwnRoundTrip() throws Exception
+  {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10);
+    for (int i = 0; i < 50; i++) {
+      int n = limit.getLimit();
+      for (int j = 0; j < n; j++)
+        limit.acquire(null);
+      for (int j = 0; j < n; j++) {
+        if (j % 2 == 0)
+          limit.release("/cardtype.pml", false, 5 * MS);
+        else
+          limit.release("/cgi-ssl/ticket_auth.cgi", false, 200 * MS);
+      }
+    }
+    assertTrue(limit.getLimit() > 10, limit.toString());
+    assertEquals(limit.getNoLoadMillis("/cardtype.pml"), 5.0);
+    assertEquals(limit.getNoLoadMillis("/cgi-ssl/ticket_auth.cgi"), 200.0);
+    assertEquals(limit.getNoLoadMillis(), 5.0);
+
+    // Only a rise on the slow endpoint itself counts as congestion
+    for (int i = 0; i < 30; i++)
+      round(limit, "/cgi-ssl/ticket_auth.cgi", limit.getLimit(), false, 1000 * MS);
+    assertTrue(limit.getLimit() < 10, limit.toString());
+  }
+
+  @Test
+  public void testRespectsBounds() throws Exception
+  {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(5).bounds(4, 6);
+    for (int i = 0; i < 50; i++)
+      round(limit, limit.getLimit(), true, 10 * MS);
+    assertEquals(limit.getLimit(), 4);
+    for (int i = 0; i < 100; i++)
+      round(limit, limit.getLimit(), false, 10 * MS);
+    assertEquals(limit.getLimit(), 6);
+  }
+
+  @Test
+  public void testCallsOverTheLimitWait() throws Exception
+  {
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1).bounds(1, 1).maxWaitMillis(50);
+    limit.acquire(null);
+    long t0 = System.nanoTime();
+    try {
+      limit.acquire(null);
+      fail("expected rejection");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), DibsException.CONCURRENCY_LIMITED);
+    }
+    assertTrue(System.nanoTime() - t0 >= 50 * MS);
+    limit.cancel();
+    limit.acquire(null);
+  }
+
+  @Test
+  public void testWaitForASlotCountsAgainstTheOperationTimeout() throws Exception
+  {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicLong remaining = new AtomicLong(-1);
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, request -> {
+      if (started.getCount() > 0) {
+        started.countDown();
+        try {
+          Thread.sleep(200);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      else
+        remaining.set(request.remainingMillis());
+      return "V-DK".getBytes(StandardCharsets.UTF_8);
+    });
+    client.setConcurrencyLimit(new AdaptiveConcurrencyLimit(1).bounds(1, 1));
+    client.setOperationTimeout(300, TimeUnit.MILLISECONDS);
+
+    CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> {
+      try {
+        return client.getCardType(1L);
+      }
+      catch (DibsException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertEquals(client.getCardType(2L), "V-DK");
+    assertEquals(first.get(5, TimeUnit.SECONDS), "V-DK");
+    assertTrue(remaining.get() >= 0 && remaining.get() < 200, remaining + "ms left");
+  }
+
+  @Test
+  public void testCommunicationProblemsShrinkTheLimit() throws Exception
+  {
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG,
+        request -> "status=DECLINED&reason=1&message=Communication+problems".getBytes(StandardCharsets.UTF_8));
+    AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10);
+    client.setConcurrencyLimit(limit);
+    for (int i = 0; i < 10; i++) {
+      try {
+        client.withdraw("2718314359", "F" + i, new BigDecimal("300.00"), Currency.getInstance("DKK"), false);
+        fail("expected decline");
+      }
+      catch (DibsException ex) {
+        assertEquals(ex.getErrorKey(), "1");
+      }
+    }
+    assertEquals(limit.getLimit(), 9);
+    assertEquals(limit.getInFlight(), 0);
+  }
+}
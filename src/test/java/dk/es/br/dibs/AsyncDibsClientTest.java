@@ -0,0 +1,73 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.concurrent.ExecutionException;
+
+import dk.es.br.dibs.DibsClient.Payment;
+
+public class AsyncDibsClientTest {
+
+  static final DibsConfig CONFIG = new DibsConfig() {
+    @Override public String getMerchantId() { return "4259425"; }
+    @Override public String getDibsUser() { return "user"; }
+    @Override public String getDibsPassword() { return "secret"; }
+    @Override public String getMd5K1() { return "K+NBa~?KS6~x4cAx3oJ_3!c#M.c9f8)k"; }
+    @Override public String getMd5K2() { return "wBz{8igqJGzi@?*16bIx!t5_.d$n#A{k"; }
+    @Override public boolean isTesting() { return true; }
+  };
+
+  private String reply;
+  private AsyncDibsClient async;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    DibsTransport transport = request -> reply.getBytes(StandardCharsets.UTF_8);
+    async = new AsyncDibsClient(new DibsClient(CONFIG, transport), 2);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    async.close();
+  }
+
+  @Test
+  public void testWithdraw() throws Exception
+  {
+    reply = "status=ACCEPTED&transact=2718314359&fee=250&orderid=F2487845";
+    DibsResponse<Payment> res = async.withdraw("ticket", "F2487845", new BigDecimal("300.00"), Currency.getInstance("DKK"), true).get();
+    assertTrue(res.success());
+    assertEquals(res.transactionId(), Long.valueOf(2718314359L));
+    assertEquals(res.result().feeAmount(), new BigDecimal("2.50"));
+    assertEquals(res.result().orderId(), "F2487845");
+  }
+
+  @Test
+  public void testWithdrawDeclinedFailsWithDibsException() throws Exception
+  {
+    reply = "status=DECLINED&reason=4&actioncode=116&message=Declined";
+    try {
+      async.withdraw("ticket", "F2487845", new BigDecimal("300.00"), Currency.getInstance("DKK"), false).get();
+      fail("expected failure");
+    }
+    catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof DibsException);
+      DibsException de = (DibsException)ex.getCause();
+      assertEquals(de.getErrorKey(), "4");
+      assertEquals(de.getActionCode(), "116");
+    }
+  }
+
+  @Test
+  public void testGetCardType() throws Exception
+  {
+    reply = "V-DK";
+    assertEquals(async.getCardType(2718314359L).get(), "V-DK");
+  }
+}
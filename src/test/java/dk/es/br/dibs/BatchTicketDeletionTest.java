@@ -0,0 +1,130 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class BatchTicketDeletionTest {
+
+  private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+  private DibsClient client;
+  private Path dir;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    deleted.clear();
+    dir = Files.createTempDirectory("dibs-delete");
+    DibsTransport transport = request -> {
+      String body = new String(request.body(), StandardCharsets.UTF_8);
+      String ticket = body.replaceAll(".*ticket=([^&]*).*", "$1");
+      if (ticket.startsWith("9") || !deleted.add(ticket))
+        return "status=DECLINED&reason=2&message=Unknown+ticket".getBytes(StandardCharsets.UTF_8);
+      return ("status=ACCEPTED&ticket=" + ticket).getBytes(StandardCharsets.UTF_8);
+    };
+    client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    for (Path p : Files.newDirectoryStream(dir))
+      Files.delete(p);
+    Files.delete(dir);
+  }
+
+  private static List<String> tickets(int n) {
+    List<String> res = new ArrayList<>();
+    for (int i = 0; i < n; i++)
+      res.add(String.valueOf((i % 10 == 9 ? 9000000000L : 1000000000L) + i));
+    return res;
+  }
+
+  @Test
+  public void testReportHasOneLinePerTicket() throws Exception
+  {
+    StringWriter report = new StringWriter();
+    Path checkpoint = dir.resolve("checkpoint");
+    BatchRun run = new BatchTicketDeletion(client).concurrency(4).checkpoint(checkpoint).checkpointEvery(7)
+        .report(report).start(tickets(50));
+
+    assertTrue(run.await(10, TimeUnit.SECONDS));
+    assertEquals(run.succeeded(), 45);
+    assertEquals(run.failed(), 5);
+    String[] lines = report.toString().split("\n");
+    assertEquals(lines.length, 50);
+    assertTrue(Arrays.asList(lines).contains("1000000000\tOK"));
+    assertTrue(Arrays.asList(lines).contains("9000000009\tFAILED\t2"));
+    assertEquals(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim(), "50");
+  }
+
+  @Test
+  public void testResumesAfterTheCheckpoint() throws Exception
+  {
+    Path checkpoint = dir.resolve("checkpoint");
+    Files.write(checkpoint, "30\n".getBytes(StandardCharsets.US_ASCII));
+    StringWriter report = new StringWriter();
+    BatchRun run = new BatchTicketDeletion(client).concurrency(4).checkpoint(checkpoint)
+        .report(report).start(tickets(50));
+
+    assertTrue(run.await(10, TimeUnit.SECONDS));
+    assertEquals(run.submitted(), 20);
+    assertEquals(deleted.size(), 18);
+    assertFalse(deleted.contains("1000000029"));
+    assertTrue(deleted.contains("1000000030"));
+    assertEquals(report.toString().split("\n").length, 20);
+    assertEquals(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim(), "50");
+  }
+
+  @Test
+  public void testReportIsOnDiskBeforeTheCheckpoint() throws Exception
+  {
+    final Path checkpoint = dir.resolve("checkpoint");
+    final Path report = dir.resolve("report.txt");
+    final List<String> behind = new CopyOnWriteArrayList<>();
+    DibsClient checking = new DibsClient(AsyncDibsClientTest.CONFIG, request -> {
+      // As a crash here would find them
+      if (Files.exists(checkpoint)) {
+        long done = Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+        long lines = Files.readAllLines(report, StandardCharsets.UTF_8).size();
+        if (lines < done)
+          behind.add(lines + " < " + done);
+      }
+      return "status=ACCEPTED".getBytes(StandardCharsets.UTF_8);
+    });
+
+    BatchRun run = new BatchTicketDeletion(checking).concurrency(4).checkpoint(checkpoint).checkpointEvery(5)
+        .report(report).start(tickets(100));
+    assertTrue(run.await(10, TimeUnit.SECONDS));
+    assertTrue(behind.isEmpty(), behind.toString());
+    assertEquals(Files.readAllLines(report, StandardCharsets.UTF_8).size(), 100);
+  }
+
+  @Test
+  public void testReadsTicketsFromAFile() throws Exception
+  {
+    Path in = dir.resolve("tickets.txt");
+    Files.write(in, Arrays.asList("# closed accounts", "1000000001", "", "  1000000002  ", "1000000003"), StandardCharsets.UTF_8);
+    Path report = dir.resolve("report.txt");
+    Files.write(report, Arrays.asList("1000000000\tOK"), StandardCharsets.UTF_8);
+
+    BatchRun run = new BatchTicketDeletion(client).maxRequestsPerSecond(1000).report(report).start(in);
+    assertTrue(run.await(10, TimeUnit.SECONDS));
+    assertEquals(run.succeeded(), 3);
+    assertEquals(deleted.size(), 3);
+    assertTrue(deleted.contains("1000000002"));
+    // Appended to
+    assertEquals(Files.readAllLines(report, StandardCharsets.UTF_8).size(), 4);
+  }
+}
@@ -0,0 +1,58 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.es.br.dibs.DibsClient.Payment;
+
+public class BatchWithdrawalTest {
+
+  @Test
+  public void testBatchReportsEveryOutcome() throws Exception
+  {
+    final AtomicInteger calls = new AtomicInteger();
+    DibsTransport transport = request -> {
+      int n = calls.incrementAndGet();
+      String reply = n % 5 == 0
+                   ? "status=DECLINED&reason=4&actioncode=116"
+                   : "status=ACCEPTED&transact=" + (1000 + n);
+      return reply.getBytes(StandardCharsets.UTF_8);
+    };
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+
+    List<WithdrawInstruction> batch = new ArrayList<>();
+    for (int i = 0; i < 50; i++)
+      batch.add(new WithdrawInstruction("ticket" + i, "order" + i, new BigDecimal("10.00"), Currency.getInstance("DKK"), false));
+
+    final AtomicInteger ok = new AtomicInteger();
+    final AtomicInteger declined = new AtomicInteger();
+    BatchRun run = new BatchWithdrawal(client).concurrency(4).start(batch, new BatchWithdrawal.Listener() {
+      @Override
+      public void succeeded(WithdrawInstruction instruction, DibsResponse<Payment> response) {
+        ok.incrementAndGet();
+      }
+
+      @Override
+      public void failed(WithdrawInstruction instruction, Exception failure) {
+        assertTrue(failure instanceof DibsException);
+        declined.incrementAndGet();
+      }
+    });
+
+    assertTrue(run.await(10, TimeUnit.SECONDS));
+    assertEquals(run.submitted(), 50);
+    assertEquals(run.succeeded(), 40);
+    assertEquals(run.failed(), 10);
+    assertEquals(run.inFlight(), 0);
+    assertEquals(ok.get(), 40);
+    assertEquals(declined.get(), 10);
+  }
+}
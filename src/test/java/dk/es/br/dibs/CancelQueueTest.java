@@ -0,0 +1,141 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CancelQueueTest {
+
+  private static final Currency DKK = Currency.getInstance("DKK");
+
+  private final AtomicInteger cancels = new AtomicInteger();
+  private volatile int failingCancels;
+  private volatile CountDownLatch cancelGate;
+  private CancelQueue queue;
+  private DibsClient client;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    cancels.set(0);
+    failingCancels = 0;
+    cancelGate = null;
+    DibsTransport transport = request -> {
+      if (!request.url().getPath().equals("/cgi-adm/cancel.cgi"))
+        return "status=ACCEPTED&transact=2718314359".getBytes(StandardCharsets.UTF_8);
+      CountDownLatch gate = cancelGate;
+      if (gate != null) {
+        try {
+          gate.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (cancels.incrementAndGet() <= failingCancels)
+        throw new IOException("connection reset");
+      return "status=ACCEPTED".getBytes(StandardCharsets.UTF_8);
+    };
+    queue = new CancelQueue().retryDelay(10, 50).maxAttempts(3);
+    client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+    client.setCancelQueue(queue);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    queue.close();
+  }
+
+  @Test
+  public void testValidationReturnsBeforeTheCancel() throws Exception
+  {
+    cancelGate = new CountDownLatch(1);
+    assertTrue(client.validateCardSubscription("2718314359", 100, DKK).success());
+    assertEquals(queue.getOutstandingCount(), 1);
+    assertEquals(queue.getOutstanding().get(0).transactionId(), "2718314359");
+
+    cancelGate.countDown();
+    assertTrue(queue.flush(5, TimeUnit.SECONDS));
+    assertEquals(queue.getCompletedCount(), 1);
+    assertEquals(cancels.get(), 1);
+  }
+
+  @Test
+  public void testFailedCancelsAreRetried() throws Exception
+  {
+    failingCancels = 2;
+    client.validateCardSubscription("2718314359", 100, DKK);
+    assertTrue(queue.flush(5, TimeUnit.SECONDS));
+    assertEquals(cancels.get(), 3);
+    assertEquals(queue.getCompletedCount(), 1);
+    assertTrue(queue.getAbandoned().isEmpty());
+  }
+
+  @Test
+  public void testCancelsAreAbandonedAfterTheLastAttempt() throws Exception
+  {
+    failingCancels = 10;
+    client.validateCardSubscription("2718314359", 100, DKK);
+    assertTrue(queue.flush(5, TimeUnit.SECONDS));
+    assertEquals(cancels.get(), 3);
+    assertEquals(queue.getAbandoned().size(), 1);
+    assertEquals(queue.getAbandoned().get(0).attempts(), 3);
+    assertNotNull(queue.getAbandoned().get(0).lastFailure());
+  }
+
+  @Test
+  public void testFlushSkipsRetryDelays() throws Exception
+  {
+    queue.retryDelay(60000, 60000);
+    failingCancels = 1;
+    client.validateCardSubscription("2718314359", 100, DKK);
+    while (cancels.get() == 0)
+      Thread.sleep(1);
+
+    long t0 = System.nanoTime();
+    assertTrue(queue.flush(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(5));
+    assertEquals(cancels.get(), 2);
+  }
+
+  @Test
+  public void testFlushMovesUpRetriesOfInstantFailures() throws Exception
+  {
+    queue.retryDelay(60000, 60000);
+    failingCancels = 200;
+    for (int i = 0; i < 200; i++)
+      queue.submit(client, String.valueOf(1000000000L + i));
+    while (cancels.get() < 200)
+      Thread.sleep(1);
+
+    assertTrue(queue.flush(5, TimeUnit.SECONDS), queue.getOutstanding().toString());
+    assertEquals(queue.getCompletedCount(), 200);
+    assertEquals(cancels.get(), 400);
+  }
+
+  @Test
+  public void testAuthorizationWithoutTransactionIsNotQueued() throws Exception
+  {
+    DibsClient noTransact = new DibsClient(AsyncDibsClientTest.CONFIG, request -> "status=ACCEPTED".getBytes(StandardCharsets.UTF_8));
+    noTransact.setCancelQueue(queue);
+    assertTrue(noTransact.validateCardSubscription("2718314359", 100, DKK).success());
+    assertEquals(queue.getOutstandingCount(), 0);
+    assertTrue(queue.getAbandoned().isEmpty());
+  }
+
+  @Test
+  public void testCloseFlushes() throws Exception
+  {
+    client.validateCardSubscription("2718314359", 100, DKK);
+    queue.close();
+    assertEquals(queue.getOutstandingCount(), 0);
+    assertEquals(cancels.get(), 1);
+  }
+}
@@ -0,0 +1,127 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DibsClientRegistryTest {
+
+  private static DibsConfig config(final String merchantId, final String password) {
+    return new DibsConfig() {
+      @Override public String getMerchantId() { return merchantId; }
+      @Override public String getDibsUser() { return "user"; }
+      @Override public String getDibsPassword() { return password; }
+      @Override public String getMd5K1() { return "k1"; }
+      @Override public String getMd5K2() { return "k2"; }
+      @Override public boolean isTesting() { return true; }
+    };
+  }
+
+  private final List<DibsRequest> requests = new CopyOnWriteArrayList<>();
+  private volatile CountDownLatch blocked;
+  private volatile CountDownLatch release;
+  private DibsClientRegistry registry;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    requests.clear();
+    blocked = null;
+    DibsTransport transport = request -> {
+      requests.add(request);
+      CountDownLatch b = blocked;
+      if (b != null && new String(request.body(), StandardCharsets.US_ASCII).contains("transact=1")) {
+        b.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return "V-DK".getBytes(StandardCharsets.UTF_8);
+    };
+    registry = new DibsClientRegistry(transport);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    registry.close();
+  }
+
+  @Test
+  public void testClientsShareInfrastructure() throws Exception
+  {
+    DibsClient a = registry.register(config("1001", "a"));
+    DibsClient b = registry.register(config("1002", "b"));
+    assertNotSame(a, b);
+    assertSame(registry.client("1001"), a);
+    assertEquals(registry.getMerchantIds(), new HashSet<>(Arrays.asList("1001", "1002")));
+    assertSame(a.getCancelQueue(), b.getCancelQueue());
+
+    assertEquals(a.getCardType(1L), "V-DK");
+    assertEquals(b.getCardType(2L), "V-DK");
+    assertEquals(registry.getMetrics().endpoint("/cardtype.pml").calls(), 2);
+  }
+
+  @Test
+  public void testRegisteringAgainRotatesTheConfig() throws Exception
+  {
+    DibsClient a = registry.register(config("1001", "old"));
+    a.getCardType(1L);
+    assertSame(registry.register(config("1001", "new")), a);
+    a.getCardType(1L);
+
+    assertEquals(requests.size(), 2);
+    assertNotEquals(requests.get(0).authorization(), requests.get(1).authorization());
+    assertEquals(a.getConfig().getDibsPassword(), "new");
+  }
+
+  @Test
+  public void testQuotaKeepsOneMerchantFromStarvingAnother() throws Exception
+  {
+    registry.maxConcurrentPerMerchant(1).quotaWaitMillis(50);
+    final DibsClient busy = registry.register(config("1001", "a"));
+    DibsClient quiet = registry.register(config("1002", "b"));
+    blocked = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+
+    Thread holder = new Thread(() -> {
+      try {
+        busy.getCardType(1L);
+      }
+      catch (DibsException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    holder.start();
+    try {
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      assertEquals(registry.getInFlight("1001"), 1);
+      try {
+        busy.getCardType(2L);
+        fail("expected the quota to be full");
+      }
+      catch (DibsException ex) {
+        assertEquals(ex.getErrorKey(), DibsException.CONCURRENCY_LIMITED);
+      }
+      assertEquals(quiet.getCardType(2L), "V-DK");
+    }
+    finally {
+      release.countDown();
+      holder.join(5000);
+    }
+    assertEquals(registry.getInFlight("1001"), 0);
+
+    registry.maxConcurrent("1001", 0);
+    assertNull(busy.getConcurrencyLimit());
+  }
+}
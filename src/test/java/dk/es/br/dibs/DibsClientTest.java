@@ -5,6 +5,11 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -38,6 +43,21 @@ public class DibsClientTest {
     assertEquals(res3, "bb510401c0886d9b939f71e6c43f7984");
   }
 
+  @Test
+  public void testSigner() {
+    String k1 = "K+NBa~?KS6~x4cAx3oJ_3!c#M.c9f8)k";
+    String k2 = "wBz{8igqJGzi@?*16bIx!t5_.d$n#A{k";
+    DibsSigner signer = new DibsSigner(k1, k2);
+    assertEquals(signer.sign("transact=10117&amount=9995&currency=208"), "0d15b6dbdb0ecfd11fcd9bf99a55f529");
+    assertEquals(signer.sign("merchant=4259425&orderid=F2487845&currency=208&amount=30000"), "d7d0716f705d66b7f333f61e2b705f9c");
+    assertEquals(signer.sign("transact=1207851850&amount=30000&currency=208"), "bb510401c0886d9b939f71e6c43f7984");
+    assertEquals(signer.sign("transact=1207851850&amount=30000&currency=208"), DibsClient.MD5(k1, k2, "transact=1207851850&amount=30000&currency=208"));
+
+    assertTrue(signer.verify("transact=10117&amount=9995&currency=208", "0D15B6DBDB0ECFD11FCD9BF99A55F529"));
+    assertFalse(signer.verify("transact=10117&amount=9996&currency=208", "0d15b6dbdb0ecfd11fcd9bf99a55f529"));
+    assertFalse(signer.verify("transact=10117&amount=9995&currency=208", null));
+  }
+
   @Test
   public void testParseResponseWithEmptyKeyValuePair()
   {
@@ -54,6 +74,26 @@ public class DibsClientTest {
     assertEquals(parsed.get("status"), "ACCEPTED");
   }
 
+  @Test
+  public void testParseResponsePositionalField()
+  {
+    Map<String, String> parsed = DibsClient.parseResponse("V-DK");
+    assertEquals(parsed.get("1"), "V-DK");
+  }
+
+  @Test
+  public void testParseReplyFields()
+  {
+    String response = "status=ACCEPTED&transact=2718314359&=&Fee=250&message=Card+expired%21&acquirer=TEST";
+    ResponseParser.Reply reply = ResponseParser.Reply.parse(response);
+    assertTrue(reply.accepted());
+    assertEquals(reply.transact, "2718314359");
+    assertEquals(reply.fee, "250");
+    assertEquals(reply.message, "Card expired!");
+    assertNull(reply.first);
+    assertEquals(ResponseParser.Reply.parse("0").first, "0");
+  }
+
   @Test
   public void testParseFeeResponse()
   {
@@ -82,6 +122,34 @@ public class DibsClientTest {
     assertEquals(DibsClient.parseFeeResponse(response), 5250);
   }
 
+  @Test
+  public void testParseFeeResponseIgnoresNestedFee() throws Exception
+  {
+    String response = "{\"details\":{\"fee\":1.0,\"tags\":[\"a\",{\"fee\":2}]},\"agreement\":123456,\"fee\":5250.75,\"amount\":250000}";
+    FeeQuote quote = DibsClient.parseFeeQuote(response);
+    assertEquals(quote.feeCents(), 5250);
+    assertEquals(quote.agreement(), Long.valueOf(123456));
+    assertEquals(quote.amount().intValue(), 250000);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testParseFeeResponseOutOfRange()
+  {
+    DibsClient.parseFeeResponse("{\"fee\":3000000000,\"amount\":250000}");
+  }
+
+  @Test(expectedExceptions = DibsException.class)
+  public void testFeeQuoteOutOfRange() throws Exception
+  {
+    DibsClient.parseFeeQuote("{\"fee\":3000000000,\"amount\":250000}").feeCents();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testParseFeeResponseWithoutFee()
+  {
+    DibsClient.parseFeeResponse("{\"agreement\":123456,\"amount\":250000}");
+  }
+
   @Test
   public void testParseSurchargeabilityReasonResponse()
   {
@@ -95,4 +163,85 @@ public class DibsClientTest {
     String response = "{\"allowSurcharge\":true,\"reason\" :  \"BUSINESS_OR_NON_EU\"}";
     assertEquals(DibsClient.parseSurchargeabilityResponse(response), "BUSINESS_OR_NON_EU");
   }
+
+  @Test
+  public void testParseSurchargeabilityReasonResponseIgnoresNestedReason()
+  {
+    String response = "{\"card\":{\"reason\":\"NESTED\"},\"allowSurcharge\":false,\"reason\":\"CONSUMER_EU\"}";
+    assertEquals(DibsClient.parseSurchargeabilityResponse(response), "CONSUMER_EU");
+  }
+
+  @Test
+  public void testCallEventsAreRedacted() throws Exception
+  {
+    DibsTransport transport = request -> "status=ACCEPTED&transact=2718314359&ticket=987654321".getBytes(StandardCharsets.UTF_8);
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+    final List<DibsCallEvent> events = new ArrayList<>();
+    client.addEventListener(events::add);
+
+    client.withdraw("123456789", "F2487845", new BigDecimal("300.00"), Currency.getInstance("DKK"), false);
+
+    assertEquals(events.size(), 1);
+    DibsCallEvent event = events.get(0);
+    assertEquals(event.endpoint(), "/cgi-ssl/ticket_auth.cgi");
+    assertEquals(event.status(), "ACCEPTED");
+    assertEquals(event.params().get("ticket"), "*****6789");
+    assertEquals(event.params().get("md5key"), "***");
+    assertEquals(event.params().get("orderid"), "F2487845");
+    assertEquals(event.reply(), "status=ACCEPTED&transact=2718314359&ticket=*****4321");
+    assertFalse(event.toString().contains("123456789"));
+  }
+
+  @Test
+  public void testFailedLookupEventsAreRedacted() throws Exception
+  {
+    DibsSimulator sim = new DibsSimulator().start();
+    PooledDibsTransport transport = new PooledDibsTransport(null);
+    try {
+      final DibsConfig cfg = sim.config(AsyncDibsClientTest.CONFIG);
+      DibsConfig missing = new DibsConfig() {
+        @Override public String getMerchantId() { return cfg.getMerchantId(); }
+        @Override public String getDibsUser() { return cfg.getDibsUser(); }
+        @Override public String getDibsPassword() { return cfg.getDibsPassword(); }
+        @Override public String getMd5K1() { return cfg.getMd5K1(); }
+        @Override public String getMd5K2() { return cfg.getMd5K2(); }
+        @Override public boolean isTesting() { return cfg.isTesting(); }
+        @Override public String getBaseUrl() { return cfg.getBaseUrl() + "/missing"; }
+      };
+      DibsClient client = new DibsClient(missing, transport);
+      final List<DibsCallEvent> events = new ArrayList<>();
+      client.addEventListener(events::add);
+
+      try {
+        client.feeQuote("2718314359", 30000, Currency.getInstance("DKK"));
+        fail("expected the lookup to fail");
+      }
+      catch (DibsException ex) {
+        for (Throwable t = ex; t != null; t = t.getCause())
+          assertFalse(String.valueOf(t.getMessage()).contains("2718314359"), t.toString());
+      }
+      assertEquals(events.size(), 1);
+      assertTrue(events.get(0).failed());
+      assertTrue(events.get(0).toString().contains("*4359"), events.get(0).toString());
+      assertFalse(events.get(0).toString().contains("2718314359"), events.get(0).toString());
+
+      events.clear();
+      client = new DibsClient(cfg, transport);
+      client.addEventListener(events::add);
+      assertEquals(client.surchargeabilityReason("2718314359"), "PRIVATE");
+      assertEquals(events.get(0).reply(), "{\"ticket\":\"******4359\",\"reason\":\"PRIVATE\"}");
+    }
+    finally {
+      transport.close();
+      sim.close();
+    }
+  }
+
+  @Test
+  public void testRedactionOfUrls()
+  {
+    assertEquals(Redaction.text("GET http://h/api/fee?amount=1&ticket=2718314359&x=1"), "GET http://h/api/fee?amount=1&ticket=******4359&x=1");
+    assertEquals(Redaction.text("GET http://h/api/card/v1/tickets/2718314359 failed"), "GET http://h/api/card/v1/tickets/******4359 failed");
+    assertEquals(Redaction.text("GET http://h/cardtype.pml?transact=1"), "GET http://h/cardtype.pml?transact=1");
+  }
 }
@@ -0,0 +1,72 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+public class DibsMetricsTest {
+
+  @Test
+  public void testHistogramPercentiles()
+  {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++)
+      h.record(i, TimeUnit.MILLISECONDS);
+    assertEquals(h.count(), 1000);
+    assertEquals(h.percentileMillis(50), 500, 500 * 0.125);
+    assertEquals(h.percentileMillis(99), 990, 990 * 0.125);
+    assertEquals(h.maxMillis(), 1000.0);
+    assertEquals(h.meanMillis(), 500.5, 0.01);
+  }
+
+  @Test
+  public void testBucketBounds()
+  {
+    for (long v : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L }) {
+      int i = LatencyHistogram.index(v);
+      assertTrue(LatencyHistogram.lowerBound(i) <= v && v <= LatencyHistogram.upperBound(i), "value " + v);
+    }
+  }
+
+  @Test
+  public void testOutcomesAndJmx() throws Exception
+  {
+    final String[] replies = { "status=ACCEPTED&transact=1", "status=DECLINED&reason=4&actioncode=116" };
+    final int[] n = { 0 };
+    DibsTransport transport = request -> replies[n[0]++ % 2].getBytes(StandardCharsets.UTF_8);
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+    DibsMetrics metrics = new DibsMetrics();
+    client.addEventListener(metrics);
+
+    for (int i = 0; i < 4; i++) {
+      try {
+        client.withdraw("ticket", "order" + i, BigDecimal.ONE, Currency.getInstance("DKK"), false);
+      }
+      catch (DibsException ex) {
+        // declined
+      }
+    }
+
+    DibsMetrics.Endpoint auth = metrics.endpoint("/cgi-ssl/ticket_auth.cgi");
+    assertEquals(auth.calls(), 4);
+    assertEquals(auth.inFlight(), 0);
+    assertEquals(auth.outcomes().get("status=ACCEPTED"), Long.valueOf(2));
+    assertEquals(auth.outcomes().get("actioncode=116"), Long.valueOf(2));
+
+    metrics.register("test");
+    try {
+      ObjectName on = new ObjectName("dk.es.br.dibs:type=DibsMetrics,name=\"test\"");
+      assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(on));
+    }
+    finally {
+      metrics.unregister();
+    }
+  }
+}
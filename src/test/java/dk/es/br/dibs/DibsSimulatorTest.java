@@ -0,0 +1,219 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+import dk.es.br.dibs.DibsClient.Payment;
+
+public class DibsSimulatorTest {
+
+  private static final Currency DKK = Currency.getInstance("DKK");
+
+  private DibsSimulator sim;
+  private PooledDibsTransport transport;
+  private DibsClient client;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    sim = new DibsSimulator().credentials("user", "secret").start();
+    transport = new PooledDibsTransport(null);
+    client = new DibsClient(sim.config(AsyncDibsClientTest.CONFIG), transport);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    transport.close();
+    sim.close();
+  }
+
+  @Test
+  public void testWithdraw() throws Exception
+  {
+    DibsResponse<Payment> res = client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, true);
+    assertTrue(res.success());
+    assertNotNull(res.transactionId());
+    assertEquals(res.result().feeAmount(), new BigDecimal("3.75"));
+    assertEquals(res.result().orderId(), "F2487845");
+    assertEquals(sim.getAcceptedCount(), 1);
+  }
+
+  @Test
+  public void testDeclines() throws Exception
+  {
+    sim.decline(1.0, "4", "116");
+    try {
+      client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, false);
+      fail("expected decline");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), "4");
+      assertEquals(ex.getActionCode(), "116");
+    }
+    assertEquals(sim.getDeclinedCount(), 1);
+  }
+
+  @Test
+  public void testAdministrativeAndJsonEndpoints() throws Exception
+  {
+    assertEquals(client.getCardType(1000000001L), "V-DK");
+    client.deleteAccount("2718314359");
+    assertEquals(client.surchargeabilityReason("2718314359"), "PRIVATE");
+    assertEquals(client.expectedFeeCents("2718314359", 10000, DKK), 125);
+    assertTrue(client.validateCardSubscription("2718314359", 100, DKK).success());
+    assertTrue(client.getCancelQueue().flush(5, TimeUnit.SECONDS));
+    assertEquals(transport.getIdleConnections(), 1);
+  }
+
+  @Test
+  public void testGzippedAndChunkedReplies() throws Exception
+  {
+    sim.gzip(true).chunked(true);
+    DibsResponse<Payment> res = client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, true);
+    assertTrue(res.success());
+    assertEquals(res.result().feeAmount(), new BigDecimal("3.75"));
+    assertEquals(client.surchargeabilityReason("2718314359"), "PRIVATE");
+    assertEquals(transport.getIdleConnections(), 1);
+
+    transport.gzip(false);
+    sim.chunked(false);
+    assertEquals(client.getCardType(1000000001L), "V-DK");
+    assertEquals(transport.getIdleConnections(), 1);
+  }
+
+  @Test
+  public void testOversizedReplyIsRejected() throws Exception
+  {
+    transport.maxResponseBytes(10);
+    try {
+      client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, false);
+      fail("expected failure");
+    }
+    catch (DibsException ex) {
+      assertTrue(ex.getCause() instanceof BufferPool.BodyTooLargeException, String.valueOf(ex.getCause()));
+    }
+    assertEquals(transport.getIdleConnections(), 0);
+
+    sim.chunked(true);
+    try {
+      client.withdraw("2718314359", "F2487846", new BigDecimal("300.00"), DKK, false);
+      fail("expected failure");
+    }
+    catch (DibsException ex) {
+      assertTrue(ex.getCause() instanceof BufferPool.BodyTooLargeException, String.valueOf(ex.getCause()));
+    }
+  }
+
+  @Test
+  public void testWarmUpOpensPooledConnections() throws Exception
+  {
+    transport.tlsSessionCache(100, 3600);
+    assertEquals(client.warmUp(3), 3);
+    assertEquals(transport.getIdleConnections(), 3);
+    assertEquals(client.warmUp(3), 0);
+    assertEquals(client.getCardType(1000000001L), "V-DK");
+    assertEquals(transport.getIdleConnections(), 3);
+    assertNull(System.getProperty("java.protocol.handler.pkgs"));
+  }
+
+  @Test
+  public void testWrongCredentialsAreRejected() throws Exception
+  {
+    sim.credentials("user", "other");
+    try {
+      client.getCardType(1000000001L);
+      fail("expected failure");
+    }
+    catch (DibsException ex) {
+      assertTrue(ex.getCause().getMessage().contains("401"));
+    }
+  }
+
+  @Test
+  public void testConnectionReset() throws Exception
+  {
+    sim.resetRate(1.0);
+    try {
+      client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, false);
+      fail("expected failure");
+    }
+    catch (DibsException ex) {
+      assertNotNull(ex.getCause());
+    }
+    assertEquals(sim.getResetCount(), 1);
+  }
+
+  @Test
+  public void testLatencyAndSlowBody() throws Exception
+  {
+    sim.latency(DibsSimulator.fixed(50)).slowBody(1.0, 1000);
+    long t0 = System.nanoTime();
+    assertEquals(client.getCardType(1000000001L), "V-DK");
+    long millis = (System.nanoTime() - t0) / 1000000;
+    assertTrue(millis >= 50, millis + "ms");
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception
+  {
+    transport.readTimeoutMillis(100);
+    sim.latency(DibsSimulator.fixed(1000));
+    try {
+      client.getCardType(1000000001L);
+      fail("expected timeout");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), "java.net.SocketTimeoutException");
+    }
+  }
+
+  @Test
+  public void testOperationTimeout() throws Exception
+  {
+    client.setOperationTimeout(100, TimeUnit.MILLISECONDS);
+    sim.latency(DibsSimulator.fixed(1000));
+    long t0 = System.nanoTime();
+    try {
+      client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, false);
+      fail("expected timeout");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), DibsException.DEADLINE_EXCEEDED);
+    }
+    long millis = (System.nanoTime() - t0) / 1000000;
+    assertTrue(millis < 500, millis + "ms");
+  }
+
+  @Test
+  public void testOperationTimeoutCoversSlowBody() throws Exception
+  {
+    client.setOperationTimeout(200, TimeUnit.MILLISECONDS);
+    sim.slowBody(1.0, 50);
+    long t0 = System.nanoTime();
+    try {
+      client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, false);
+      fail("expected timeout");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), DibsException.DEADLINE_EXCEEDED);
+    }
+    long millis = (System.nanoTime() - t0) / 1000000;
+    assertTrue(millis < 600, millis + "ms");
+  }
+
+  @Test
+  public void testOperationTimeoutCoversBothLegsOfValidation() throws Exception
+  {
+    client.setOperationTimeout(300, TimeUnit.MILLISECONDS);
+    sim.latency(DibsSimulator.fixed(200));
+    long t0 = System.nanoTime();
+    assertTrue(client.validateCardSubscription("2718314359", 100, DKK).success());
+    long millis = (System.nanoTime() - t0) / 1000000;
+    assertTrue(millis < 380, millis + "ms");
+  }
+}
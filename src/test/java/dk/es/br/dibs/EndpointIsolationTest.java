@@ -0,0 +1,195 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EndpointIsolationTest {
+
+  private static final String FEE = "/api/fee/v1/subscribers/{merchant}/best";
+  private static final Currency DKK = Currency.getInstance("DKK");
+
+  private final AtomicInteger feeRequests = new AtomicInteger();
+  private volatile boolean feeDown;
+  private volatile boolean feeBroken;
+  private volatile CountDownLatch cardTypeGate;
+  private EndpointIsolation isolation;
+  private DibsClient client;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    feeRequests.set(0);
+    feeDown = true;
+    feeBroken = false;
+    cardTypeGate = null;
+    DibsTransport transport = request -> {
+      String path = request.url().getPath();
+      if (path.startsWith("/api/fee/")) {
+        feeRequests.incrementAndGet();
+        if (feeBroken)
+          throw new IllegalStateException("broken transport");
+        if (feeDown)
+          throw new IOException("Server returned HTTP response code: 503");
+        return "{\"fee\":125,\"amount\":10000}".getBytes(StandardCharsets.UTF_8);
+      }
+      if (path.equals("/cardtype.pml")) {
+        CountDownLatch gate = cardTypeGate;
+        if (gate != null) {
+          try {
+            gate.await(5, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return "V-DK".getBytes(StandardCharsets.UTF_8);
+      }
+      return "status=ACCEPTED&transact=2718314359&orderid=F2487845".getBytes(StandardCharsets.UTF_8);
+    };
+    isolation = new EndpointIsolation().window(10).minimumCalls(5).openMillis(100).halfOpenProbes(2);
+    client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+    client.setEndpointIsolation(isolation);
+  }
+
+  private String feeFailure() {
+    try {
+      client.expectedFeeCents("2718314359", 10000, DKK);
+      fail("expected failure");
+      return null;
+    }
+    catch (DibsException ex) {
+      return ex.getErrorKey();
+    }
+  }
+
+  @Test
+  public void testBreakerOpensAndFailsFast() throws Exception
+  {
+    for (int i = 0; i < 5; i++)
+      assertEquals(feeFailure(), "java.io.IOException");
+    assertEquals(isolation.getCircuitBreaker(FEE).getState(), CircuitBreaker.State.OPEN);
+
+    assertEquals(feeFailure(), DibsException.CIRCUIT_OPEN);
+    assertEquals(feeRequests.get(), 5);
+
+    // Other endpoints are unaffected
+    assertTrue(client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), DKK, false).success());
+    assertEquals(isolation.getStates().get("/cgi-ssl/ticket_auth.cgi"), CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testRuntimeFailuresOfLookupsCount() throws Exception
+  {
+    feeBroken = true;
+    for (int i = 0; i < 5; i++) {
+      try {
+        client.expectedFeeCents("2718314359", 10000, DKK);
+        fail("expected failure");
+      }
+      catch (IllegalStateException expected) {
+      }
+    }
+    assertEquals(isolation.getCircuitBreaker(FEE).getState(), CircuitBreaker.State.OPEN);
+    assertEquals(feeFailure(), DibsException.CIRCUIT_OPEN);
+  }
+
+  @Test
+  public void testCallAdmittedWhileClosedIsNoProbe() throws Exception
+  {
+    CircuitBreaker breaker = isolation.getCircuitBreaker("/cardtype.pml");
+    long early = breaker.tryAcquire();
+    for (int i = 0; i < 5; i++)
+      breaker.record(breaker.tryAcquire(), true, 0);
+    assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+    Thread.sleep(150);
+
+    long probe = breaker.tryAcquire();
+    assertTrue(probe >= 0);
+    breaker.record(early, false, 0);
+    breaker.record(probe, false, 0);
+    assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+    breaker.record(breaker.tryAcquire(), false, 0);
+    assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testHalfOpenProbesCloseTheBreaker() throws Exception
+  {
+    for (int i = 0; i < 5; i++)
+      feeFailure();
+    Thread.sleep(150);
+    assertEquals(isolation.getCircuitBreaker(FEE).getState(), CircuitBreaker.State.HALF_OPEN);
+
+    feeDown = false;
+    assertEquals(client.expectedFeeCents("2718314359", 10000, DKK), 125);
+    assertEquals(isolation.getCircuitBreaker(FEE).getState(), CircuitBreaker.State.HALF_OPEN);
+    assertEquals(client.expectedFeeCents("2718314359", 10000, DKK), 125);
+    assertEquals(isolation.getCircuitBreaker(FEE).getState(), CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testFailedProbeReopensTheBreaker() throws Exception
+  {
+    for (int i = 0; i < 5; i++)
+      feeFailure();
+    Thread.sleep(150);
+    assertEquals(feeFailure(), "java.io.IOException");
+    assertEquals(isolation.getCircuitBreaker(FEE).getState(), CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void testDeclinesDoNotOpenTheBreaker() throws Exception
+  {
+    DibsClient declining = new DibsClient(AsyncDibsClientTest.CONFIG,
+        request -> "status=DECLINED&reason=4&actioncode=116".getBytes(StandardCharsets.UTF_8));
+    declining.setEndpointIsolation(isolation);
+    for (int i = 0; i < 10; i++) {
+      try {
+        declining.withdraw("2718314359", "F" + i, new BigDecimal("300.00"), DKK, false);
+        fail("expected decline");
+      }
+      catch (DibsException ex) {
+        assertEquals(ex.getErrorKey(), "4");
+      }
+    }
+    assertEquals(isolation.getCircuitBreaker("/cgi-ssl/ticket_auth.cgi").getState(), CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testBulkheadLimitsCallsInFlight() throws Exception
+  {
+    isolation.maxConcurrent("/cardtype.pml", 1);
+    cardTypeGate = new CountDownLatch(1);
+    CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> {
+      try {
+        return client.getCardType(2718314359L);
+      }
+      catch (DibsException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    while (isolation.getInFlight("/cardtype.pml") == 0)
+      Thread.sleep(1);
+
+    try {
+      client.getCardType(2718314359L);
+      fail("expected rejection");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), DibsException.BULKHEAD_FULL);
+    }
+
+    cardTypeGate.countDown();
+    assertEquals(first.get(), "V-DK");
+    assertEquals(isolation.getInFlight("/cardtype.pml"), 0);
+  }
+}
@@ -0,0 +1,83 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FeeQuoteCacheTest {
+
+  private static final Currency DKK = Currency.getInstance("DKK");
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  private DibsClient client(final CountDownLatch gate)
+  {
+    calls.set(0);
+    DibsTransport transport = request -> {
+      calls.incrementAndGet();
+      try {
+        gate.await(5, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException ex) {
+        throw new java.io.InterruptedIOException();
+      }
+      return "{\"agreement\":1,\"fee\":125.0,\"amount\":5000.0}".getBytes(StandardCharsets.UTF_8);
+    };
+    return new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+  }
+
+  @Test
+  public void testRepeatedQuoteIsCached() throws Exception
+  {
+    DibsClient client = client(new CountDownLatch(0));
+    FeeQuoteCache cache = new FeeQuoteCache(2, 1, TimeUnit.MINUTES);
+    client.setFeeQuoteCache(cache);
+
+    assertEquals(client.expectedFeeCents("t1", 5000, DKK), 125);
+    assertEquals(client.expectedFeeCents("t1", 5000, DKK), 125);
+    assertEquals(calls.get(), 1);
+    assertEquals(cache.getHitCount(), 1);
+    assertEquals(cache.getMissCount(), 1);
+
+    // A different amount is a different quote; a third key evicts the least recently used
+    client.expectedFeeCents("t1", 6000, DKK);
+    client.expectedFeeCents("t2", 5000, DKK);
+    assertEquals(cache.size(), 2);
+    assertEquals(cache.getEvictionCount(), 1);
+    assertEquals(calls.get(), 3);
+  }
+
+  @Test
+  public void testConcurrentLookupsAreCoalesced() throws Exception
+  {
+    CountDownLatch gate = new CountDownLatch(1);
+    final DibsClient client = client(gate);
+    FeeQuoteCache cache = new FeeQuoteCache(100, 1, TimeUnit.MINUTES);
+    client.setFeeQuoteCache(cache);
+
+    AsyncDibsClient async = new AsyncDibsClient(client, 4);
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+      futures.add(async.expectedFeeCents("t1", 5000, DKK));
+
+    // Let every lookup reach the cache before the single DIBS call returns
+    long end = System.currentTimeMillis() + 5000;
+    while (cache.getMissCount() < 4 && System.currentTimeMillis() < end)
+      Thread.sleep(5);
+    gate.countDown();
+
+    for (CompletableFuture<Integer> f : futures)
+      assertEquals(f.get().intValue(), 125);
+    assertEquals(calls.get(), 1);
+    assertEquals(cache.getCoalescedCount(), 3);
+    async.close();
+  }
+}
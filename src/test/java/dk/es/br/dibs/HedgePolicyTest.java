@@ -0,0 +1,132 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgePolicyTest {
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicBoolean slowNext = new AtomicBoolean();
+  private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+  private DibsClient client;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    requests.set(0);
+    slowNext.set(false);
+    threads.clear();
+    DibsTransport transport = request -> {
+      requests.incrementAndGet();
+      threads.add(Thread.currentThread());
+      if (slowNext.compareAndSet(true, false)) {
+        try {
+          Thread.sleep(300);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      String path = request.url().getPath();
+      String reply = path.equals("/cardtype.pml") ? "V-DK" : "status=ACCEPTED&transact=2718314359&orderid=F2487845";
+      return reply.getBytes(StandardCharsets.UTF_8);
+    };
+    client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+  }
+
+  private HedgePolicy learn(HedgePolicy policy) throws Exception {
+    client.setHedgePolicy(policy.window(10).minDelayMillis(20));
+    for (int i = 0; i < 10; i++)
+      client.getCardType(2718314359L);
+    assertTrue(policy.getDelayMillis() >= 0);
+    requests.set(0);
+    return policy;
+  }
+
+  @Test
+  public void testNothingIsHedgedWhileLearning() throws Exception
+  {
+    HedgePolicy policy = new HedgePolicy().maxExtraLoad(1.0).window(100);
+    client.setHedgePolicy(policy);
+    slowNext.set(true);
+    assertEquals(client.getCardType(2718314359L), "V-DK");
+    assertEquals(policy.getDelayMillis(), -1.0);
+    assertEquals(policy.getHedgeCount(), 0);
+    assertEquals(threads, Collections.singleton(Thread.currentThread()));
+  }
+
+  @Test
+  public void testUnhedgeableLookupRunsOnTheCallersThread() throws Exception
+  {
+    learn(new HedgePolicy().maxExtraLoad(0));
+    threads.clear();
+    client.getCardType(2718314359L);
+    assertEquals(threads, Collections.singleton(Thread.currentThread()));
+  }
+
+  @Test
+  public void testHedgeIsRejectedWhenThePoolIsFull() throws Exception
+  {
+    HedgePolicy policy = learn(new HedgePolicy().maxExtraLoad(1.0).maxThreads(1));
+    slowNext.set(true);
+    assertEquals(client.getCardType(2718314359L), "V-DK");
+    assertEquals(policy.getHedgeCount(), 0);
+    assertEquals(policy.getHedgeRejectedCount(), 1);
+    assertEquals(requests.get(), 1);
+  }
+
+  @Test
+  public void testSlowLookupIsHedged() throws Exception
+  {
+    HedgePolicy policy = learn(new HedgePolicy().maxExtraLoad(1.0));
+    slowNext.set(true);
+    long t0 = System.nanoTime();
+    assertEquals(client.getCardType(2718314359L), "V-DK");
+    long millis = (System.nanoTime() - t0) / 1000000;
+    assertTrue(millis < 200, millis + "ms");
+    assertEquals(policy.getHedgeCount(), 1);
+    assertEquals(policy.getHedgeWinCount(), 1);
+    assertEquals(requests.get(), 2);
+  }
+
+  @Test
+  public void testNoHedgeWhileTheLimitIsFull() throws Exception
+  {
+    HedgePolicy policy = learn(new HedgePolicy().maxExtraLoad(1.0));
+    client.setConcurrencyLimit(new AdaptiveConcurrencyLimit(1).bounds(1, 1));
+    slowNext.set(true);
+    assertEquals(client.getCardType(2718314359L), "V-DK");
+    assertEquals(policy.getHedgeCount(), 0);
+    assertEquals(policy.getHedgeRejectedCount(), 1);
+    assertEquals(requests.get(), 1);
+  }
+
+  @Test
+  public void testExtraLoadIsCapped() throws Exception
+  {
+    HedgePolicy policy = learn(new HedgePolicy().maxExtraLoad(0));
+    slowNext.set(true);
+    assertEquals(client.getCardType(2718314359L), "V-DK");
+    assertEquals(policy.getHedgeCount(), 0);
+    assertEquals(requests.get(), 1);
+  }
+
+  @Test
+  public void testWithdrawIsNeverHedged() throws Exception
+  {
+    HedgePolicy policy = learn(new HedgePolicy().maxExtraLoad(1.0));
+    slowNext.set(true);
+    client.withdraw("2718314359", "F2487845", new BigDecimal("300.00"), Currency.getInstance("DKK"), false);
+    assertEquals(requests.get(), 1);
+    assertEquals(policy.getHedgeCount(), 0);
+  }
+}
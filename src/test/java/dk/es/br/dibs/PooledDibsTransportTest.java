@@ -0,0 +1,249 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledDibsTransportTest {
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile String response;
+  private volatile String requestLine;
+  private volatile boolean dropAfterReply;
+  private volatile boolean silent;
+  private ServerSocket server;
+  private Thread acceptor;
+  private PooledDibsTransport transport;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    connections.set(0);
+    requests.set(0);
+    response = "HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nV-DK";
+    requestLine = null;
+    dropAfterReply = false;
+    silent = false;
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    acceptor = new Thread(() -> {
+      while (!server.isClosed()) {
+        try {
+          final Socket socket = server.accept();
+          connections.incrementAndGet();
+          new Thread(() -> serve(socket)).start();
+        }
+        catch (IOException ex) {
+          return;
+        }
+      }
+    });
+    acceptor.start();
+    transport = new PooledDibsTransport(null);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    transport.close();
+    server.close();
+    acceptor.join(5000);
+  }
+
+  /**
+   * Answers each request head with the current response, keeping the
+   * connection open unless the response asks to close it, or the server is
+   * to drop it unannounced. A silent server answers nothing.
+   */
+  private void serve(Socket socket)
+  {
+    try (Socket s = socket) {
+      InputStream in = s.getInputStream();
+      OutputStream out = s.getOutputStream();
+      for (;;) {
+        String line = PooledDibsTransport.readLine(in);
+        if (line == null)
+          return;
+        String header;
+        while ((header = PooledDibsTransport.readLine(in)) != null && !header.isEmpty()) {
+          // ignored
+        }
+        if (header == null)
+          return;
+        requestLine = line;
+        requests.incrementAndGet();
+        if (silent)
+          continue;
+        String res = response;
+        out.write(res.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        if (res.contains("Connection: close") || dropAfterReply)
+          return;
+      }
+    }
+    catch (IOException ex) {
+      // client went away
+    }
+  }
+
+  private byte[] get(String path) throws IOException
+  {
+    URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+    return transport.execute(new DibsRequest("GET", url, null, null));
+  }
+
+  private byte[] post(String path) throws IOException
+  {
+    URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+    return transport.execute(new DibsRequest("POST", url, "transact=1".getBytes(StandardCharsets.US_ASCII), null));
+  }
+
+  private ProxySelector proxy()
+  {
+    final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+    return new ProxySelector() {
+      @Override
+      public List<Proxy> select(URI uri)
+      {
+        return Collections.singletonList(proxy);
+      }
+
+      @Override
+      public void connectFailed(URI uri, SocketAddress sa, IOException ex)
+      {
+      }
+    };
+  }
+
+  @Test
+  public void testConnectionsAreReused() throws Exception
+  {
+    for (int i = 0; i < 3; i++)
+      assertEquals(new String(get("/cardtype.pml"), StandardCharsets.US_ASCII), "V-DK");
+    post("/cgi-adm/cancel.cgi");
+    assertEquals(requests.get(), 4);
+    assertEquals(connections.get(), 1);
+    assertEquals(transport.getIdleConnections(), 1);
+  }
+
+  @Test
+  public void testStaleConnectionIsRetriedOnlyForGets() throws Exception
+  {
+    dropAfterReply = true;
+    get("/cardtype.pml");
+    assertEquals(new String(get("/cardtype.pml"), StandardCharsets.US_ASCII), "V-DK");
+    assertEquals(connections.get(), 2);
+    assertEquals(requests.get(), 2);
+
+    // A withdrawal may have reached the server; it is not sent again
+    try {
+      post("/cgi-ssl/ticket_auth.cgi");
+      fail("expected the stale connection to fail the post");
+    }
+    catch (IOException expected) {
+    }
+    assertEquals(connections.get(), 2);
+  }
+
+  @Test
+  public void testReadTimeoutIsNotRetried() throws Exception
+  {
+    transport.readTimeoutMillis(100);
+    get("/cardtype.pml");
+    silent = true;
+    try {
+      get("/cardtype.pml");
+      fail("expected a read timeout");
+    }
+    catch (SocketTimeoutException expected) {
+    }
+    assertEquals(requests.get(), 2);
+    assertEquals(connections.get(), 1);
+  }
+
+  @Test
+  public void testServerErrorIsNotRetried() throws Exception
+  {
+    get("/cardtype.pml");
+    response = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n";
+    try {
+      get("/cardtype.pml");
+      fail("expected the server error");
+    }
+    catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("503"), ex.getMessage());
+    }
+    assertEquals(requests.get(), 2);
+    assertEquals(connections.get(), 1);
+  }
+
+  @Test
+  public void testIdleConnectionsAreEvicted() throws Exception
+  {
+    transport.idleTimeoutMillis(50);
+    get("/cardtype.pml");
+    assertEquals(transport.getIdleConnections(), 1);
+    Thread.sleep(100);
+    transport.evictIdleConnections();
+    assertEquals(transport.getIdleConnections(), 0);
+    get("/cardtype.pml");
+    assertEquals(connections.get(), 2);
+  }
+
+  @Test
+  public void testPlainRequestsGoThroughTheProxy() throws Exception
+  {
+    transport.proxySelector(proxy());
+    URL url = new URL("http://dibs.invalid:8080/cardtype.pml?transact=1");
+    assertEquals(new String(transport.execute(new DibsRequest("GET", url, null, null)), StandardCharsets.US_ASCII), "V-DK");
+    assertEquals(requestLine, "GET http://dibs.invalid:8080/cardtype.pml?transact=1 HTTP/1.1");
+  }
+
+  @Test
+  public void testSecureRequestsAreTunnelled() throws Exception
+  {
+    transport.proxySelector(proxy());
+    response = "HTTP/1.1 407 Proxy Authentication Required\r\nContent-Length: 0\r\n\r\n";
+    try {
+      transport.execute(new DibsRequest("GET", new URL("https://dibs.invalid/cardtype.pml"), null, null));
+      fail("expected the proxy to refuse");
+    }
+    catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("407"), ex.getMessage());
+    }
+    assertEquals(requestLine, "CONNECT dibs.invalid:443 HTTP/1.1");
+  }
+
+  @Test
+  public void testChunkSizesWithLeadingZeros() throws Exception
+  {
+    response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+             + "000000010\r\n0123456789abcdef\r\n0\r\n\r\n";
+    assertEquals(new String(get("/cardtype.pml"), StandardCharsets.US_ASCII), "0123456789abcdef");
+  }
+
+  @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "malformed chunk header")
+  public void testOversizedChunkIsRejected() throws Exception
+  {
+    response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+             + "100000000\r\n0123456789abcdef\r\n0\r\n\r\n";
+    get("/cardtype.pml");
+  }
+}
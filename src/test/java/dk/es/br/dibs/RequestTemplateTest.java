@@ -0,0 +1,96 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class RequestTemplateTest {
+
+  private static Set<String> fields(byte[] body) {
+    return new HashSet<>(Arrays.asList(new String(body, StandardCharsets.US_ASCII).split("&")));
+  }
+
+  @Test
+  public void testWithdrawBody() throws Exception
+  {
+    RequestTemplates templates = new RequestTemplates(AsyncDibsClientTest.CONFIG);
+    byte[] body = templates.withdraw("/cgi-ssl/ticket_auth.cgi", "2718314359", "F 24/87", 30000, "208", "abc", true).toByteArray();
+    Set<String> expected = new HashSet<>(Arrays.asList(
+        "merchant=" + AsyncDibsClientTest.CONFIG.getMerchantId(), "capturenow=yes", "uniqueoid=yes", "fullreply=yes",
+        "mitType=UCOF", "textreply=yes", "ticket=2718314359", "orderid=F+24%2F87", "amount=30000",
+        "currency=208", "md5key=abc", "calcfee=yes"));
+    if (AsyncDibsClientTest.CONFIG.isTesting())
+      expected.add("test=yes");
+    assertEquals(fields(body), expected);
+  }
+
+  @Test
+  public void testEncodesAsUrlEncoder() throws Exception
+  {
+    for (String s : new String[] { "plain", "a b+c&d=e", "æøå ÆØÅ", "*-._~!'()", "😀 ok", "%41" })
+      assertEquals(RequestTemplate.encode(s), URLEncoder.encode(s, "UTF-8"), s);
+  }
+
+  @Test
+  public void testBodiesAreReusedButCopiedOut() throws Exception
+  {
+    RequestTemplates templates = new RequestTemplates(AsyncDibsClientTest.CONFIG);
+    RequestTemplate.Body first = templates.cancel("1000000001");
+    byte[] copy = first.toByteArray();
+    RequestTemplate.Body second = templates.deleteTicket("2718314359");
+    assertSame(second, first);
+    assertTrue(fields(copy).contains("transact=1000000001"));
+    assertFalse(fields(second.toByteArray()).contains("transact=1000000001"));
+    assertEquals(second.params().get("ticket"), "2718314359");
+  }
+
+  @Test
+  public void testExtraFieldsOverrideAndAreNotTouched() throws Exception
+  {
+    final Set<String> sent = new HashSet<>();
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, request -> {
+      sent.addAll(fields(request.body()));
+      return "status=ACCEPTED&transact=1000000001".getBytes(StandardCharsets.UTF_8);
+    });
+    Map<String, String> extra = new HashMap<>();
+    extra.put("amount", "0");
+    extra.put("currency", "978");
+    Map<String, String> before = new HashMap<>(extra);
+
+    assertTrue(client.validateSubscription("2718314359", "validate-1", extra).success());
+    assertEquals(extra, before);
+    assertTrue(sent.contains("amount=0"));
+    assertTrue(sent.contains("currency=978"));
+    assertTrue(sent.contains("zero_preauth=1"));
+    assertTrue(sent.contains("textreply=yes"));
+    assertFalse(sent.contains("amount=100"));
+
+    sent.clear();
+    client.validateSubscription("2718314359", "validate-2", Collections.emptyMap());
+    assertTrue(sent.contains("amount=100"));
+    assertTrue(sent.contains("currency=DKK"));
+  }
+
+  @Test
+  public void testFeeQuery() throws Exception
+  {
+    final StringBuilder url = new StringBuilder();
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, request -> {
+      url.append(request.url());
+      return "{\"fee\":125,\"amount\":10000}".getBytes(StandardCharsets.UTF_8);
+    });
+    assertEquals(client.expectedFeeCents("2718314359", 10000, Currency.getInstance("DKK")), 125);
+    assertTrue(url.toString().endsWith("/api/fee/v1/subscribers/" + AsyncDibsClientTest.CONFIG.getMerchantId()
+                                       + "/best?test=" + AsyncDibsClientTest.CONFIG.isTesting()
+                                       + "&amount=10000&currency=208&ticket=2718314359"), url.toString());
+  }
+}
@@ -0,0 +1,179 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TicketMetadataCacheTest {
+
+  private final AtomicInteger cardTypeCalls = new AtomicInteger();
+  private final AtomicInteger ticketCalls = new AtomicInteger();
+  private volatile String reason;
+  private volatile CountDownLatch ticketStarted;
+  private volatile CountDownLatch ticketGate;
+  private DibsClient client;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    cardTypeCalls.set(0);
+    ticketCalls.set(0);
+    reason = "PRIVATE";
+    ticketStarted = null;
+    ticketGate = null;
+    DibsTransport transport = request -> {
+      String path = request.url().getPath();
+      if (path.equals("/cardtype.pml")) {
+        cardTypeCalls.incrementAndGet();
+        return "V-DK".getBytes(StandardCharsets.UTF_8);
+      }
+      if (path.startsWith("/api/card/v1/tickets/")) {
+        ticketCalls.incrementAndGet();
+        String r = reason;
+        CountDownLatch started = ticketStarted;
+        if (started != null) {
+          started.countDown();
+          try {
+            ticketGate.await(5, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return ("{\"ticket\":\"t\",\"reason\":\"" + r + "\"}").getBytes(StandardCharsets.UTF_8);
+      }
+      return "status=ACCEPTED".getBytes(StandardCharsets.UTF_8);
+    };
+    client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+  }
+
+  @Test
+  public void testCardTypesAreKeptUntilPushedOut() throws Exception
+  {
+    TicketMetadataCache cache = new TicketMetadataCache(2, 10, 1, TimeUnit.MILLISECONDS);
+    client.setTicketMetadataCache(cache);
+
+    assertEquals(client.getCardType(1L), "V-DK");
+    Thread.sleep(10);
+    assertEquals(client.getCardType(1L), "V-DK");
+    assertEquals(cardTypeCalls.get(), 1);
+
+    client.getCardType(2L);
+    client.getCardType(3L);
+    assertEquals(cache.getCardTypeCount(), 2);
+    assertEquals(cache.getEvictionCount(), 1);
+    client.getCardType(1L);
+    assertEquals(cardTypeCalls.get(), 4);
+  }
+
+  @Test
+  public void testSurchargeabilityExpires() throws Exception
+  {
+    client.setTicketMetadataCache(new TicketMetadataCache(10, 10, 50, TimeUnit.MILLISECONDS));
+
+    assertEquals(client.surchargeabilityReason("2718314359"), "PRIVATE");
+    reason = "CONSUMER_EU";
+    assertEquals(client.surchargeabilityReason("2718314359"), "PRIVATE");
+    assertEquals(ticketCalls.get(), 1);
+
+    Thread.sleep(100);
+    assertEquals(client.surchargeabilityReason("2718314359"), "CONSUMER_EU");
+    assertEquals(ticketCalls.get(), 2);
+  }
+
+  @Test
+  public void testDeletingTheAccountForgetsTheTicket() throws Exception
+  {
+    TicketMetadataCache cache = new TicketMetadataCache(10, 10, 1, TimeUnit.DAYS);
+    client.setTicketMetadataCache(cache);
+
+    client.surchargeabilityReason("2718314359");
+    client.surchargeabilityReason("1000000001");
+    client.deleteAccount("2718314359");
+    assertEquals(cache.getTicketCount(), 1);
+    client.surchargeabilityReason("2718314359");
+    client.surchargeabilityReason("1000000001");
+    assertEquals(ticketCalls.get(), 3);
+  }
+
+  @Test
+  public void testLoadUnderWayAtInvalidationIsNotCached() throws Exception
+  {
+    TicketMetadataCache cache = new TicketMetadataCache(10, 10, 1, TimeUnit.DAYS);
+    client.setTicketMetadataCache(cache);
+    ticketStarted = new CountDownLatch(1);
+    ticketGate = new CountDownLatch(1);
+
+    CompletableFuture<String> stale = CompletableFuture.supplyAsync(() -> {
+      try {
+        return client.surchargeabilityReason("2718314359");
+      }
+      catch (DibsException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    assertTrue(ticketStarted.await(5, TimeUnit.SECONDS));
+    ticketStarted = null;
+    reason = "CONSUMER_EU";
+    cache.invalidateTicket("2718314359");
+    ticketGate.countDown();
+    assertEquals(stale.get(5, TimeUnit.SECONDS), "PRIVATE");
+
+    assertFalse(cache.hasSurchargeabilityReason("2718314359"));
+    assertEquals(client.surchargeabilityReason("2718314359"), "CONSUMER_EU");
+  }
+
+  @Test
+  public void testInvalidatingAnotherTicketKeepsTheLoad() throws Exception
+  {
+    TicketMetadataCache cache = new TicketMetadataCache(10, 10, 1, TimeUnit.DAYS);
+    client.setTicketMetadataCache(cache);
+    ticketStarted = new CountDownLatch(1);
+    ticketGate = new CountDownLatch(1);
+
+    CompletableFuture<String> load = CompletableFuture.supplyAsync(() -> {
+      try {
+        return client.surchargeabilityReason("2718314359");
+      }
+      catch (DibsException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+    assertTrue(ticketStarted.await(5, TimeUnit.SECONDS));
+    ticketStarted = null;
+    cache.invalidateTicket("1000000001");
+    ticketGate.countDown();
+    assertEquals(load.get(5, TimeUnit.SECONDS), "PRIVATE");
+
+    assertTrue(cache.hasSurchargeabilityReason("2718314359"));
+  }
+
+  @Test
+  public void testPrefetchSkipsKnownTickets() throws Exception
+  {
+    TicketMetadataCache cache = new TicketMetadataCache(10, 10, 1, TimeUnit.DAYS);
+    client.setTicketMetadataCache(cache);
+    client.surchargeabilityReason("1000000001");
+
+    BatchRun run = client.prefetchSurchargeability(Arrays.asList("1000000001", "1000000002", "1000000003"), 2);
+    assertTrue(run.await(5, TimeUnit.SECONDS));
+    assertEquals(run.succeeded(), 3);
+    assertEquals(ticketCalls.get(), 3);
+    assertEquals(cache.getTicketCount(), 3);
+
+    client.surchargeabilityReason("1000000003");
+    assertEquals(ticketCalls.get(), 3);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testPrefetchNeedsACache()
+  {
+    client.prefetchSurchargeability(Arrays.asList("1000000001"), 1);
+  }
+}
@@ -0,0 +1,139 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ValidationSweepTest {
+
+  private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+  private final Map<String, String> outcomes = new ConcurrentHashMap<>();
+  private DibsClient client;
+
+  private final ValidationSweep.Sink sink = new ValidationSweep.Sink() {
+    @Override
+    public void valid(String ticket, DibsResponse response) {
+      outcomes.put(ticket, "valid");
+    }
+
+    @Override
+    public void invalid(String ticket, DibsResponse response) {
+      outcomes.put(ticket, "invalid " + response.reason());
+    }
+
+    @Override
+    public void error(String ticket, Exception failure) {
+      String key = failure instanceof DibsException ? ((DibsException)failure).getErrorKey() : failure.getClass().getSimpleName();
+      outcomes.put(ticket, "error " + key);
+    }
+  };
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    attempts.clear();
+    outcomes.clear();
+    // Tickets starting with 1 always fail with reason 1, with 3 fail once
+    // with reason 3, with 4 are refused
+    DibsTransport transport = request -> {
+      String body = new String(request.body(), StandardCharsets.UTF_8);
+      assertTrue(body.contains("zero_preauth=1"));
+      String ticket = body.replaceAll(".*ticket=([^&]*).*", "$1");
+      int n = attempts.computeIfAbsent(ticket, t -> new AtomicInteger()).incrementAndGet();
+      String reply;
+      if (ticket.startsWith("1"))
+        reply = "status=DECLINED&reason=1&message=Communication+problems";
+      else if (ticket.startsWith("3") && n == 1)
+        reply = "status=DECLINED&reason=3&message=Error+at+the+acquirer";
+      else if (ticket.startsWith("4"))
+        reply = "status=DECLINED&reason=4&actioncode=116";
+      else
+        reply = "status=ACCEPTED&transact=" + (1000 + n);
+      return reply.getBytes(StandardCharsets.UTF_8);
+    };
+    client = new DibsClient(AsyncDibsClientTest.CONFIG, transport);
+  }
+
+  @Test
+  public void testSweepReportsEveryTicketAndRetriesTransientFailures() throws Exception
+  {
+    List<String> tickets = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      tickets.add("20000000" + i);
+      tickets.add("30000000" + i);
+      tickets.add("40000000" + i);
+    }
+    tickets.add("100000000");
+
+    BatchRun run = new ValidationSweep(client).concurrency(4).maxAttempts(3).retryDelay(1, 5).start(tickets, sink);
+    assertTrue(run.await(10, TimeUnit.SECONDS));
+
+    assertEquals(outcomes.size(), 31);
+    assertEquals(outcomes.get("200000000"), "valid");
+    assertEquals(outcomes.get("300000005"), "valid");
+    assertEquals(attempts.get("300000005").get(), 2);
+    assertEquals(outcomes.get("400000009"), "invalid 4");
+    assertEquals(attempts.get("400000009").get(), 1);
+    assertEquals(outcomes.get("100000000"), "error 1");
+    assertEquals(attempts.get("100000000").get(), 3);
+    assertEquals(run.succeeded(), 30);
+    assertEquals(run.failed(), 1);
+  }
+
+  @Test
+  public void testWindows() throws Exception
+  {
+    ValidationSweep sweep = new ValidationSweep(client);
+    LocalDateTime noon = LocalDateTime.of(2026, 10, 17, 12, 0);
+    assertEquals(sweep.millisUntilOpen(noon), 0);
+
+    sweep.window(LocalTime.of(22, 0), LocalTime.of(2, 0));
+    assertEquals(sweep.millisUntilOpen(noon), TimeUnit.HOURS.toMillis(10));
+    assertEquals(sweep.millisUntilOpen(noon.withHour(23)), 0);
+    assertEquals(sweep.millisUntilOpen(noon.withHour(1)), 0);
+    assertEquals(sweep.millisUntilOpen(noon.withHour(2)), TimeUnit.HOURS.toMillis(20));
+
+    sweep.window(LocalTime.of(13, 0), LocalTime.of(14, 0));
+    assertEquals(sweep.millisUntilOpen(noon), TimeUnit.HOURS.toMillis(1));
+    assertEquals(sweep.millisUntilOpen(noon.withHour(13).withMinute(30)), 0);
+  }
+
+  @Test
+  public void testNothingIsSentOutsideTheWindows() throws Exception
+  {
+    LocalTime now = LocalTime.now();
+    BatchRun run = new ValidationSweep(client)
+        .window(now.plusHours(2), now.plusHours(3))
+        .start(java.util.Arrays.asList("200000000"), sink);
+    assertFalse(run.await(200, TimeUnit.MILLISECONDS));
+    assertTrue(attempts.isEmpty());
+
+    run.cancel();
+    assertTrue(run.await(5, TimeUnit.SECONDS));
+    assertTrue(attempts.isEmpty());
+    assertEquals(run.failed(), 1);
+    assertEquals(outcomes.get("200000000"), "error CancellationException");
+  }
+
+  @Test
+  public void testTransientReasonsAreDibsExceptions() throws Exception
+  {
+    try {
+      client.validateSubscription("100000000", "validate-1", new java.util.HashMap());
+      fail("expected failure");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), "1");
+      assertTrue(ValidationSweep.retryable(ex));
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+
+public class WarmUpTest {
+
+  private DibsSimulator sim;
+  private PooledDibsTransport transport;
+  private DibsClient client;
+  private DibsMetrics metrics;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    sim = new DibsSimulator().credentials("user", "secret").start();
+    transport = new PooledDibsTransport(null);
+    client = new DibsClient(sim.config(AsyncDibsClientTest.CONFIG), transport);
+    metrics = new DibsMetrics();
+    client.addEventListener(metrics);
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    transport.close();
+    sim.close();
+  }
+
+  @Test
+  public void testWarmUpOpensConnectionsWithoutCharging() throws Exception
+  {
+    WarmUp warmUp = new WarmUp(client).connections(3).syntheticCalls(50);
+    assertEquals(warmUp.warmUp(), 3);
+    assertEquals(transport.getIdleConnections(), 3);
+    assertEquals(sim.getAcceptedCount(), 0);
+    assertTrue(metrics.getCalls().isEmpty(), metrics.getCalls().toString());
+  }
+
+  @Test
+  public void testConnectionsAreKeptAlive() throws Exception
+  {
+    EndpointIsolation isolation = new EndpointIsolation();
+    client.setEndpointIsolation(isolation);
+    try (WarmUp warmUp = new WarmUp(client).connections(2).syntheticCalls(1).keepAliveMillis(50)) {
+      warmUp.scheduleAt(Instant.now().plusMillis(20));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (warmUp.getPingCount() < 6 && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+      assertTrue(warmUp.getPingCount() >= 6, "pings: " + warmUp.getPingCount());
+      assertEquals(warmUp.getPingFailureCount(), 0);
+    }
+    assertEquals(sim.getAcceptedCount(), 0);
+    // Sent past the pipeline: no events, no breaker
+    assertTrue(metrics.getCalls().isEmpty(), metrics.getCalls().toString());
+    assertTrue(isolation.getStates().isEmpty(), isolation.getStates().toString());
+  }
+}
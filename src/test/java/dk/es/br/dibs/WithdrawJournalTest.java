@@ -0,0 +1,235 @@
+package dk.es.br.dibs;
+
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class WithdrawJournalTest {
+
+  private static final Currency DKK = Currency.getInstance("DKK");
+  private static final BigDecimal AMOUNT = new BigDecimal("300.00");
+
+  private Path dir;
+  private volatile String reply;
+
+  @BeforeMethod
+  public void setUpMethod() throws Exception {
+    dir = Files.createTempDirectory("withdraw-journal");
+    reply = "status=ACCEPTED&transact=1000000001";
+  }
+
+  @AfterMethod
+  public void tearDownMethod() throws Exception {
+    for (Path file : files())
+      Files.delete(file);
+    Files.delete(dir);
+  }
+
+  private List<Path> files() throws IOException {
+    List<Path> res = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files)
+        res.add(file);
+    }
+    res.sort(null);
+    return res;
+  }
+
+  private DibsClient client(WithdrawJournal journal) {
+    DibsClient client = new DibsClient(AsyncDibsClientTest.CONFIG, request -> {
+      if (reply == null)
+        throw new IOException("connection reset");
+      return reply.getBytes(StandardCharsets.UTF_8);
+    });
+    client.setWithdrawJournal(journal);
+    return client;
+  }
+
+  @Test
+  public void testUnansweredWithdrawalIsInDoubtAfterRestart() throws Exception
+  {
+    WithdrawJournal journal = new WithdrawJournal(dir);
+    DibsClient client = client(journal);
+    client.withdraw("2718314359", "F1", AMOUNT, DKK, false);
+    reply = "status=DECLINED&reason=4&message=Declined";
+    try {
+      client.withdraw("2718314359", "F2", AMOUNT, DKK, false);
+      fail("expected decline");
+    }
+    catch (DibsException expected) {
+    }
+    reply = null;
+    try {
+      client.withdraw("2718314359", "F3", AMOUNT, DKK, false);
+      fail("expected failure");
+    }
+    catch (DibsException expected) {
+    }
+    assertEquals(journal.getInDoubt().size(), 1);
+    journal.close();
+
+    journal = new WithdrawJournal(dir);
+    List<WithdrawJournal.Intent> inDoubt = journal.getInDoubt();
+    assertEquals(inDoubt.size(), 1);
+    WithdrawJournal.Intent intent = inDoubt.get(0);
+    assertEquals(intent.orderId(), "F3");
+    assertEquals(intent.merchantId(), AsyncDibsClientTest.CONFIG.getMerchantId());
+    assertEquals(intent.ticket(), "2718314359");
+    assertEquals(intent.amountCents(), 30000);
+    assertEquals(intent.currency(), "208");
+
+    journal.resolve("F3");
+    assertTrue(journal.getInDoubt().isEmpty());
+    journal.close();
+    journal = new WithdrawJournal(dir);
+    assertTrue(journal.getInDoubt().isEmpty());
+    journal.close();
+  }
+
+  @Test
+  public void testWithdrawalRejectedBeforeSendingIsNotInDoubt() throws Exception
+  {
+    WithdrawJournal journal = new WithdrawJournal(dir);
+    DibsClient client = client(journal);
+    client.setEndpointIsolation(new EndpointIsolation().window(10).minimumCalls(5).openMillis(60000));
+    reply = null;
+    for (int i = 0; i < 5; i++) {
+      try {
+        client.withdraw("2718314359", "F" + i, AMOUNT, DKK, false);
+        fail("expected failure");
+      }
+      catch (DibsException expected) {
+      }
+    }
+    for (int i = 0; i < 5; i++)
+      journal.resolve("F" + i);
+
+    try {
+      client.withdraw("2718314359", "F5", AMOUNT, DKK, false);
+      fail("expected the breaker to be open");
+    }
+    catch (DibsException ex) {
+      assertEquals(ex.getErrorKey(), DibsException.CIRCUIT_OPEN);
+    }
+    assertTrue(journal.getInDoubt().isEmpty(), journal.getInDoubt().toString());
+    journal.close();
+  }
+
+  @Test
+  public void testJournalFailuresDoNotTripTheBreaker() throws Exception
+  {
+    WithdrawJournal journal = new WithdrawJournal(dir);
+    DibsClient client = client(journal);
+    EndpointIsolation isolation = new EndpointIsolation().window(10).minimumCalls(5).openMillis(60000);
+    client.setEndpointIsolation(isolation);
+    StringBuilder orderId = new StringBuilder();
+    for (int i = 0; i < 600; i++)
+      orderId.append('F');
+    for (int i = 0; i < 5; i++) {
+      try {
+        client.withdraw("2718314359", orderId.toString(), AMOUNT, DKK, false);
+        fail("expected the journal to refuse");
+      }
+      catch (DibsException ex) {
+        assertTrue(ex.getCause() instanceof IllegalArgumentException, String.valueOf(ex.getCause()));
+      }
+    }
+    assertEquals(isolation.getCircuitBreaker("/cgi-ssl/ticket_auth.cgi").getState(), CircuitBreaker.State.CLOSED);
+    assertTrue(client.withdraw("2718314359", "F1", AMOUNT, DKK, false).success());
+    journal.close();
+  }
+
+  @Test
+  public void testTornRecordEndsTheScan() throws Exception
+  {
+    WithdrawJournal journal = new WithdrawJournal(dir);
+    journal.intent("4259425", "F1", "2718314359", 100, "208");
+    journal.intent("4259425", "F2", "2718314359", 200, "208");
+    journal.close();
+
+    // Garble the last byte of the second record, as a crash mid-write would
+    Path segment = files().get(0);
+    try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+      int end = 4;
+      for (int i = 0; i < 2; i++)
+        end += 8 + buf.getInt(end);
+      buf.put(end - 1, (byte)(buf.get(end - 1) ^ 0xff));
+    }
+
+    journal = new WithdrawJournal(dir);
+    assertEquals(journal.getInDoubt().size(), 1);
+    assertEquals(journal.getInDoubt().get(0).orderId(), "F1");
+    journal.close();
+  }
+
+  @Test
+  public void testSegmentsRollAndSettledOnesAreDeleted() throws Exception
+  {
+    WithdrawJournal journal = new WithdrawJournal(dir).segmentBytes(1024);
+    DibsClient client = client(journal);
+    for (int i = 0; i < 100; i++)
+      client.withdraw("2718314359", "F" + i, AMOUNT, DKK, false);
+    assertTrue(journal.getInDoubt().isEmpty());
+    assertEquals(journal.getRecordCount(), 200);
+    assertTrue(files().size() <= 2, files().toString());
+
+    journal.intent("4259425", "open", "2718314359", 100, "208");
+    for (int i = 100; i < 200; i++)
+      client.withdraw("2718314359", "F" + i, AMOUNT, DKK, false);
+    assertTrue(files().size() > 2, files().toString());
+    journal.close();
+
+    journal = new WithdrawJournal(dir);
+    assertEquals(journal.getInDoubt().size(), 1);
+    assertEquals(journal.getInDoubt().get(0).orderId(), "open");
+    journal.close();
+  }
+
+  @Test
+  public void testConcurrentIntentsShareFlushes() throws Exception
+  {
+    final WithdrawJournal journal = new WithdrawJournal(dir);
+    ExecutorService pool = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<?>> done = new ArrayList<>();
+      for (int t = 0; t < 16; t++) {
+        final int thread = t;
+        done.add(pool.submit(() -> {
+          for (int i = 0; i < 50; i++)
+            journal.intent("4259425", thread + "-" + i, "2718314359", 100, "208");
+          return null;
+        }));
+      }
+      for (Future<?> f : done)
+        f.get();
+    }
+    finally {
+      pool.shutdown();
+    }
+    assertEquals(journal.getRecordCount(), 800);
+    assertTrue(journal.getSyncCount() <= journal.getRecordCount());
+    journal.close();
+
+    WithdrawJournal reopened = new WithdrawJournal(dir);
+    assertEquals(reopened.getInDoubt().size(), 800);
+    reopened.close();
+  }
+}